@@ -1,3 +1,33 @@
-class Main_Server(){
-  
+import java.io.IOException;
+
+import servelib.BuildResponse;
+import servelib.Metrics;
+import servelib.ServerConfig;
+import servelib.ServerCore;
+import servelib.log;
+import servelib.buildAPI.MainPOST;
+
+// 服务器入口 / entry point
+// java Main_Server.java mode=nio port=8080 maxConnections=50000 logLevel=warn logFile=logs/server.log
+public class Main_Server {
+    public static void main(String[] args) throws IOException {
+        ServerConfig config = ServerConfig.fromArgs(args);
+        log.setLevel(config.getLogLevel());
+        log.setOverflow(config.getLogOverflow());
+        if (config.getLogFile() != null) {
+            log.toFile(config.getLogFile());
+        }
+        BuildResponse.init();
+        ServerCore server = ServerCore.create(config);
+        if (config.getUploadPath() != null) {
+            BuildResponse.addRoute(config.getUploadPath(), MainPOST.upload(config.getUploadDirectory(),
+                    config.getMaxFieldBytes(), config.getMaxParts()));
+        }
+        if (config.getMetricsPath() != null) {
+            BuildResponse.addRoute(config.getMetricsPath(), Metrics.handler());
+            Metrics.gauge("http_connections_active", "Open client connections", server::getActiveConnections);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        server.start();
+    }
 }
@@ -1,235 +1,471 @@
 package servelib;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
 import java.net.Socket;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-
+// 字节级别的请求解析 / byte-level HTTP request parser
+// 在可复用的 ByteBuffer 上按状态机逐行扫描 只记录方法 路径 查询串 请求头的偏移量
+// 字符串只在调用对应的 getter 时才生成 (常见的方法和版本直接返回常量)
+// 注意: 同一连接上解析下一个请求会复用缓冲区 之前的 BuildRequest 不应再被使用
 public class BuildRequest {
-    private InputStream inputStream;
-    private InputStreamReader inputStreamReader;
-    private BufferedInputStream bufferedInputStream;
-    private BufferedReader bufferedReader;
-    private Socket socket;
+    private final Socket socket;
+    private final BufferedInputStream bufferedInputStream;
+    private final Buffer buffer;
+
+    private String clientIp;
+
+    private boolean complete; // 是否读到了完整的请求头
+    private int errorStatus; // 解析失败时对应的 HTTP 状态码 0 表示没有错误
 
-    private boolean Frp = true;// RequestProcess_Frp 方法自带判断是否为frp
-    private String clientIp = new String();
-    private String request = new String();
+    // 请求行的偏移量 (相对 buffer.data)
+    private int methodStart, methodEnd;
+    private int pathStart, pathEnd;
+    private int queryStart = -1, queryEnd = -1;
+    private int versionStart, versionEnd;
+    private int headerCount;
+    private RequestBody body; // ConnectionHandler 检查分帧后打开 没有请求体时为 null
 
-    private String[] requestArr;
+    // 延迟生成的字符串
     private String requestType;
     private String requestBody;
     private String requestVersion;
     private String requestParameter;
-    private Map<String, String> headers; // 新增字段
-
-    public BuildRequest(Socket socket) throws IOException {
-        this.socket = socket;// 这个没问题
-        inputStream = socket.getInputStream();// 一级使用
-        inputStreamReader = new InputStreamReader(inputStream);// 二级
-        bufferedInputStream = new BufferedInputStream(inputStream);
-
-        bufferedReader = new BufferedReader(inputStreamReader);// 三级
-
-        if (Frp) {
-            RequestProcess_Frp();
-        } else {
-            RequestProcess_General();
+    private Map<String, String> headers;
+    private Map<String, String> parameters;
+
+    // 限制 / limits
+    public static final int MAX_LINE = 8 * 1024; // 请求行和单个请求头的最大长度
+    public static final int MAX_HEAD = 64 * 1024; // 整个请求头的最大长度
+    public static final int MAX_HEADERS = 100; // 请求头最大数量
+
+    // 可复用的解析缓冲区 每个连接(或工作线程)一个
+    public static final class Buffer {
+        private ByteBuffer bytes = ByteBuffer.allocate(4 * 1024);
+        // 每个请求头 4 个偏移量: 名称开始 名称结束 值开始 值结束
+        private final int[] headerOffsets = new int[MAX_HEADERS * 4];
+
+        private byte[] data() {
+            return bytes.array();
         }
-        requestArr = URLDecoder.decode(request, "utf-8").split(" ");
-        if (requestArr.length >= 3) {
-            requestType = requestArr[0];
-            requestBody = requestArr[1];
-            requestVersion = requestArr[2];
+
+        // 扩容 不超过 MAX_HEAD
+        private boolean grow() {
+            if (bytes.capacity() >= MAX_HEAD) {
+                return false;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(MAX_HEAD, bytes.capacity() * 2));
+            bytes.flip();
+            bigger.put(bytes);
+            bytes = bigger;
+            return true;
         }
     }
 
-    // 定义常量，避免硬编码
-    private static final byte[] PATTERN = new byte[] { 0x21, 0x11, 0x00, 0x0C }; // "2111000C" 的字节表示
-    private static final int IP_OFFSET = 8; // IP地址的起始偏移量
-    private static final int IP_LENGTH = 4; // IP地址的长度（4字节）
-    private static final int REQUEST_OFFSET = 16; // 请求内容的起始偏移量 32
+    public BuildRequest(Socket socket) throws IOException {
+        this(socket, socket.getInputStream());
+    }
 
-    private void RequestProcess_Frp() throws IOException {
-        // 虽然明面上只似乎只支持frp 但实际支持了frp / General
-        int byteData;
-        byteData = bufferedInputStream.read();
-        if (byteData != 13) {
-            StringBuilder requestBuilder = new StringBuilder();
-            while (byteData != 10 && byteData != -1) {
-                requestBuilder.append((char) byteData); // 直接将字节转换为字符
-                byteData = bufferedInputStream.read();
-            }
-            request = requestBuilder.toString();
+    // inputStream 可以是 NIO 事件循环预读字节与 socket 输入流的拼接
+    public BuildRequest(Socket socket, InputStream inputStream) throws IOException {
+        this(socket, inputStream instanceof BufferedInputStream ? (BufferedInputStream) inputStream
+                : new BufferedInputStream(inputStream), new Buffer(), null);
+    }
 
-            if (!request.contains(" ")) {
-                // 没有空格说明是非法请求
+    // 传入同一个连接共享的 BufferedInputStream 时 可以连续读取多个(流水线)请求
+    // clientIp 由 ConnectionHandler 传入 (PROXY 头或 socket 地址) 为 null 时使用 socket 地址
+    public BuildRequest(Socket socket, BufferedInputStream inputStream, Buffer buffer, String clientIp)
+            throws IOException {
+        this.socket = socket;
+        this.bufferedInputStream = inputStream;
+        this.buffer = buffer;
+        this.clientIp = clientIp;
+        parse();
+    }
+
+    // 状态 / parser states
+    private static final int S_REQUEST_LINE = 0; // 请求行 (跳过之前的空行)
+    private static final int S_HEADER = 1;
+    private static final int S_DONE = 2;
+
+    private void parse() throws IOException {
+        BufferedInputStream in = bufferedInputStream;
+        ByteBuffer bytes = buffer.bytes;
+        bytes.clear();
+        headerCount = 0;
+
+        in.mark(MAX_HEAD + 1);
+        int state = S_REQUEST_LINE;
+        int lineStart = 0;
+        int scan = 0;
+        int consumed = 0; // 请求头结束后的位置 从输入流中实际消耗的字节数
+
+        while (state != S_DONE) {
+            if (!bytes.hasRemaining() && !buffer.grow()) {
+                fail(state == S_HEADER ? 431 : 414);
                 return;
             }
-
-            StringBuilder headersBuilder = new StringBuilder();
-            while ((byteData = bufferedInputStream.read()) != -1) {
-                headersBuilder.append((char) byteData);
-                if (byteData == '\n' && headersBuilder.toString().endsWith("\r\n\r\n")) {
-                    break;
-                }
+            bytes = buffer.bytes;
+            int n = in.read(bytes.array(), bytes.position(), bytes.remaining());
+            if (n < 0) {
+                // 连接关闭 没有完整的请求
+                return;
             }
-            String headersString = headersBuilder.toString();
-
-            headers = parseHeaders(headersString);
-
-        } else if (byteData == 13) {
-            while (true) {
-                // 读取字节数据并解析
-                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                while ((byteData = bufferedInputStream.read()) != -1) {
-                    if (byteData == 0x0A) { // 换行符（0A）表示结束
-                        break;
-                    }
-                    buffer.write(byteData); // 将字节写入缓冲区
-                }
-
-                // 将缓冲区转换为字节数组
-                byte[] data = buffer.toByteArray();
-
-                // 查找模式 "2111000C" 的位置
-                int patternIndex = indexOf(data, PATTERN);
-                if (patternIndex != -1) {
-                    // 解析客户端IP
-                    byte[] ipBytes = Arrays.copyOfRange(data, patternIndex + IP_OFFSET,
-                            patternIndex + IP_OFFSET + IP_LENGTH);
-                    clientIp = bytesToIp(ipBytes); // 将字节数组转换为IP地址
-
-                    // 解析请求内容
-                    byte[] requestBytes = Arrays.copyOfRange(data, patternIndex + REQUEST_OFFSET, data.length);
-                    request = new String(requestBytes, StandardCharsets.UTF_8); // 将字节数组转换为字符串
-
-                    if (!request.contains(" ")) {
+            bytes.position(bytes.position() + n);
+            byte[] data = bytes.array();
+            int limit = bytes.position();
+
+            for (; scan < limit && state != S_DONE; scan++) {
+                if (data[scan] != '\n') {
+                    if (scan - lineStart >= MAX_LINE) {
+                        fail(state == S_HEADER ? 431 : 414);
                         return;
-                        // 根据标准 请求格式应为 (Type) (Body) (version)
-                        // 如 POST /html/index.html
-                        // 如果其中没有空格则为非法请求
                     }
-                    // get headers
-                    StringBuilder headersBuilder = new StringBuilder();
-                    while ((byteData = bufferedInputStream.read()) != -1) {
-                        headersBuilder.append((char) byteData);
-                        if (byteData == '\n' && headersBuilder.toString().endsWith("\r\n\r\n")) {
+                    continue;
+                }
+                int lineEnd = scan > lineStart && data[scan - 1] == '\r' ? scan - 1 : scan;
+                switch (state) {
+                    case S_REQUEST_LINE:
+                        if (lineEnd == lineStart) {
+                            break; // 忽略请求行之前的空行
+                        }
+                        if (!requestLine(data, lineStart, lineEnd)) {
+                            fail(400);
+                            return;
+                        }
+                        state = S_HEADER;
+                        break;
+                    case S_HEADER:
+                        if (lineEnd == lineStart) {
+                            state = S_DONE;
+                            consumed = scan + 1;
                             break;
                         }
-                    }
-                    String headersString = headersBuilder.toString();
-
-                    headers = parseHeaders(headersString);
-                    return;
+                        if (headerCount == MAX_HEADERS || !header(data, lineStart, lineEnd)) {
+                            fail(headerCount == MAX_HEADERS ? 431 : 400);
+                            return;
+                        }
+                        break;
+                    default:
+                        break;
                 }
+                lineStart = scan + 1;
             }
         }
-    }
 
-    private void RequestProcess_General() throws IOException {
-        request = bufferedReader.readLine();
-        clientIp = socket.getInetAddress().getHostAddress();
-
-        if (!request.contains(" ")) {
-            return;
+        // 回到 mark 处 只消耗请求头的字节 后面的请求体或下一个请求留在输入流中
+        in.reset();
+        long remaining = consumed;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                throw new IOException("Failed to skip request head");
+            }
+            remaining -= skipped;
         }
+        complete = true;
+        if (clientIp == null) {
+            clientIp = socket != null ? socket.getInetAddress().getHostAddress() : "";
+        }
+    }
 
-        String TEMP = new String();
-        StringBuilder heads = new StringBuilder();
+    // 请求行: 方法 SP 路径[?查询串] SP 版本
+    private boolean requestLine(byte[] data, int start, int end) {
+        int sp1 = indexOf(data, start, end, (byte) ' ');
+        if (sp1 <= start) {
+            return false;
+        }
+        int sp2 = indexOf(data, sp1 + 1, end, (byte) ' ');
+        if (sp2 <= sp1 + 1) {
+            return false;
+        }
+        methodStart = start;
+        methodEnd = sp1;
+        pathStart = sp1 + 1;
+        int question = indexOf(data, pathStart, sp2, (byte) '?');
+        if (question >= 0) {
+            pathEnd = question;
+            queryStart = question + 1;
+            queryEnd = sp2;
+        } else {
+            pathEnd = sp2;
+            queryStart = queryEnd = -1;
+        }
+        versionStart = sp2 + 1;
+        versionEnd = end;
+        return versionEnd > versionStart;
+    }
 
-        TEMP = bufferedReader.readLine();
-        while (!TEMP.equals("")) {
-            heads.append(TEMP + "\n");
-            TEMP = bufferedReader.readLine();
+    // 请求头: 名称 ":" OWS 值 OWS
+    private boolean header(byte[] data, int start, int end) {
+        int colon = indexOf(data, start, end, (byte) ':');
+        if (colon <= start) {
+            return false;
+        }
+        int nameEnd = colon;
+        while (nameEnd > start && data[nameEnd - 1] == ' ') {
+            nameEnd--;
         }
-        headers = parseHeaders(heads.toString());
+        int valueStart = colon + 1;
+        while (valueStart < end && (data[valueStart] == ' ' || data[valueStart] == '\t')) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && (data[valueEnd - 1] == ' ' || data[valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
+        int[] offsets = buffer.headerOffsets;
+        int i = headerCount * 4;
+        offsets[i] = start;
+        offsets[i + 1] = nameEnd;
+        offsets[i + 2] = valueStart;
+        offsets[i + 3] = valueEnd;
+        headerCount++;
+        return true;
     }
 
-    // 工具方法：查找字节数组匹配内容
-    private static int indexOf(byte[] source, byte[] pattern) {
-        for (int i = 0; i <= source.length - pattern.length; i++) {
-            boolean match = true;
-            for (int j = 0; j < pattern.length; j++) {
-                if (source[i + j] != pattern[j]) {
-                    match = false;
-                    break;
-                }
-            }
-            if (match) {
+    private void fail(int status) {
+        errorStatus = status;
+    }
+
+    // 工具方法：在字节数组区间内查找
+    private static int indexOf(byte[] data, int start, int end, byte value) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == value) {
                 return i;
             }
         }
         return -1;
     }
 
-    // 工具方法：将字节数组转换为IP地址
-    private static String bytesToIp(byte[] bytes) {
-        return String.format("%d.%d.%d.%d", bytes[0] & 0xFF, bytes[1] & 0xFF, bytes[2] & 0xFF, bytes[3] & 0xFF);
+    private static boolean equalsAscii(byte[] data, int start, int end, String text) {
+        if (end - start != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (data[start + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    // 工具方法：将request head部分转换为Map
-    private static Map<String, String> parseHeaders(String rawData) {
-        Map<String, String> headers = new HashMap<>();
-        String[] lines = rawData.split("\\r?\\n"); // 按行分割
-
-        for (String line : lines) {
-            // 跳过空行和不符合键值对格式的行
-            if (line.isEmpty() || !line.contains(":")) {
+    private static boolean equalsIgnoreCaseAscii(byte[] data, int start, int end, String text) {
+        if (end - start != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            int a = data[start + i] & 0xFF;
+            int b = text.charAt(i);
+            if (a == b) {
                 continue;
             }
+            if (a >= 'A' && a <= 'Z') {
+                a += 'a' - 'A';
+            }
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (a != b) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-            // 找到冒号的位置，分割成键值对
-            int colonIndex = line.indexOf(":");
-            String key = line.substring(0, colonIndex).trim();
-            String value = line.substring(colonIndex + 1).trim();
+    private String ascii(int start, int end) {
+        return new String(buffer.data(), start, end - start, StandardCharsets.ISO_8859_1);
+    }
 
-            // 存储键值对，多个相同的键可以拼接其值
-            if (headers.containsKey(key)) {
-                // 如果有重复的键，追加其值
-                headers.put(key, headers.get(key) + ", " + value);
+    // 路径的百分号解码 ('+' 在路径中不代表空格)
+    private String decodePath(int start, int end) {
+        byte[] data = buffer.data();
+        if (indexOf(data, start, end, (byte) '%') < 0) {
+            return new String(data, start, end - start, StandardCharsets.UTF_8);
+        }
+        byte[] decoded = new byte[end - start];
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            int hi;
+            int lo;
+            if (data[i] == '%' && i + 2 < end && (hi = Character.digit(data[i + 1], 16)) >= 0
+                    && (lo = Character.digit(data[i + 2], 16)) >= 0) {
+                decoded[length++] = (byte) ((hi << 4) | lo);
+                i += 2;
             } else {
-                headers.put(key, value);
+                decoded[length++] = data[i];
             }
         }
-        return headers;
+        return new String(decoded, 0, length, StandardCharsets.UTF_8);
     }
+
     // Getters and setters
 
+    // 连接在读到完整请求之前关闭或解析失败时为 false
+    public boolean isComplete() {
+        return complete;
+    }
+
+    // 解析失败时的状态码 (400/414/431) 0 表示没有错误
+    public int getErrorStatus() {
+        return errorStatus;
+    }
+
     public String getRequestType() {
+        if (requestType == null && complete && methodEnd > methodStart) {
+            byte[] data = buffer.data();
+            if (equalsAscii(data, methodStart, methodEnd, "GET")) {
+                requestType = "GET";
+            } else if (equalsAscii(data, methodStart, methodEnd, "POST")) {
+                requestType = "POST";
+            } else if (equalsAscii(data, methodStart, methodEnd, "HEAD")) {
+                requestType = "HEAD";
+            } else if (equalsAscii(data, methodStart, methodEnd, "PUT")) {
+                requestType = "PUT";
+            } else {
+                requestType = ascii(methodStart, methodEnd);
+            }
+        }
         return requestType;
     }
 
+    // 请求路径 已解码 不含查询串
     public String getRequestBody() {
+        if (requestBody == null && complete && pathEnd > pathStart) {
+            requestBody = decodePath(pathStart, pathEnd);
+        }
         return requestBody;
     }
 
     public String getRequestVersion() {
+        if (requestVersion == null && complete && versionEnd > versionStart) {
+            byte[] data = buffer.data();
+            if (equalsAscii(data, versionStart, versionEnd, "HTTP/1.1")) {
+                requestVersion = "HTTP/1.1";
+            } else if (equalsAscii(data, versionStart, versionEnd, "HTTP/1.0")) {
+                requestVersion = "HTTP/1.0";
+            } else {
+                requestVersion = ascii(versionStart, versionEnd);
+            }
+        }
         return requestVersion;
     }
 
+    // 查询串 ('?' 之后的部分) 未解码 没有时返回 null
     public String getRequestParameter() {
+        if (requestParameter == null && complete && queryStart >= 0) {
+            requestParameter = new String(buffer.data(), queryStart, queryEnd - queryStart, StandardCharsets.UTF_8);
+        }
         return requestParameter;
     }
 
+    // 查询串解析后的参数 已解码 重复的参数只保留第一个
+    public Map<String, String> getParameters() {
+        if (parameters == null) {
+            String query = getRequestParameter();
+            if (query == null || query.isEmpty()) {
+                parameters = Collections.emptyMap();
+                return parameters;
+            }
+            parameters = new LinkedHashMap<>();
+            for (String pair : query.split("&")) {
+                if (pair.isEmpty()) {
+                    continue;
+                }
+                int eq = pair.indexOf('=');
+                try {
+                    String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "utf-8");
+                    String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "utf-8");
+                    parameters.putIfAbsent(key, value);
+                } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                    // 跳过无法解码的参数
+                }
+            }
+        }
+        return parameters;
+    }
+
+    // 所有请求头 多个相同的键拼接其值
     public Map<String, String> getHeaders() {
+        if (headers == null) {
+            headers = new LinkedHashMap<>();
+            int[] offsets = buffer.headerOffsets;
+            for (int i = 0; i < headerCount * 4; i += 4) {
+                String key = ascii(offsets[i], offsets[i + 1]);
+                String value = new String(buffer.data(), offsets[i + 2], offsets[i + 3] - offsets[i + 2],
+                        StandardCharsets.UTF_8);
+                headers.merge(key, value, (a, b) -> a + ", " + b);
+            }
+        }
         return headers;
     }
 
+    // 按名称获取请求头 忽略大小写 不存在时返回 null
+    // 直接比较偏移量处的字节 不生成整个 Map
+    public String getHeader(String name) {
+        if (headers != null) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                if (entry.getKey().equalsIgnoreCase(name)) {
+                    return entry.getValue();
+                }
+            }
+            return null;
+        }
+        byte[] data = buffer.data();
+        int[] offsets = buffer.headerOffsets;
+        String value = null;
+        for (int i = 0; i < headerCount * 4; i += 4) {
+            if (equalsIgnoreCaseAscii(data, offsets[i], offsets[i + 1], name)) {
+                String part = new String(data, offsets[i + 2], offsets[i + 3] - offsets[i + 2],
+                        StandardCharsets.UTF_8);
+                value = value == null ? part : value + ", " + part;
+            }
+        }
+        return value;
+    }
+
     public String getClientIp() {
         return clientIp;
     }
 
+    // 请求头之后的原始输入流 没有分帧 读取请求体请使用 getBody()
     public BufferedInputStream getBufferedInputStream() {
         return bufferedInputStream;
     }
-}
\ No newline at end of file
+
+    // 请求头中是否有 Content-Length / Transfer-Encoding / Expect 只扫描一遍偏移量
+    public boolean hasBody() {
+        byte[] data = buffer.data();
+        int[] offsets = buffer.headerOffsets;
+        for (int i = 0; i < headerCount * 4; i += 4) {
+            if (equalsIgnoreCaseAscii(data, offsets[i], offsets[i + 1], "Content-Length")
+                    || equalsIgnoreCaseAscii(data, offsets[i], offsets[i + 1], "Transfer-Encoding")
+                    || equalsIgnoreCaseAscii(data, offsets[i], offsets[i + 1], "Expect")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 由 ConnectionHandler 在分派之前调用 分帧错误或超过 limit 时抛出 BodyException
+    RequestBody openBody(long limit) throws RequestBody.BodyException {
+        body = RequestBody.open(this, socket, bufferedInputStream, limit);
+        return body;
+    }
+
+    // 请求体 流式读取 没有请求体时立即返回 -1
+    public RequestBody getBody() {
+        if (body == null) {
+            body = RequestBody.empty();
+        }
+        return body;
+    }
+}
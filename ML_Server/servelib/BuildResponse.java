@@ -1,14 +1,31 @@
 package servelib;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 import servelib.log.LOGH;
 import servelib.log.LOGX;
@@ -16,11 +33,41 @@ import servelib.log.LOGX;
 public class BuildResponse {
     private Socket socket;
     private OutputStream OutputStream;
+    private BuildRequest request; // 用于内容协商 可以为 null
+    private boolean keepAlive; // 响应后是否保持连接 发送失败时置为 false
+    private boolean headOnly; // HEAD 请求: 响应头与 GET 相同 不发送响应体 (否则连接上的下一个响应错位)
     private log log = new log();
+    // 供 Metrics 使用: 响应行中的状态码 第一次发送的时间 发送的字节数 (包括响应头)
+    private int status;
+    private long firstByteNanos;
+    private long bytesSent;
+
+    // 响应头最后一行 + 空行 缓存的响应头不含这一部分 发送时拼接
+    private static final ByteBuffer KEEP_ALIVE_TAIL = directAscii("Connection: keep-alive\r\n\r\n");
+    private static final ByteBuffer CLOSE_TAIL = directAscii("Connection: close\r\n\r\n");
+    // 文件响应的状态行 之后是 MimeTypes.Type 预先编码的头部行
+    private static final ByteBuffer STATUS_200 = directAscii("HTTP/1.1 200 OK\r\n");
+    private static final ByteBuffer STATUS_206 = directAscii("HTTP/1.1 206 Partial Content\r\n");
+
+    // 单个请求最多接受的 Range 数量 超过时忽略 Range
+    private static final int MAX_RANGES = 16;
+    // Last-Modified / If-Range 使用的 IMF-fixdate 格式
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
 
     // Map(fileTypes) By use in Method(output_File_Fast_path)
     private static Map<String, String> fileTypes = new HashMap<>();
     private static Map<String, String> fileflag = new HashMap<>();
+    // 按 Content-Type 前缀配置的 Cache-Control 头部行 例如 "text/" "image/"
+    private static Map<String, String> cacheControls = new HashMap<>();
+    // 由 fileTypes 编译成的路由表 也可以在运行时 addRoute
+    private static final Router router = new Router();
+
+    // 小文件缓存 只缓存 HTML/CSS/JS
+    private static StaticFileCache staticCache;
+    private static final Set<String> CACHED_PREFIXES = Set.of("/data/HTML", "/data/CSS", "/data/JS");
+    private static final long STATIC_CACHE_BYTES = 64L * 1024 * 1024;
+    private static final long STATIC_CACHE_ENTRY_BYTES = 256 * 1024;
 
     public static void init() {
         // 一些初始化
@@ -36,6 +83,77 @@ public class BuildResponse {
         fileflag.put("mp4", "video/mpeg4");
         fileflag.put("js", "application/x-javascript");
         fileflag.put("css", "text/css");
+        fileflag.put("htm", "text/html");
+        fileflag.put("txt", "text/plain");
+        fileflag.put("json", "application/json");
+        fileflag.put("xml", "application/xml");
+        fileflag.put("svg", "image/svg+xml");
+        fileflag.put("jpg", "image/jpeg");
+        fileflag.put("jpeg", "image/jpeg");
+        fileflag.put("gif", "image/gif");
+        fileflag.put("webp", "image/webp");
+        fileflag.put("ico", "image/x-icon");
+        fileflag.put("woff2", "font/woff2");
+        fileflag.put("wasm", "application/wasm");
+        fileflag.put("pdf", "application/pdf");
+        // HTML 每次都需要验证 (配合 ETag 返回 304) 其余静态资源允许浏览器缓存
+        cacheControls.put("text/html", "no-cache");
+        cacheControls.put("text/css", "public, max-age=86400");
+        cacheControls.put("application/x-javascript", "public, max-age=86400");
+        cacheControls.put("image/", "public, max-age=604800");
+        cacheControls.put("audio/", "public, max-age=604800");
+        cacheControls.put("video/", "public, max-age=604800");
+        for (Entry<String, String> entry : fileflag.entrySet()) {
+            MimeTypes.register(entry.getKey(), entry.getValue(), cacheControlHeader(entry.getValue()));
+        }
+        for (Entry<String, String> entry : fileTypes.entrySet()) {
+            router.add(Router.Route.directory(entry.getKey(), entry.getKey().substring(1),
+                    MimeTypes.of(entry.getValue(), cacheControlHeader(entry.getValue())),
+                    CACHED_PREFIXES.contains(entry.getKey())));
+        }
+        router.add(Router.Route.download("/data/File", "data/File"));
+
+        staticCache = new StaticFileCache(STATIC_CACHE_BYTES, STATIC_CACHE_ENTRY_BYTES);
+        if (Files.isDirectory(Paths.get("data"))) {
+            staticCache.watch(Paths.get("data"));
+        }
+        StaticFileCache cache = staticCache;
+        Metrics.counter("static_cache_hits_total", "Static file cache hits", cache::getHits);
+        Metrics.counter("static_cache_misses_total", "Static file cache misses", cache::getMisses);
+        Metrics.counter("static_cache_evictions_total", "Entries evicted to stay within the byte limit",
+                cache::getEvictions);
+        Metrics.counter("static_cache_invalidations_total", "Entries dropped after a file change or clear()",
+                cache::getInvalidations);
+        Metrics.gauge("static_cache_bytes", "Bytes held by the static file cache", cache::getCurrentBytes);
+    }
+
+    public static StaticFileCache getStaticCache() {
+        return staticCache;
+    }
+
+    public static Router getRouter() {
+        return router;
+    }
+
+    // 运行时增加静态目录 contentType 为 null 时按扩展名判断
+    public static void addRoute(String prefix, String directory, String contentType) {
+        router.add(Router.Route.directory(prefix, directory,
+                contentType == null ? null : MimeTypes.of(contentType, cacheControlHeader(contentType)), false));
+    }
+
+    public static void addRoute(String prefix, RouteHandler handler) {
+        router.add(Router.Route.handler(prefix, handler));
+    }
+
+    // 找到与 Content-Type 匹配的最长前缀 返回完整的头部行 没有配置时返回空字符串
+    private static String cacheControlHeader(String contentType) {
+        String best = null;
+        for (Entry<String, String> entry : cacheControls.entrySet()) {
+            if (contentType.startsWith(entry.getKey()) && (best == null || entry.getKey().length() > best.length())) {
+                best = entry.getKey();
+            }
+        }
+        return best == null ? "" : "Cache-Control: " + cacheControls.get(best) + "\r\n";
     }
 
     public BuildResponse(Socket socket) throws IOException {
@@ -46,110 +164,525 @@ public class BuildResponse {
         this.OutputStream = this.socket.getOutputStream();
     }
 
+    public BuildResponse(Socket socket, BuildRequest request) throws IOException {
+        this(socket, request, false);
+    }
+
+    // keepAlive 由 ConnectionHandler 根据 Connection 头和连接上限决定
+    public BuildResponse(Socket socket, BuildRequest request, boolean keepAlive) throws IOException {
+        this(socket);
+        this.request = request;
+        this.keepAlive = keepAlive;
+        this.headOnly = request != null && "HEAD".equals(request.getRequestType());
+    }
+
+    private static ByteBuffer directAscii(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private ByteBuffer connectionTail() {
+        return (keepAlive ? KEEP_ALIVE_TAIL : CLOSE_TAIL).duplicate();
+    }
+
+    private String connectionHeader() {
+        return keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n";
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    // 在发送响应之前调用 响应带 Connection: close 发送后关闭连接 (例如请求体没有读完)
+    public void closeAfterResponse() {
+        keepAlive = false;
+    }
+
+    // 还没有发送时为 0
+    public int getStatus() {
+        return status;
+    }
+
+    public long getFirstByteNanos() {
+        return firstByteNanos;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    // 每次写出之前调用 第一次写出的是响应行 "HTTP/1.1 200 OK" 从中取得状态码
+    private void sending(ByteBuffer head, long bytes) {
+        if (firstByteNanos == 0) {
+            firstByteNanos = System.nanoTime();
+            int p = head.position();
+            if (head.remaining() >= 12 && head.get(p) == 'H' && head.get(p + 8) == ' ') {
+                int code = 0;
+                for (int i = p + 9; i < p + 12; i++) {
+                    code = code * 10 + (head.get(i) - '0');
+                }
+                status = code;
+            }
+        }
+        bytesSent += bytes;
+    }
+
+    private void sending(byte[] data) {
+        sending(firstByteNanos == 0 ? ByteBuffer.wrap(data) : null, data.length);
+    }
+
     public void output_HTML(String Data) throws IOException {
         if (Data != null) {
-            OutputStream.write("HTTP/1.1 200 OK\r\n".getBytes());
-            OutputStream.write("content-type:text/html;charset=utf-8\r\n\r\n".getBytes());// content-type:text/html
-            OutputStream.write(Data.getBytes());
+            byte[] body = Data.getBytes(StandardCharsets.UTF_8);
+            byte[] head = ("HTTP/1.1 200 OK\r\n" + "content-type:text/html;charset=utf-8\r\n"
+                    + "Content-Length: " + body.length + "\r\n" + connectionHeader() + "\r\n").getBytes();
+            sending(head);
+            OutputStream.write(head);
+            if (!headOnly) {
+                sending(body);
+                OutputStream.write(body);
+            }
         }
     }
 
+    // 简单的状态响应 例如 404 Not Found 带 Content-Length 以便保持连接
+    public void output_Status(int code, String reason) throws IOException {
+        output_Status(code, reason, "");
+    }
+
+    // headers 为完整的头部行 例如 405 的 "Allow: GET, HEAD\r\n"
+    public void output_Status(int code, String reason, String headers) throws IOException {
+        byte[] body = (code + " " + reason + "\n").getBytes(StandardCharsets.UTF_8);
+        byte[] head = ("HTTP/1.1 " + code + " " + reason + "\r\n" + "Content-Type: text/plain;charset=utf-8\r\n"
+                + headers + "Content-Length: " + body.length + "\r\n" + connectionHeader() + "\r\n").getBytes();
+        sending(head);
+        OutputStream.write(head);
+        if (!headOnly) {
+            sending(body);
+            OutputStream.write(body);
+        }
+    }
+
+    // 200 响应 contentType 为 Content-Type 的值
+    public void output_Content(String contentType, byte[] body) throws IOException {
+        output_Content(200, "OK", contentType, body);
+    }
+
+    public void output_Content(int code, String reason, String contentType, byte[] body) throws IOException {
+        writeBuffers(ascii("HTTP/1.1 " + code + " " + reason + "\r\nContent-Type: " + contentType
+                + "\r\nContent-Length: " + body.length + "\r\n" + connectionHeader() + "\r\n"),
+                ByteBuffer.wrap(body, 0, headOnly ? 0 : body.length));
+    }
+
     public void output_Data(String Data) throws IOException {
         if (Data != null) {
-            OutputStream.write(Data.getBytes());
+            byte[] data = Data.getBytes();
+            sending(data);
+            OutputStream.write(data);
         }
     }
 
     // 带有一定保护的文件响应
     public void output_File(String contentType, String filePath) throws IOException {
-        File file = new File(filePath);
-        if (!file.exists()) {
-            // TODO 404 没有这个文件
+        output_File(contentType, filePath, "");
+    }
+
+    // cacheControl 为完整的 Cache-Control 头部行 可以为空字符串
+    public void output_File(String contentType, String filePath, String cacheControl) throws IOException {
+        output_File(ascii(contentType + cacheControl), contentType, cacheControl, filePath);
+    }
 
-            log.print("file not exits");
+    // typeHeaders: 已编码的 contentType + cacheControl (MimeTypes.Type.getHeaderBytes) 直接加入 gathering write
+    private void output_File(ByteBuffer typeHeaders, String contentType, String cacheControl, String filePath)
+            throws IOException {
+        if (filePath.contains("./")) {
+            // 企图访问以本目录为根以外的文件 - 非法请求文件
+            output_Status(403, "Forbidden");
             return;
         }
-        if (filePath.contains("./")) {
-            // TODO 企图访问以本目录为根以外的文件 - 非法请求文件
+        // 校验信息来自缓存 304 不需要访问文件系统
+        StaticFileCache.Validators validators;
+        try {
+            validators = staticCache != null ? staticCache.getValidators(filePath)
+                    : StaticFileCache.readValidators(filePath);
+        } catch (InvalidPathException e) {
+            // 解码后的路径含有 \0 或文件系统编码无法表示的字符
+            validators = null;
+        }
+        if (validators == null) {
+            // 404 没有这个文件
+            log.print(LOGX.DEBUG, "file not exits");
+            output_Status(404, "Not Found");
+            return;
+        }
+        String validatorHeaders = "ETag: " + validators.getEtag() + "\r\nLast-Modified: "
+                + validators.getLastModifiedHttp() + "\r\n";
+        if (notModified(validators.getEtag(), validators.getLastModified())) {
+            writeBuffers(ascii("HTTP/1.1 304 Not Modified\r\n" + validatorHeaders + cacheControl + connectionHeader()
+                    + "\r\n"));
             return;
         }
 
-        InputStream in = new FileInputStream(filePath);
-        byte[] bytes = new byte[1024 * 14];// 14436
-        int len;
-        OutputStream.write("HTTP/1.1 200 OK\r\n".getBytes("UTF-8"));
-        OutputStream.write(contentType.getBytes("UTF-8"));
-        OutputStream.write(("Content-Length: " + file.length() + "\r\n").getBytes());
-        OutputStream.write("\r\n".getBytes("UTF-8"));
-        while ((len = in.read(bytes)) != -1) {
-            OutputStream.write(bytes, 0, len);
+        FileChannel fileChannel;
+        try {
+            fileChannel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            // 校验信息过期 文件刚被删除
+            if (staticCache != null) {
+                staticCache.invalidate(filePath);
+            }
+            output_Status(404, "Not Found");
+            return;
+        }
+        try {
+            long length = fileChannel.size();
+            // 状态行和 typeHeaders 之后的部分
+            String headers = "Accept-Ranges: bytes\r\n" + validatorHeaders;
+            List<long[]> ranges = requestedRanges(length, validators.getLastModifiedHttp());
+            if (ranges == null) {
+                output_File_Full(fileChannel, typeHeaders, headers, length);
+            } else if (ranges.isEmpty()) {
+                writeBuffers(ascii("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */" + length
+                        + "\r\nContent-Length: 0\r\n" + connectionHeader() + "\r\n"));
+            } else if (ranges.size() == 1) {
+                output_File_Range(fileChannel, typeHeaders, headers, length, ranges.get(0));
+            } else {
+                output_File_MultiRange(fileChannel, contentType, cacheControl + headers, length, ranges);
+            }
+        } finally {
+            fileChannel.close();
         }
-        OutputStream.close();
-        in.close();
     }
 
-    // More Convenient Method > use path or file name parser
-    // 更加安全 但由于硬编码 不利于维护
+    // 发送缓存中的文件 响应头与内容一次 gathering write
+    // 客户端接受 gzip 且存在压缩版本时发送压缩版本
+    // 满足 If-None-Match / If-Modified-Since 时只发送预先编码的 304 响应头
+    private void output_Cached(StaticFileCache.Entry entry) throws IOException {
+        StaticFileCache.Variant variant = entry.hasGzip() && acceptsGzip() ? entry.getGzip() : entry.getIdentity();
+        if (notModified(variant.getEtag(), entry.getLastModified())) {
+            writeBuffers(variant.getNotModifiedHead(), connectionTail());
+        } else if (headOnly) {
+            writeBuffers(variant.getHead(), connectionTail());
+        } else {
+            writeBuffers(variant.getHead(), connectionTail(), variant.getBody());
+        }
+    }
 
-    public void output_File_Fast_path(String filePath) {
-        // 定义一个Map来映射文件路径前缀到 ContentType 和 file_dir
-
-        String ContentType = null;
-        String file_dir = null;
-        int offset = 0;
-
-        if (filePath.startsWith("/data/File")) {
-            // File文件请求需要动态处理
-            ContentType = "application/octet-stream; Content-Disposition: attachment; filename=\""
-                    + filePath.substring(filePath.lastIndexOf('/') + 1);
-            file_dir = "data/File/";
-            offset = 10;
+    // 条件请求 If-None-Match 优先 (弱比较) 没有时才检查 If-Modified-Since (秒精度)
+    private boolean notModified(String etag, long lastModified) {
+        if (request == null) {
+            return false;
+        }
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*") || opaqueTag(tag).equals(opaqueTag(etag))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = request.getHeader("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                long since = Instant.from(HTTP_DATE.parse(ifModifiedSince.trim())).getEpochSecond();
+                return lastModified / 1000 <= since;
+            } catch (DateTimeException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static String opaqueTag(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    // gathering write socket 不是 channel 时逐个写入输出流
+    private void writeBuffers(ByteBuffer... buffers) throws IOException {
+        long bytes = 0;
+        for (ByteBuffer buffer : buffers) {
+            bytes += buffer.remaining();
+        }
+        sending(buffers[0], bytes);
+        SocketChannel channel = socket.getChannel();
+        if (channel != null && channel.isBlocking()) {
+            while (hasRemaining(buffers)) {
+                channel.write(buffers);
+            }
         } else {
-            // 遍历Map查找匹配的前缀
-            for (Entry<String, String> entry : fileTypes.entrySet()) {
-                if (filePath.startsWith(entry.getKey())) {
-                    ContentType = entry.getValue();
-                    file_dir = entry.getKey().substring(1);
-                    break;
+            WritableByteChannel out = Channels.newChannel(OutputStream);
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
                 }
             }
         }
+    }
 
-        if (file_dir != null) {
-            offset = file_dir.length() + 1;
-            // 如果匹配到相应的路径前缀，动态计算 offset
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            // 响应文件
-            try {
-                output_File("Content-Type: " + ContentType + ";charset=utf-8\r\n",
-                        file_dir + filePath.substring(offset));
-            } catch (IOException e) {
-                e.printStackTrace();
+    // Accept-Encoding 协商 gzip 或 * 且 q 不为 0
+    private boolean acceptsGzip() {
+        String acceptEncoding = request == null ? null : request.getHeader("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String token : acceptEncoding.split(",")) {
+            String[] parts = token.split(";");
+            String coding = parts[0].trim();
+            if (!coding.equalsIgnoreCase("gzip") && !coding.equals("*")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
             }
+            return true;
         }
+        return false;
     }
 
-    // 方便快捷 适用于所有情况
-    public void output_File_Fast_suffix(String filePath) {
-        if (filePath.endsWith(".html")) {
+    // 完整文件 / whole file
+    // 先写响应头 再 FileChannel.transferTo (sendfile) 零拷贝 与文件大小无关
+    // 不按请求映射文件: MappedByteBuffer 要等 GC 才释放 请求多时会耗尽 vm.max_map_count
+    // 需要一次 writev 的小文件由 StaticFileCache 提供 (output_Cached)
+    private void output_File_Full(FileChannel fileChannel, ByteBuffer typeHeaders, String headers, long length)
+            throws IOException {
+        writeBuffers(STATUS_200.duplicate(), typeHeaders, ascii(headers + "Content-Length: " + length + "\r\n"
+                + connectionHeader() + "\r\n"));
+        if (!headOnly) {
+            sendRegion(fileChannel, 0, length);
+        }
+    }
 
-        } else if (filePath.endsWith(".css")) {
+    // 单个范围 206 Partial Content
+    private void output_File_Range(FileChannel fileChannel, ByteBuffer typeHeaders, String headers, long length,
+            long[] range) throws IOException {
+        long count = range[1] - range[0] + 1;
+        writeBuffers(STATUS_206.duplicate(), typeHeaders, ascii(headers + "Content-Range: bytes " + range[0] + "-"
+                + range[1] + "/" + length + "\r\nContent-Length: " + count + "\r\n" + connectionHeader() + "\r\n"));
+        if (!headOnly) {
+            sendRegion(fileChannel, range[0], count);
+        }
+    }
 
-        } else if (filePath.endsWith(".js")) {
+    // 多个范围 multipart/byteranges 预先计算总长度 以便保持连接
+    private void output_File_MultiRange(FileChannel fileChannel, String contentType, String headers, long length,
+            List<long[]> ranges) throws IOException {
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+        ByteBuffer[] partHeads = new ByteBuffer[ranges.size()];
+        long total = 0;
+        for (int i = 0; i < partHeads.length; i++) {
+            long[] range = ranges.get(i);
+            partHeads[i] = ascii("\r\n--" + boundary + "\r\n" + contentType + "Content-Range: bytes " + range[0]
+                    + "-" + range[1] + "/" + length + "\r\n\r\n");
+            total += partHeads[i].remaining() + range[1] - range[0] + 1;
+        }
+        ByteBuffer tail = ascii("\r\n--" + boundary + "--\r\n");
+        total += tail.remaining();
 
-        } else if (filePath.endsWith(".mp3")) {
+        writeBuffers(ascii("HTTP/1.1 206 Partial Content\r\nContent-Type: multipart/byteranges; boundary="
+                + boundary + "\r\n" + headers + "Content-Length: " + total + "\r\n" + connectionHeader()
+                + "\r\n"));
+        if (headOnly) {
+            return;
+        }
+        for (int i = 0; i < partHeads.length; i++) {
+            long[] range = ranges.get(i);
+            writeBuffers(partHeads[i]);
+            sendRegion(fileChannel, range[0], range[1] - range[0] + 1);
+        }
+        writeBuffers(tail);
+    }
 
-        } else if (filePath.endsWith(".mp4")) {
+    // 发送文件中从 position 开始的 count 个字节 不读取 position 之前的内容
+    private void sendRegion(FileChannel fileChannel, long position, long count) throws IOException {
+        bytesSent += count;
+        long end = position + count;
+        SocketChannel channel = socket.getChannel();
+        if (channel != null && channel.isBlocking()) {
+            while (position < end) {
+                long sent = fileChannel.transferTo(position, end - position, channel);
+                if (sent <= 0) {
+                    // 文件在发送过程中被截断
+                    throw new IOException("File truncated while sending");
+                }
+                position += sent;
+            }
+        } else {
+            // 旧的流式路径 socket 不是 channel 时使用
+            ByteBuffer buffer = ByteBuffer.allocate(1024 * 14);// 14436
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int len = fileChannel.read(buffer, position);
+                if (len < 0) {
+                    throw new IOException("File truncated while sending");
+                }
+                OutputStream.write(buffer.array(), 0, len);
+                position += len;
+            }
+        }
+    }
+
+    // 解析 Range 头 (只支持 bytes 单位)
+    // 返回 null 表示忽略 Range 发送完整文件; 返回空列表表示所有范围都无法满足 (416)
+    private List<long[]> requestedRanges(long length, String lastModified) {
+        String range = request == null ? null : request.getHeader("Range");
+        if (range == null || !range.startsWith("bytes=")) {
+            return null;
+        }
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange != null && !ifRange.trim().equals(lastModified)) {
+            // 文件已经变化 发送完整的新文件
+            return null;
+        }
+        String[] specs = range.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                long start;
+                long end;
+                if (dash == 0) {
+                    // -N 表示最后 N 个字节
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0 || length == 0) {
+                        continue;
+                    }
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    if (dash == spec.length() - 1) {
+                        end = length - 1;
+                    } else {
+                        end = Long.parseLong(spec.substring(dash + 1));
+                        if (end < start) {
+                            return null;
+                        }
+                    }
+                    if (start >= length) {
+                        continue;
+                    }
+                    end = Math.min(end, length - 1);
+                }
+                ranges.add(new long[] { start, end });
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges;
+    }
+
+    static String httpDate(long millis) {
+        return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+    }
+
+    private static ByteBuffer ascii(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // More Convenient Method > use path or file name parser
+    // 更加安全 路由表由 fileTypes 编译而来 运行时可以 addRoute
 
-        } else if (filePath.endsWith(".png")) {
+    public void output_File_Fast_path(String filePath) {
+        // 路由表按路径段匹配最长前缀 不再逐个遍历 fileTypes
+        Router.Route route = router.match(filePath);
+        try {
+            if (route == null) {
+                output_Status(404, "Not Found");
+            } else if (route.getHandler() != null) {
+                route.getHandler().handle(request, this);
+            } else {
+                output_Route(route, filePath);
+            }
+        } catch (IOException e) {
+            // 响应可能只发送了一部分 不能再复用这个连接
+            keepAlive = false;
+            log.print(LOGX.DEBUG, () -> "Failed to send " + filePath + ": " + e.getMessage());
+        }
+    }
 
+    private void output_Route(Router.Route route, String filePath) throws IOException {
+        String remainder = route.remainder(filePath);
+        if (route.getDirectory() == null || remainder.length() <= 1) {
+            output_Status(404, "Not Found");
+            return;
         }
-        for (Entry<String, String> entry : fileflag.entrySet()) {
-            if (filePath.startsWith(entry.getKey())) {
-                String ContentType = entry.getValue();
-                String file_dir = entry.getKey().substring(1);
-                break;
+        String localPath = route.getDirectory() + remainder;
+        MimeTypes.Type type = route.typeFor(localPath);
+        if (route.isAttachment()) {
+            // Content-Disposition 因文件而异 不能预先编码
+            output_File("Content-Type: " + MimeTypes.DEFAULT_TYPE + "\r\n"
+                    + contentDisposition(localPath.substring(localPath.lastIndexOf('/') + 1)), localPath,
+                    type.getCacheControlHeader());
+            return;
+        }
+        if (staticCache != null && route.isCacheable() && !localPath.contains("./")) {
+            StaticFileCache.Entry cached = staticCache.get(localPath, type.getHeader(), type.getCacheControlHeader(),
+                    type.isCompressible());
+            if (cached != null) {
+                output_Cached(cached);
+                return;
+            }
+        }
+        output_File(type.getHeaderBytes(), type.getHeader(), type.getCacheControlHeader(), localPath);
+    }
+
+    // filename 只保留可打印 ASCII 完整的 UTF-8 名称放在 filename* 中 (RFC 6266)
+    private static String contentDisposition(String fileName) {
+        StringBuilder plain = new StringBuilder();
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : fileName.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xFF;
+            plain.append(c >= 0x20 && c < 0x7F && c != '"' && c != '\\' ? (char) c : '_');
+            if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || "!#$&+-.^_`|~".indexOf(c) >= 0) {
+                encoded.append((char) c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+            }
+        }
+        return "Content-Disposition: attachment; filename=\"" + plain + "\"; filename*=UTF-8''" + encoded + "\r\n";
+    }
+
+    // 方便快捷 适用于所有情况
+    // 只按扩展名判断类型 请求路径直接对应 data/ 下的文件
+    public void output_File_Fast_suffix(String filePath) {
+        try {
+            if (!filePath.startsWith("/data/") || filePath.length() <= 6) {
+                output_Status(404, "Not Found");
+                return;
             }
+            MimeTypes.Type type = MimeTypes.forPath(filePath);
+            output_File(type.getHeaderBytes(), type.getHeader(), type.getCacheControlHeader(), filePath.substring(1));
+        } catch (IOException e) {
+            keepAlive = false;
+            log.print(LOGX.DEBUG, () -> "Failed to send " + filePath + ": " + e.getMessage());
         }
     }
 }
\ No newline at end of file
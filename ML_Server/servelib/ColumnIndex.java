@@ -0,0 +1,70 @@
+package servelib;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// LightweightDataManager 某一列的哈希索引 / secondary hash index on one column
+// 按值直接找到行号 不需要扫描整张表
+// 每个值对应一个有序的 int[] 修改时整体替换 大多数值只有一行 占用很小
+final class ColumnIndex {
+    private static final int[] NONE = new int[0];
+
+    final String column;
+    final boolean unique;
+    final Map<String, int[]> rows = new ConcurrentHashMap<>();
+
+    ColumnIndex(String column, boolean unique) {
+        this.column = column;
+        this.unique = unique;
+    }
+
+    // 按行号从小到大 调用方不能修改
+    int[] lookup(String value) {
+        int[] found = rows.get(value);
+        return found == null ? NONE : found;
+    }
+
+    // 唯一索引下 value 已被其他行使用
+    boolean conflicts(String value, int rowNumber) {
+        if (!unique) {
+            return false;
+        }
+        int[] found = rows.get(value);
+        return found != null && !(found.length == 1 && found[0] == rowNumber);
+    }
+
+    void add(String value, int rowNumber) {
+        rows.compute(value, (k, found) -> {
+            if (found == null) {
+                return new int[] { rowNumber };
+            }
+            int at = Arrays.binarySearch(found, rowNumber);
+            if (at >= 0) {
+                return found;
+            }
+            at = -at - 1;
+            int[] grown = new int[found.length + 1];
+            System.arraycopy(found, 0, grown, 0, at);
+            grown[at] = rowNumber;
+            System.arraycopy(found, at, grown, at + 1, found.length - at);
+            return grown;
+        });
+    }
+
+    void remove(String value, int rowNumber) {
+        rows.computeIfPresent(value, (k, found) -> {
+            int at = Arrays.binarySearch(found, rowNumber);
+            if (at < 0) {
+                return found;
+            }
+            if (found.length == 1) {
+                return null;
+            }
+            int[] shrunk = new int[found.length - 1];
+            System.arraycopy(found, 0, shrunk, 0, at);
+            System.arraycopy(found, at + 1, shrunk, at, found.length - at - 1);
+            return shrunk;
+        });
+    }
+}
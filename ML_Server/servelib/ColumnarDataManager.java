@@ -0,0 +1,660 @@
+package servelib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.DoubleSummaryStatistics;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import servelib.log.LOGH;
+import servelib.log.LOGX;
+
+// 带类型的二进制列存表 / typed columnar table behind the TableStore API
+// 每列一个块 (见 ColumnarFile) 数值不再以文本保存 扫描只读用到的列
+// 修改写入 "<表>.delta" 日志并保存在内存中 读取时覆盖文件中的值
+// 修改数超过阈值时后台压缩: 写出合并后的新文件 原子替换 清空日志
+public class ColumnarDataManager implements TableStore {
+
+    public static enum ColumnType {
+        INT, LONG, DOUBLE, BOOLEAN, STRING
+    }
+
+    public static final class Column {
+        private final String name;
+        private final ColumnType type;
+        private final boolean nullable;
+
+        public Column(String name, ColumnType type, boolean nullable) {
+            this.name = name;
+            this.type = type;
+            this.nullable = nullable;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public ColumnType getType() {
+            return type;
+        }
+
+        public boolean isNullable() {
+            return nullable;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + type + (nullable ? " NULL" : "");
+        }
+    }
+
+    private static final String NULL = "null";
+    private static final int MIN_COMPACTION_CHANGES = 64 * 1024;
+    private static final log log = new log();
+
+    // 文件和它之后的修改 压缩时整体替换 读者只读一次 state
+    private static final class State {
+        final ColumnarFile file;
+        final Map<Long, Optional<String>> changes = new ConcurrentHashMap<>(); // 行号 * 列数 + 列 -> 新值
+
+        State(ColumnarFile file) {
+            this.file = file;
+        }
+
+        long key(int row, int column) {
+            return (long) row * file.columns.size() + column;
+        }
+
+        String format(int column, int row) {
+            if (!changes.isEmpty()) {
+                Optional<String> changed = changes.get(key(row, column));
+                if (changed != null) {
+                    return changed.orElse(null);
+                }
+            }
+            return file.format(column, row);
+        }
+    }
+
+    private final String filePath;
+    private final Path deltaPath;
+    private volatile State state;
+    private FileChannel delta;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    public ColumnarDataManager(String filePath) {
+        this.filePath = filePath;
+        this.deltaPath = Paths.get(filePath + ".delta");
+        try {
+            state = new State(ColumnarFile.open(Paths.get(filePath)));
+            replayDelta();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open " + filePath, e);
+        }
+    }
+
+    // 日志记录: 行号 (int) | 列 (int) | 长度 (int, -1 表示空值) | UTF-8 字节
+    // 最后一条记录不完整时 (写入时崩溃) 截掉
+    private void replayDelta() throws IOException {
+        delta = FileChannel.open(deltaPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        State current = state;
+        long size = delta.size();
+        long position = 0;
+        ByteBuffer head = ByteBuffer.allocate(12);
+        while (position + 12 <= size) {
+            head.clear();
+            delta.read(head, position);
+            head.flip();
+            int row = head.getInt();
+            int column = head.getInt();
+            int length = head.getInt();
+            if (position + 12 + Math.max(length, 0) > size || row < 0 || row >= current.file.rows
+                    || column < 0 || column >= current.file.columns.size()) {
+                break;
+            }
+            String value = null;
+            if (length >= 0) {
+                ByteBuffer bytes = ByteBuffer.allocate(length);
+                delta.read(bytes, position + 12);
+                value = new String(bytes.array(), StandardCharsets.UTF_8);
+            }
+            current.changes.put(current.key(row, column), Optional.ofNullable(value));
+            position += 12 + Math.max(length, 0);
+        }
+        if (position < size) {
+            log.print(LOGH.SYSTEM, LOGX.WARN, "Discarding " + (size - position) + " bytes of incomplete changes in "
+                    + deltaPath);
+            delta.truncate(position);
+        }
+    }
+
+    // 从 | 分隔的文本表 (LightweightDataManager) 转换 列类型按内容推断
+    // 源表以 READ_ONLY 打开 不会被压缩或替换 只打开一次
+    public static void convert(String source, String target) {
+        LightweightDataManager text = openSource(source);
+        try {
+            convert(text, source, target, inferSchema(text));
+        } finally {
+            text.shutdown();
+        }
+    }
+
+    // schema 的列名必须都在源表中 值 "null" 作为空值
+    // 不能按列的类型原样保存的值 (例如 DOUBLE 列中的 "1.50") 抛出 IllegalArgumentException 不会被改写
+    public static void convert(String source, String target, List<Column> schema) {
+        LightweightDataManager text = openSource(source);
+        try {
+            convert(text, source, target, schema);
+        } finally {
+            text.shutdown();
+        }
+    }
+
+    private static LightweightDataManager openSource(String source) {
+        return new LightweightDataManager(source, LightweightDataManager.StorageMode.READ_ONLY);
+    }
+
+    private static void convert(LightweightDataManager text, String source, String target, List<Column> schema) {
+        Path output = Paths.get(target);
+        Path temp = Paths.get(target + ".tmp");
+        try (Stream<String[]> rows = text.query().sequential()
+                .select(schema.stream().map(Column::getName).toArray(String[]::new)).stream();
+             ColumnarFile.Writer writer = new ColumnarFile.Writer(temp, schema)) {
+            Iterator<String[]> it = rows.iterator();
+            int row = 0;
+            while (it.hasNext()) {
+                String[] values = it.next();
+                row++;
+                for (int i = 0; i < values.length; i++) {
+                    try {
+                        values[i] = normalize(schema.get(i), values[i]);
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Row " + row + ": " + e.getMessage(), e);
+                    }
+                }
+                writer.add(values);
+            }
+            writer.finish();
+            replace(temp, output);
+            Files.deleteIfExists(Paths.get(target + ".delta"));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to convert " + source, e);
+        }
+    }
+
+    // 每列选能容纳所有非空值的最窄类型 出现过 "null" 的列可空
+    // 只选读出来与原文相同的类型: 数字必须是规范写法 ("007" "1.50" "1e5" 保留为字符串)
+    // 整数和小数混合的列也是字符串 (DOUBLE 会把 "100" 读成 "100.0")
+    public static List<Column> inferSchema(String source) {
+        LightweightDataManager text = openSource(source);
+        try {
+            return inferSchema(text);
+        } finally {
+            text.shutdown();
+        }
+    }
+
+    private static List<Column> inferSchema(LightweightDataManager text) {
+        List<String> headers = text.getHeaders();
+        int count = headers.size();
+        ColumnType[] types = new ColumnType[count];
+        boolean[] nullable = new boolean[count];
+        try (Stream<String[]> rows = text.query().sequential().stream()) {
+            rows.forEach(values -> {
+                for (int i = 0; i < count; i++) {
+                    String value = i < values.length ? values[i] : NULL;
+                    if (value.equals(NULL)) {
+                        nullable[i] = true;
+                    } else {
+                        types[i] = widen(types[i], value);
+                    }
+                }
+            });
+        }
+        List<Column> schema = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            schema.add(new Column(headers.get(i), types[i] == null ? ColumnType.STRING : types[i], nullable[i]));
+        }
+        return schema;
+    }
+
+    // INT < LONG 按需放宽 其他组合只能是 STRING
+    private static ColumnType widen(ColumnType type, String value) {
+        if (type == ColumnType.STRING) {
+            return type;
+        }
+        ColumnType found;
+        if (value.equals("true") || value.equals("false")) {
+            found = ColumnType.BOOLEAN;
+        } else if (isLong(value)) {
+            long number = Long.parseLong(value);
+            found = number == (int) number ? ColumnType.INT : ColumnType.LONG;
+        } else if (isDecimal(value) && Double.toString(Double.parseDouble(value)).equals(value)) {
+            found = ColumnType.DOUBLE;
+        } else {
+            found = ColumnType.STRING;
+        }
+        if (type == null || type == found) {
+            return found;
+        }
+        if (type == ColumnType.STRING || found == ColumnType.STRING
+                || type == ColumnType.BOOLEAN || found == ColumnType.BOOLEAN
+                || type == ColumnType.DOUBLE || found == ColumnType.DOUBLE) {
+            return ColumnType.STRING;
+        }
+        return found.ordinal() > type.ordinal() ? found : type;
+    }
+
+    private static boolean isLong(String value) {
+        int start = value.startsWith("-") ? 1 : 0;
+        if (value.length() == start || value.length() > 20) {
+            return false;
+        }
+        for (int i = start; i < value.length(); i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                return false;
+            }
+        }
+        try {
+            return Long.toString(Long.parseLong(value)).equals(value);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // 只接受十进制写法 不接受 "NaN" "1f" "0x10" 等 Double.parseDouble 允许的形式 也不接受前导零
+    private static boolean isDecimal(String value) {
+        int start = value.startsWith("-") || value.startsWith("+") ? 1 : 0;
+        if (value.length() > start + 1 && value.charAt(start) == '0' && Character.isDigit(value.charAt(start + 1))) {
+            return false;
+        }
+        boolean digit = false;
+        for (int i = start; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digit = true;
+            } else if (c != '.' && c != '-' && c != '+' && c != 'e' && c != 'E') {
+                return false;
+            }
+        }
+        if (!digit) {
+            return false;
+        }
+        try {
+            Double.parseDouble(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // 检查写入的值 空值返回 null
+    // 读出来必须与写入的相同: 非规范写法 ("+5" "1.50" "100" 写入 DOUBLE 列) 抛出异常 不改写成规范写法
+    static String normalize(Column column, String value) {
+        if (value == null || value.equals(NULL)) {
+            if (!column.isNullable()) {
+                throw new IllegalArgumentException("Column " + column.getName() + " is not nullable");
+            }
+            return null;
+        }
+        String stored;
+        try {
+            switch (column.getType()) {
+                case INT:
+                    stored = Integer.toString(Integer.parseInt(value));
+                    break;
+                case LONG:
+                    stored = Long.toString(Long.parseLong(value));
+                    break;
+                case DOUBLE:
+                    stored = Double.toString(Double.parseDouble(value));
+                    break;
+                case BOOLEAN:
+                    stored = Boolean.toString(parseBoolean(value));
+                    break;
+                default:
+                    return value;
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a valid " + column.getType() + " for column " + column.getName()
+                    + ": " + value);
+        }
+        if (!stored.equals(value)) {
+            throw new IllegalArgumentException("Column " + column.getName() + " cannot store " + value
+                    + " exactly (would read back as " + stored + ")");
+        }
+        return value;
+    }
+
+    static boolean parseBoolean(String value) {
+        if (value.equals("true")) {
+            return true;
+        }
+        if (value.equals("false")) {
+            return false;
+        }
+        throw new IllegalArgumentException("Not a boolean: " + value);
+    }
+
+    public List<Column> getSchema() {
+        return state.file.columns;
+    }
+
+    @Override
+    public List<String> getHeaders() {
+        return state.file.columns.stream().map(Column::getName).collect(Collectors.toUnmodifiableList());
+    }
+
+    @Override
+    public int size() {
+        return state.file.rows;
+    }
+
+    private int columnIndex(State current, String column) {
+        List<Column> columns = current.file.columns;
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).getName().equals(column)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Column not found: " + column);
+    }
+
+    private static int rowIndex(State current, int id) {
+        if (id < 1 || id > current.file.rows) {
+            throw new IllegalArgumentException("Row number out of range: " + id);
+        }
+        return id - 1;
+    }
+
+    @Override
+    public String get(int id, String column) {
+        State current = state;
+        String value = current.format(columnIndex(current, column), rowIndex(current, id));
+        return value == null ? NULL : value;
+    }
+
+    @Override
+    public String get(String searchColumn, String searchValue, String targetColumn) {
+        State current = state;
+        int targetIndex = columnIndex(current, targetColumn);
+        IntPredicate matches = matcher(current, searchColumn, searchValue);
+        for (int row = 0; row < current.file.rows; row++) {
+            if (matches.test(row)) {
+                String value = current.format(targetIndex, row);
+                return value == null ? NULL : value;
+            }
+        }
+        return null;
+    }
+
+    // 只扫描 searchColumn 一列 并行
+    @Override
+    public List<Integer> find(String searchColumn, String searchValue) {
+        State current = state;
+        IntPredicate matches = matcher(current, searchColumn, searchValue);
+        return IntStream.range(0, current.file.rows).parallel().filter(matches).map(row -> row + 1).boxed()
+                .collect(Collectors.toList());
+    }
+
+    private IntPredicate matcher(State current, String searchColumn, String searchValue) {
+        int searchIndex = columnIndex(current, searchColumn);
+        String wanted;
+        try {
+            wanted = normalize(current.file.column(searchIndex), searchValue);
+        } catch (IllegalArgumentException e) {
+            // 类型不符 不可能匹配
+            return row -> false;
+        }
+        IntPredicate base = current.file.equalTo(searchIndex, wanted);
+        return row -> {
+            if (!current.changes.isEmpty()) {
+                Optional<String> changed = current.changes.get(current.key(row, searchIndex));
+                if (changed != null) {
+                    return Objects.equals(changed.orElse(null), wanted);
+                }
+            }
+            return base.test(row);
+        };
+    }
+
+    public boolean isNull(int id, String column) {
+        State current = state;
+        return current.format(columnIndex(current, column), rowIndex(current, id)) == null;
+    }
+
+    public long getLong(int id, String column) {
+        return Long.parseLong(typed(id, column, ColumnType.INT, ColumnType.LONG));
+    }
+
+    public int getInt(int id, String column) {
+        return Integer.parseInt(typed(id, column, ColumnType.INT));
+    }
+
+    public double getDouble(int id, String column) {
+        return Double.parseDouble(typed(id, column, ColumnType.INT, ColumnType.LONG, ColumnType.DOUBLE));
+    }
+
+    public boolean getBoolean(int id, String column) {
+        return parseBoolean(typed(id, column, ColumnType.BOOLEAN));
+    }
+
+    private String typed(int id, String column, ColumnType... allowed) {
+        State current = state;
+        int columnIndex = columnIndex(current, column);
+        ColumnType type = current.file.column(columnIndex).getType();
+        boolean ok = false;
+        for (ColumnType t : allowed) {
+            ok |= t == type;
+        }
+        if (!ok) {
+            throw new IllegalArgumentException("Column " + column + " is " + type);
+        }
+        String value = current.format(columnIndex, rowIndex(current, id));
+        if (value == null) {
+            throw new IllegalStateException("Null value in " + column + " at row " + id);
+        }
+        return value;
+    }
+
+    // 数值列的 count/sum/min/max 空值跳过 只读这一列
+    public DoubleSummaryStatistics stats(String column) {
+        State current = state;
+        int columnIndex = columnIndex(current, column);
+        ColumnType type = current.file.column(columnIndex).getType();
+        if (type != ColumnType.INT && type != ColumnType.LONG && type != ColumnType.DOUBLE) {
+            throw new IllegalArgumentException("Column " + column + " is " + type);
+        }
+        ColumnarFile file = current.file;
+        IntStream rows = IntStream.range(0, file.rows).parallel();
+        if (current.changes.isEmpty()) {
+            return rows.filter(row -> !file.isNull(columnIndex, row))
+                    .mapToDouble(row -> file.getDouble(columnIndex, row))
+                    .summaryStatistics();
+        }
+        // 有未压缩的修改时 被修改的行改用新值
+        return rows.filter(row -> {
+            Optional<String> changed = current.changes.get(current.key(row, columnIndex));
+            return changed != null ? changed.isPresent() : !file.isNull(columnIndex, row);
+        }).mapToDouble(row -> {
+            Optional<String> changed = current.changes.get(current.key(row, columnIndex));
+            return changed != null ? Double.parseDouble(changed.get()) : file.getDouble(columnIndex, row);
+        }).summaryStatistics();
+    }
+
+    // 按行号顺序惰性读取这些列 (文本形式 空值为 "null") 并行时在 fork-join 线程上读取
+    public Stream<String[]> scan(String... columns) {
+        State current = state;
+        int[] indexes = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indexes[i] = columnIndex(current, columns[i]);
+        }
+        return IntStream.range(0, current.file.rows).parallel().mapToObj(row -> {
+            String[] values = new String[indexes.length];
+            for (int i = 0; i < indexes.length; i++) {
+                String value = current.format(indexes[i], row);
+                values[i] = value == null ? NULL : value;
+            }
+            return values;
+        });
+    }
+
+    @Override
+    public void set(int id, String column, String value) {
+        writeLock.lock();
+        try {
+            State current = state;
+            int columnIndex = columnIndex(current, column);
+            int row = rowIndex(current, id);
+            String normalized = normalize(current.file.column(columnIndex), value);
+            appendChange(current, row, columnIndex, normalized);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to update row: " + (id - 1), e);
+        } finally {
+            writeLock.unlock();
+        }
+        maybeCompact();
+    }
+
+    @Override
+    public void set(String searchColumn, String searchValue, String targetColumn, String targetValue) {
+        writeLock.lock();
+        try {
+            State current = state;
+            int targetIndex = columnIndex(current, targetColumn);
+            String normalized = normalize(current.file.column(targetIndex), targetValue);
+            for (int id : find(searchColumn, searchValue)) {
+                appendChange(current, id - 1, targetIndex, normalized);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to update " + filePath, e);
+        } finally {
+            writeLock.unlock();
+        }
+        maybeCompact();
+    }
+
+    // 在 writeLock 内调用 先写日志再修改内存
+    private void appendChange(State current, int row, int column, String value) throws IOException {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(12 + bytes.length);
+        record.putInt(row).putInt(column).putInt(value == null ? -1 : bytes.length).put(bytes).flip();
+        long position = delta.size();
+        while (record.hasRemaining()) {
+            position += delta.write(record, position);
+        }
+        current.changes.put(current.key(row, column), Optional.ofNullable(value));
+    }
+
+    public int getPendingChanges() {
+        return state.changes.size();
+    }
+
+    private void maybeCompact() {
+        State current = state;
+        if (current.changes.size() < Math.max(MIN_COMPACTION_CHANGES, current.file.rows / 8)) {
+            return;
+        }
+        if (compacting.compareAndSet(false, true)) {
+            executor.submit(() -> {
+                try {
+                    compactNow();
+                } catch (RuntimeException e) {
+                    log.print(LOGH.SYSTEM, LOGX.WARN, "Compaction of " + filePath + " failed: " + e.getMessage());
+                } finally {
+                    compacting.set(false);
+                }
+            });
+        }
+    }
+
+    // 把日志中的修改合并进新文件
+    public void compact() {
+        compactNow();
+    }
+
+    private void compactNow() {
+        writeLock.lock();
+        try {
+            State current = state;
+            if (current.changes.isEmpty()) {
+                return;
+            }
+            Path output = Paths.get(filePath);
+            Path temp = Paths.get(filePath + ".tmp");
+            int count = current.file.columns.size();
+            try (ColumnarFile.Writer writer = new ColumnarFile.Writer(temp, current.file.columns)) {
+                String[] values = new String[count];
+                for (int row = 0; row < current.file.rows; row++) {
+                    for (int column = 0; column < count; column++) {
+                        values[column] = current.format(column, row);
+                    }
+                    writer.add(values);
+                }
+                writer.finish();
+            }
+            replace(temp, output);
+            state = new State(ColumnarFile.open(output));
+            delta.truncate(0);
+            delta.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to compact " + filePath, e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static void replace(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+        }
+        writeLock.lock();
+        try {
+            delta.force(false);
+            delta.close();
+        } catch (IOException e) {
+            log.print(LOGH.SYSTEM, LOGX.WARN, "Failed to close " + deltaPath + ": " + e.getMessage());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
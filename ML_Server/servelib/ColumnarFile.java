@@ -0,0 +1,573 @@
+package servelib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+import servelib.ColumnarDataManager.Column;
+import servelib.ColumnarDataManager.ColumnType;
+
+// ColumnarDataManager 的数据文件 / typed columnar table file
+// 格式 (大端 每个块按 8 字节对齐):
+//   magic "LDMC" | version | 行数 | 列数 | 文件头长度
+//   每列: 列名 | 类型 | 可空 | 编码 | 块偏移 | 块长度
+//   每列一个块: [null 位图 (可空的列)] 数据
+//     INT / LONG / DOUBLE: 定长数组  BOOLEAN: 位图
+//     STRING: PLAIN (行数 + 1 个偏移 + UTF-8 字节 字节数小于 2GB 时偏移是 int 否则是 long)
+//             或 DICT8 / DICT16 (字典 + 每行 1 / 2 字节的编号)
+// 打开时整个块 mmap 只有读到的列才会载入内存
+final class ColumnarFile {
+
+    private static final int MAGIC = 0x4C444D43;
+    private static final int VERSION = 1;
+    static final byte PLAIN = 0;
+    static final byte DICT8 = 1;
+    static final byte DICT16 = 2;
+    static final byte PLAIN64 = 3;
+    private static final int DICT_LIMIT = 1 << 16;
+    private static final long CHUNK = 1L << 30; // 8 的倍数 对齐的定长值不会跨块
+
+    final int rows;
+    final List<Column> columns;
+    private final Block[] blocks;
+
+    private ColumnarFile(int rows, List<Column> columns, Block[] blocks) {
+        this.rows = rows;
+        this.columns = columns;
+        this.blocks = blocks;
+    }
+
+    static ColumnarFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer fixed = ByteBuffer.allocate(20);
+            readFully(channel, fixed, 0);
+            fixed.flip();
+            if (fixed.remaining() < 20 || fixed.getInt() != MAGIC || fixed.getInt() != VERSION) {
+                throw new IOException("Not a columnar table: " + path);
+            }
+            int rows = fixed.getInt();
+            int count = fixed.getInt();
+            ByteBuffer header = ByteBuffer.allocate(fixed.getInt());
+            readFully(channel, header, 0);
+            header.flip().position(20);
+            List<Column> columns = new ArrayList<>(count);
+            Block[] blocks = new Block[count];
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[header.getInt()];
+                header.get(name);
+                ColumnType type = ColumnType.values()[header.get()];
+                boolean nullable = header.get() != 0;
+                byte encoding = header.get();
+                long offset = header.getLong();
+                long length = header.getLong();
+                Column column = new Column(new String(name, StandardCharsets.UTF_8), type, nullable);
+                columns.add(column);
+                blocks[i] = new Block(channel, offset, length, column, encoding, rows);
+            }
+            return new ColumnarFile(rows, Collections.unmodifiableList(columns), blocks);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+    }
+
+    // 一列的数据 读取时按块内偏移访问
+    private static final class Block {
+        private final MappedByteBuffer[] chunks;
+        private final Column column;
+        private final byte encoding;
+        private final int rows;
+        private final long data; // 数据在块内的起始偏移 (null 位图之后)
+        private long codes; // 字典编号的起始偏移
+        private String[] dictionary;
+
+        Block(FileChannel channel, long offset, long length, Column column, byte encoding, int rows)
+                throws IOException {
+            this.column = column;
+            this.encoding = encoding;
+            this.rows = rows;
+            chunks = new MappedByteBuffer[(int) ((length + CHUNK - 1) / CHUNK)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = i * CHUNK;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, Math.min(CHUNK, length - start));
+            }
+            data = column.isNullable() ? bitmapBytes(rows) : 0;
+            if (encoding == DICT8 || encoding == DICT16) {
+                readDictionary();
+            }
+        }
+
+        private void readDictionary() {
+            long position = data;
+            String[] words = new String[getInt(position)];
+            position += 4;
+            for (int i = 0; i < words.length; i++) {
+                int length = getInt(position);
+                words[i] = getString(position + 4, length);
+                position += 4 + length;
+            }
+            dictionary = words;
+            codes = align(position);
+        }
+
+        private byte get(long position) {
+            return chunks[(int) (position / CHUNK)].get((int) (position % CHUNK));
+        }
+
+        private short getShort(long position) {
+            return chunks[(int) (position / CHUNK)].getShort((int) (position % CHUNK));
+        }
+
+        private int getInt(long position) {
+            if (position % CHUNK + 4 > CHUNK) {
+                return (get(position) & 0xFF) << 24 | (get(position + 1) & 0xFF) << 16
+                        | (get(position + 2) & 0xFF) << 8 | (get(position + 3) & 0xFF);
+            }
+            return chunks[(int) (position / CHUNK)].getInt((int) (position % CHUNK));
+        }
+
+        private long getLong(long position) {
+            return chunks[(int) (position / CHUNK)].getLong((int) (position % CHUNK));
+        }
+
+        private String getString(long position, int length) {
+            byte[] bytes = new byte[length];
+            int done = 0;
+            while (done < length) {
+                MappedByteBuffer chunk = chunks[(int) ((position + done) / CHUNK)];
+                int at = (int) ((position + done) % CHUNK);
+                int n = Math.min(length - done, chunk.capacity() - at);
+                chunk.get(at, bytes, done, n);
+                done += n;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private boolean bit(long start, int row) {
+            return (getLong(start + 8L * (row >>> 6)) >>> (row & 63) & 1) != 0;
+        }
+
+        boolean isNull(int row) {
+            return column.isNullable() && bit(0, row);
+        }
+
+        int code(int row) {
+            return encoding == DICT8 ? get(codes + row) & 0xFF : getShort(codes + 2L * row) & 0xFFFF;
+        }
+
+        String string(int row) {
+            if (encoding == PLAIN) {
+                int start = getInt(data + 4L * row);
+                int end = getInt(data + 4L * (row + 1));
+                return getString(align(data + 4L * (rows + 1)) + start, end - start);
+            }
+            if (encoding == PLAIN64) {
+                long start = getLong(data + 8L * row);
+                long end = getLong(data + 8L * (row + 1));
+                return getString(data + 8L * (rows + 1) + start, (int) (end - start));
+            }
+            return dictionary[code(row)];
+        }
+    }
+
+    Column column(int column) {
+        return columns.get(column);
+    }
+
+    boolean isNull(int column, int row) {
+        return blocks[column].isNull(row);
+    }
+
+    // INT LONG 的值
+    long getLong(int column, int row) {
+        Block block = blocks[column];
+        return block.column.getType() == ColumnType.INT ? block.getInt(block.data + 4L * row)
+                : block.getLong(block.data + 8L * row);
+    }
+
+    double getDouble(int column, int row) {
+        Block block = blocks[column];
+        switch (block.column.getType()) {
+            case DOUBLE:
+                return Double.longBitsToDouble(block.getLong(block.data + 8L * row));
+            case INT:
+            case LONG:
+                return getLong(column, row);
+            default:
+                throw new IllegalArgumentException("Column is not numeric: " + block.column.getName());
+        }
+    }
+
+    boolean getBoolean(int column, int row) {
+        Block block = blocks[column];
+        return block.bit(block.data, row);
+    }
+
+    String getString(int column, int row) {
+        return blocks[column].string(row);
+    }
+
+    // 文本形式 空值返回 null
+    String format(int column, int row) {
+        Block block = blocks[column];
+        if (block.isNull(row)) {
+            return null;
+        }
+        switch (block.column.getType()) {
+            case INT:
+            case LONG:
+                return Long.toString(getLong(column, row));
+            case DOUBLE:
+                return Double.toString(getDouble(column, row));
+            case BOOLEAN:
+                return Boolean.toString(getBoolean(column, row));
+            default:
+                return block.string(row);
+        }
+    }
+
+    // 按行判断是否等于 value (文本形式 已规范化) 只读这一列
+    // 字典编码的列先查出编号 再比较每行的编号
+    IntPredicate equalTo(int column, String value) {
+        Block block = blocks[column];
+        if (value == null) {
+            return block::isNull;
+        }
+        if (block.encoding == DICT8 || block.encoding == DICT16) {
+            int code = -1;
+            for (int i = 0; i < block.dictionary.length; i++) {
+                if (block.dictionary[i].equals(value)) {
+                    code = i;
+                }
+            }
+            if (code < 0) {
+                return row -> false;
+            }
+            int wanted = code;
+            return row -> !block.isNull(row) && block.code(row) == wanted;
+        }
+        return row -> value.equals(format(column, row));
+    }
+
+    private static long bitmapBytes(int rows) {
+        return 8L * ((rows + 63) >>> 6);
+    }
+
+    private static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    // 逐行写入 每列先写到单独的临时文件 finish 时拼成一个文件 内存中只保留位图和字符串字典
+    static final class Writer implements Closeable {
+        private final List<Column> columns;
+        private final Path target;
+        private final Spill[] spills;
+        private int rows;
+
+        private static final class Spill {
+            final Column column;
+            final Path dataPath;
+            final Path offsetsPath;
+            final DataOutputStream data;
+            final DataOutputStream offsets; // STRING 每行的起始偏移
+            final BitSet nulls = new BitSet();
+            final BitSet bits = new BitSet(); // BOOLEAN
+            long dataBytes;
+            Map<String, Integer> dictionary = new HashMap<>(); // 不同的值太多时放弃字典编码
+
+            Spill(Column column, Path dataPath, Path offsetsPath) throws IOException {
+                this.column = column;
+                this.dataPath = dataPath;
+                this.offsetsPath = offsetsPath;
+                this.data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataPath.toFile()),
+                        1 << 16));
+                this.offsets = offsetsPath == null ? null : new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(offsetsPath.toFile()), 1 << 16));
+            }
+        }
+
+        Writer(Path target, List<Column> columns) throws IOException {
+            if (columns.isEmpty()) {
+                throw new IllegalArgumentException("A columnar table needs at least one column");
+            }
+            this.target = target;
+            this.columns = List.copyOf(columns);
+            this.spills = new Spill[columns.size()];
+            try {
+                for (int i = 0; i < spills.length; i++) {
+                    Column column = columns.get(i);
+                    spills[i] = new Spill(column, Paths.get(target + ".col" + i),
+                            column.getType() == ColumnType.STRING ? Paths.get(target + ".off" + i) : null);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        // values 是规范化的文本 空值为 null
+        void add(String[] values) throws IOException {
+            if (values.length != spills.length) {
+                throw new IllegalArgumentException("Expected " + spills.length + " values, got " + values.length);
+            }
+            for (int i = 0; i < spills.length; i++) {
+                write(spills[i], values[i]);
+            }
+            rows++;
+        }
+
+        private void write(Spill spill, String value) throws IOException {
+            Column column = spill.column;
+            if (value == null) {
+                if (!column.isNullable()) {
+                    throw new IllegalArgumentException("Column " + column.getName() + " is not nullable");
+                }
+                spill.nulls.set(rows);
+            }
+            switch (column.getType()) {
+                case INT:
+                    spill.data.writeInt(value == null ? 0 : Integer.parseInt(value));
+                    break;
+                case LONG:
+                    spill.data.writeLong(value == null ? 0 : Long.parseLong(value));
+                    break;
+                case DOUBLE:
+                    spill.data.writeDouble(value == null ? 0 : Double.parseDouble(value));
+                    break;
+                case BOOLEAN:
+                    if (value != null && ColumnarDataManager.parseBoolean(value)) {
+                        spill.bits.set(rows);
+                    }
+                    break;
+                default:
+                    spill.offsets.writeLong(spill.dataBytes);
+                    if (value != null) {
+                        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                        spill.data.write(bytes);
+                        spill.dataBytes += bytes.length;
+                        if (spill.dictionary != null && !spill.dictionary.containsKey(value)) {
+                            if (spill.dictionary.size() == DICT_LIMIT) {
+                                spill.dictionary = null;
+                            } else {
+                                spill.dictionary.put(value, spill.dictionary.size());
+                            }
+                        }
+                    }
+            }
+        }
+
+        // 写出 target 调用方负责替换正式文件
+        void finish() throws IOException {
+            for (Spill spill : spills) {
+                if (spill.offsets != null) {
+                    spill.offsets.writeLong(spill.dataBytes);
+                    spill.offsets.close();
+                }
+                spill.data.close();
+            }
+            byte[] encodings = new byte[spills.length];
+            long[] lengths = new long[spills.length];
+            long headerLength = 20;
+            for (int i = 0; i < spills.length; i++) {
+                Spill spill = spills[i];
+                headerLength += 4 + spill.column.getName().getBytes(StandardCharsets.UTF_8).length + 3 + 16;
+                encodings[i] = encoding(spill);
+                lengths[i] = blockLength(spill, encodings[i]);
+            }
+            try (FileOutputStream file = new FileOutputStream(target.toFile())) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(rows);
+                out.writeInt(spills.length);
+                out.writeInt((int) headerLength);
+                long offset = align(headerLength);
+                for (int i = 0; i < spills.length; i++) {
+                    Column column = spills[i].column;
+                    byte[] name = column.getName().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(name.length);
+                    out.write(name);
+                    out.writeByte(column.getType().ordinal());
+                    out.writeBoolean(column.isNullable());
+                    out.writeByte(encodings[i]);
+                    out.writeLong(offset);
+                    out.writeLong(lengths[i]);
+                    offset = align(offset + lengths[i]);
+                }
+                pad(out, headerLength);
+                for (int i = 0; i < spills.length; i++) {
+                    writeBlock(out, spills[i], encodings[i]);
+                    pad(out, lengths[i]);
+                }
+                out.flush();
+                file.getFD().sync();
+            } finally {
+                close();
+            }
+        }
+
+        private byte encoding(Spill spill) {
+            if (spill.column.getType() != ColumnType.STRING || spill.dictionary == null
+                    || spill.dictionary.isEmpty() || spill.dictionary.size() * 2L > rows) {
+                return spill.dataBytes <= Integer.MAX_VALUE ? PLAIN : PLAIN64;
+            }
+            return spill.dictionary.size() <= 256 ? DICT8 : DICT16;
+        }
+
+        private long blockLength(Spill spill, byte encoding) {
+            long length = spill.column.isNullable() ? bitmapBytes(rows) : 0;
+            switch (spill.column.getType()) {
+                case INT:
+                    return length + 4L * rows;
+                case LONG:
+                case DOUBLE:
+                    return length + 8L * rows;
+                case BOOLEAN:
+                    return length + bitmapBytes(rows);
+                default:
+                    if (encoding == PLAIN) {
+                        return length + align(4L * (rows + 1)) + spill.dataBytes;
+                    }
+                    if (encoding == PLAIN64) {
+                        return length + 8L * (rows + 1) + spill.dataBytes;
+                    }
+                    long words = 4;
+                    for (String word : spill.dictionary.keySet()) {
+                        words += 4 + word.getBytes(StandardCharsets.UTF_8).length;
+                    }
+                    return length + align(words) + (long) rows * (encoding == DICT8 ? 1 : 2);
+            }
+        }
+
+        private void writeBlock(DataOutputStream out, Spill spill, byte encoding) throws IOException {
+            if (spill.column.isNullable()) {
+                writeBitmap(out, spill.nulls);
+            }
+            switch (spill.column.getType()) {
+                case BOOLEAN:
+                    writeBitmap(out, spill.bits);
+                    return;
+                case STRING:
+                    if (encoding == PLAIN) {
+                        writeIntOffsets(out, spill);
+                    } else if (encoding == PLAIN64) {
+                        Files.copy(spill.offsetsPath, out);
+                    } else {
+                        writeDictionary(out, spill, encoding);
+                        return;
+                    }
+                    Files.copy(spill.dataPath, out);
+                    return;
+                default:
+                    Files.copy(spill.dataPath, out);
+            }
+        }
+
+        private void writeBitmap(DataOutputStream out, BitSet bits) throws IOException {
+            long[] words = bits.toLongArray();
+            int count = (rows + 63) >>> 6;
+            for (int i = 0; i < count; i++) {
+                out.writeLong(i < words.length ? words[i] : 0);
+            }
+        }
+
+        // 临时文件中的 long 偏移转成 int
+        private void writeIntOffsets(DataOutputStream out, Spill spill) throws IOException {
+            try (DataInputStream offsets = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(spill.offsetsPath.toFile()), 1 << 16))) {
+                for (int row = 0; row <= rows; row++) {
+                    out.writeInt((int) offsets.readLong());
+                }
+            }
+            pad(out, 4L * (rows + 1));
+        }
+
+        // 按编号顺序写字典 再顺序读回临时文件中的每一行 写出编号
+        private void writeDictionary(DataOutputStream out, Spill spill, byte encoding) throws IOException {
+            String[] words = new String[spill.dictionary.size()];
+            for (Map.Entry<String, Integer> entry : spill.dictionary.entrySet()) {
+                words[entry.getValue()] = entry.getKey();
+            }
+            long written = 4;
+            out.writeInt(words.length);
+            for (String word : words) {
+                byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                written += 4 + bytes.length;
+            }
+            pad(out, written);
+            try (DataInputStream offsets = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(spill.offsetsPath.toFile()), 1 << 16));
+                 DataInputStream data = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(spill.dataPath.toFile()), 1 << 16))) {
+                long start = offsets.readLong();
+                byte[] bytes = new byte[256];
+                for (int row = 0; row < rows; row++) {
+                    long end = offsets.readLong();
+                    int length = (int) (end - start);
+                    if (bytes.length < length) {
+                        bytes = new byte[length];
+                    }
+                    data.readFully(bytes, 0, length);
+                    start = end;
+                    int code = spill.nulls.get(row) ? 0
+                            : spill.dictionary.get(new String(bytes, 0, length, StandardCharsets.UTF_8));
+                    if (encoding == DICT8) {
+                        out.writeByte(code);
+                    } else {
+                        out.writeShort(code);
+                    }
+                }
+            }
+        }
+
+        private static void pad(OutputStream out, long length) throws IOException {
+            for (long i = length; i < align(length); i++) {
+                out.write(0);
+            }
+        }
+
+        // 删除临时文件
+        @Override
+        public void close() throws IOException {
+            for (Spill spill : spills) {
+                if (spill == null) {
+                    continue;
+                }
+                spill.data.close();
+                Files.deleteIfExists(spill.dataPath);
+                if (spill.offsets != null) {
+                    spill.offsets.close();
+                    Files.deleteIfExists(spill.offsetsPath);
+                }
+            }
+        }
+    }
+}
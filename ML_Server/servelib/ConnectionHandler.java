@@ -0,0 +1,258 @@
+package servelib;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import servelib.log.LOGH;
+import servelib.log.LOGX;
+
+// 处理单个连接 / one connection, independent of the server mode
+// VirtualThreadServer 与 NioServer 都通过这里调用 BuildRequest 和 BuildResponse
+// 支持 HTTP/1.1 keep-alive 与流水线: 同一个 BufferedInputStream 上依次解析请求 按顺序响应
+public class ConnectionHandler {
+    private static final log log = new log();
+
+    private final Socket socket;
+    private final ServerConfig config;
+    private final boolean parkable; // NIO 模式: 连接空闲时交还给事件循环 不占用工作线程
+
+    private int served; // 已处理的请求数
+    private final long acceptedAt = System.nanoTime(); // 第一个请求的起点 (Metrics)
+    private String clientIp; // 客户端地址 来自 PROXY 头或 socket
+    private ProxyProtocol.Header proxyHeader; // 没有 PROXY 头时为 null
+
+    // 解析缓冲区池 只在处理请求期间借用 空闲连接不占用缓冲区
+    private static final int MAX_POOLED_BUFFERS = 1024;
+    private static final ConcurrentLinkedQueue<BuildRequest.Buffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledBuffers = new AtomicInteger();
+    // 处理器没有读完请求体时 最多替它读取并丢弃这么多字节 以便继续使用连接 更多时关闭连接
+    private static final long MAX_DISCARD_BYTES = 64 * 1024;
+
+    public ConnectionHandler(Socket socket, ServerConfig config, boolean parkable) {
+        this.socket = socket;
+        this.config = config;
+        this.parkable = parkable;
+    }
+
+    // inputStream 可能带有 NIO 事件循环预先读取的字节
+    // 返回 true 表示连接保持打开且缓冲区已读空 由调用方继续监听; false 表示应当关闭连接
+    public boolean run(InputStream inputStream) {
+        return run(inputStream, 0);
+    }
+
+    // startNanos: 第一个请求的起点 (NIO 事件循环收到第一个字节的时间) 0 表示由这里判断
+    public boolean run(InputStream inputStream, long startNanos) {
+        BufferedInputStream in = new BufferedInputStream(inputStream);
+        BuildRequest.Buffer buffer = borrowBuffer();
+        try {
+            socket.setSoTimeout(config.getIdleTimeoutMillis());
+            if (clientIp == null) {
+                // 保持连接时 响应头和文件内容分两次写出 (Range / transferTo) Nagle 会等客户端的延迟 ACK (约 40ms)
+                socket.setTcpNoDelay(true);
+                if (!readProxyHeader(in)) {
+                    return false;
+                }
+            }
+            while (true) {
+                long started = startNanos != 0 ? startNanos : served == 0 ? acceptedAt : awaitRequest(in);
+                startNanos = 0;
+                if (started == Long.MIN_VALUE) {
+                    // 连接已关闭
+                    return false;
+                }
+                BuildRequest request = new BuildRequest(socket, in, buffer, clientIp);
+                long parsed = System.nanoTime();
+                if (request.getErrorStatus() != 0) {
+                    // 非法请求 回复错误后关闭
+                    BuildResponse response = new BuildResponse(socket, request, false);
+                    response.output_Status(request.getErrorStatus(), reason(request.getErrorStatus()));
+                    Metrics.record(null, response, started, parsed);
+                    return false;
+                }
+                if (!request.isComplete()) {
+                    // 连接已关闭
+                    return false;
+                }
+                served++;
+
+                RequestBody body = null;
+                if (request.hasBody()) {
+                    try {
+                        body = request.openBody(config.getMaxBodyBytes());
+                    } catch (RequestBody.BodyException e) {
+                        // 无法确定请求体在哪里结束 回复后关闭
+                        BuildResponse response = new BuildResponse(socket, request, false);
+                        response.output_Status(e.getStatus(), reason(e.getStatus()));
+                        Metrics.record(null, response, started, parsed);
+                        return false;
+                    }
+                }
+                boolean keepAlive = wantsKeepAlive(request) && served < config.getMaxRequestsPerConnection();
+                BuildResponse response = new BuildResponse(socket, request, keepAlive);
+                Router.Route route = dispatch(request, response);
+                Metrics.record(route, response, started, parsed);
+                if (!response.isKeepAlive()) {
+                    return false;
+                }
+                if (body != null && !body.discard(MAX_DISCARD_BYTES)) {
+                    // 请求体剩余太多 或客户端还在等待 100 Continue
+                    return false;
+                }
+                if (parkable && in.available() == 0) {
+                    // 没有流水线中的后续请求 交还给事件循环
+                    return true;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // 空闲超时
+            return false;
+        } catch (IOException e) {
+            log.print(LOGH.SYSTEM, LOGX.DEBUG, () -> "Connection error: " + e.getMessage());
+            return false;
+        } finally {
+            returnBuffer(buffer);
+        }
+    }
+
+    // 连接开头的 PROXY 头 按监听端口的配置处理 只在第一次调用时执行
+    private boolean readProxyHeader(BufferedInputStream in) throws IOException {
+        clientIp = socket.getInetAddress().getHostAddress();
+        if (config.getProxyProtocol() == ProxyProtocol.Mode.OFF) {
+            return true;
+        }
+        try {
+            proxyHeader = ProxyProtocol.read(in);
+        } catch (IOException e) {
+            log.print(LOGH.SYSTEM, LOGX.WARN, "Invalid PROXY header from " + clientIp + ": " + e.getMessage());
+            return false;
+        }
+        if (proxyHeader == null) {
+            return config.getProxyProtocol() != ProxyProtocol.Mode.REQUIRED;
+        }
+        if (proxyHeader.getClientIp() != null) {
+            clientIp = proxyHeader.getClientIp();
+        }
+        return true;
+    }
+
+    // 等到下一个请求的第一个字节 返回到达的时间 连接关闭时返回 Long.MIN_VALUE
+    private static long awaitRequest(BufferedInputStream in) throws IOException {
+        if (in.available() == 0) {
+            in.mark(1);
+            if (in.read() < 0) {
+                return Long.MIN_VALUE;
+            }
+            in.reset();
+        }
+        return System.nanoTime();
+    }
+
+    public String getClientIp() {
+        return clientIp;
+    }
+
+    public ProxyProtocol.Header getProxyHeader() {
+        return proxyHeader;
+    }
+
+    private static BuildRequest.Buffer borrowBuffer() {
+        BuildRequest.Buffer buffer = BUFFER_POOL.poll();
+        if (buffer == null) {
+            return new BuildRequest.Buffer();
+        }
+        pooledBuffers.decrementAndGet();
+        return buffer;
+    }
+
+    private static void returnBuffer(BuildRequest.Buffer buffer) {
+        if (pooledBuffers.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            BUFFER_POOL.offer(buffer);
+        } else {
+            pooledBuffers.decrementAndGet();
+        }
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 405:
+                return "Method Not Allowed";
+            case 411:
+                return "Length Required";
+            case 413:
+                return "Content Too Large";
+            case 414:
+                return "URI Too Long";
+            case 415:
+                return "Unsupported Media Type";
+            case 417:
+                return "Expectation Failed";
+            case 431:
+                return "Request Header Fields Too Large";
+            case 501:
+                return "Not Implemented";
+            default:
+                return "Bad Request";
+        }
+    }
+
+    // 返回匹配到的路由 (Metrics 按路由前缀分组) 没有时返回 null
+    private Router.Route dispatch(BuildRequest request, BuildResponse response) throws IOException {
+        String path = request.getRequestBody();
+        Router.Route route = BuildResponse.getRouter().match(path);
+        if (route != null && route.getHandler() != null) {
+            // 处理器自己决定支持哪些方法
+            try {
+                route.getHandler().handle(request, response);
+            } catch (RequestBody.BodyException e) {
+                // 读取请求体时超过上限或格式错误 还没有回复时回复对应的状态码
+                if (response.getStatus() != 0) {
+                    throw e;
+                }
+                response.closeAfterResponse();
+                response.output_Status(e.getStatus(), reason(e.getStatus()));
+            }
+        } else if ("GET".equals(request.getRequestType()) || "HEAD".equals(request.getRequestType())) {
+            // HEAD 与 GET 走同一条路径 BuildResponse 只发送响应头
+            response.output_File_Fast_path(path);
+        } else {
+            response.output_Status(405, "Method Not Allowed", "Allow: GET, HEAD\r\n");
+        }
+        return route;
+    }
+
+    // HTTP/1.1 默认保持连接 除非 Connection: close; HTTP/1.0 需要显式 Connection: keep-alive
+    // 带请求体的请求处理完后 剩余的请求体被丢弃 (见 MAX_DISCARD_BYTES) 之后才能读取下一个请求
+    private static boolean wantsKeepAlive(BuildRequest request) {
+        String connection = request.getHeader("Connection");
+        if ("HTTP/1.1".equals(request.getRequestVersion())) {
+            return connection == null || !hasToken(connection, "close");
+        }
+        return connection != null && hasToken(connection, "keep-alive");
+    }
+
+    private static boolean hasToken(String value, String token) {
+        for (String part : value.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getServed() {
+        return served;
+    }
+
+    // 工具方法：安静地关闭连接
+    static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package servelib;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// LightweightDataManager 的一个不可变版本 / immutable table generation (MVCC snapshot)
+// 数据文件 + 行偏移 + 列结构 发布之后不再修改 写入时复制出新的 Generation 整体替换
+// 读者计数按线程分散到多个缓存行 进入和退出不加锁 也不争用同一个计数器
+// 被替换 (retire) 且没有读者之后释放数据文件
+final class Generation {
+
+    private static final int STRIPES = 64;
+    private static final int PAD = 16; // 每个计数器独占 128 字节 避免伪共享
+
+    final TableFile table;
+    final OffsetIndex offsets;
+    final TableSchema schema;
+    final List<String> headers; // schema.headers
+    final long version;
+
+    private final AtomicLongArray readers = new AtomicLongArray(STRIPES * PAD);
+    private volatile boolean retired;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    Generation(TableFile table, OffsetIndex offsets, TableSchema schema, long version) {
+        this.table = table;
+        this.offsets = offsets;
+        this.schema = schema;
+        this.headers = schema.headers;
+        this.version = version;
+        table.retain();
+    }
+
+    // 不同线程尽量落在不同的计数器上
+    @SuppressWarnings("deprecation")
+    private static int slot() {
+        return (int) (Thread.currentThread().getId() & (STRIPES - 1)) * PAD;
+    }
+
+    // 调用方在 enter 之后必须确认这个版本仍然是当前版本 否则 exit 后重试
+    void enter() {
+        readers.incrementAndGet(slot());
+    }
+
+    void exit() {
+        readers.decrementAndGet(slot());
+        if (retired) {
+            tryRelease();
+        }
+    }
+
+    // 已经有新版本发布 最后一个读者退出时释放
+    void retire() {
+        retired = true;
+        tryRelease();
+    }
+
+    // exit 可以在另一个线程 (计数器各自可能为负) 只看总和
+    // 成功进入的读者都在 retire 之前计数 总和不会小于仍在读的读者数
+    private void tryRelease() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += readers.get(i * PAD);
+        }
+        if (sum == 0 && released.compareAndSet(false, true)) {
+            try {
+                table.release();
+            } catch (IOException e) {
+                // 关闭失败不影响读者 新版本使用自己的文件句柄
+            }
+        }
+    }
+}
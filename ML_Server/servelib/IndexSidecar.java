@@ -0,0 +1,168 @@
+package servelib;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// LightweightDataManager 的索引文件 / persistent index sidecar ("<table>.idx")
+// 格式 (大端):
+//   magic "LDMI" | version | 数据文件长度 | 数据文件 mtime | 行数 | 垃圾字节数 | 最新列结构记录的偏移 (-1 表示没有) | 每行偏移 (long)
+//   二级索引个数 | 每个索引: 列名 unique 值的个数 | 每个值: 值 行数 行号...
+//   最后 8 字节是之前所有内容的 CRC32
+// 数据文件的长度或 mtime 不一致 或校验失败时视为无效 由调用方重新扫描
+final class IndexSidecar {
+
+    private static final int MAGIC = 0x4C444D49;
+    private static final int VERSION = 2;
+    private static final int FIXED_HEADER = 4 + 4 + 8 + 8 + 4 + 8 + 8;
+
+    static final class Contents {
+        final OffsetIndex offsets;
+        final long garbageBytes;
+        final long schemaOffset;
+        final List<ColumnIndex> indexes;
+
+        Contents(OffsetIndex offsets, long garbageBytes, long schemaOffset, List<ColumnIndex> indexes) {
+            this.offsets = offsets;
+            this.garbageBytes = garbageBytes;
+            this.schemaOffset = schemaOffset;
+            this.indexes = indexes;
+        }
+    }
+
+    private IndexSidecar() {
+    }
+
+    static Path pathFor(String filePath) {
+        return Paths.get(filePath + ".idx");
+    }
+
+    static void save(Path sidecar, Path data, OffsetIndex offsets, long garbageBytes,
+            long schemaOffset, Collection<ColumnIndex> indexes) throws IOException {
+        Path temp = Paths.get(sidecar + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc),
+                    64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(Files.size(data));
+            out.writeLong(Files.getLastModifiedTime(data).toMillis());
+            int rows = offsets.size();
+            out.writeInt(rows);
+            out.writeLong(garbageBytes);
+            out.writeLong(schemaOffset);
+            for (int row = 0; row < rows; row++) {
+                out.writeLong(offsets.get(row));
+            }
+            out.writeInt(indexes.size());
+            for (ColumnIndex index : indexes) {
+                writeString(out, index.column);
+                out.writeBoolean(index.unique);
+                // 并发修改时以实际写出的个数为准
+                List<Map.Entry<String, int[]>> entries = new ArrayList<>(index.rows.entrySet());
+                out.writeInt(entries.size());
+                for (Map.Entry<String, int[]> entry : entries) {
+                    int[] rowNumbers = entry.getValue();
+                    writeString(out, entry.getKey());
+                    out.writeInt(rowNumbers.length);
+                    for (int rowNumber : rowNumbers) {
+                        out.writeInt(rowNumber);
+                    }
+                }
+            }
+            out.flush();
+            // 校验和本身不经过 CheckedOutputStream
+            new DataOutputStream(file).writeLong(crc.getValue());
+            file.getFD().sync();
+        }
+        try {
+            Files.move(temp, sidecar, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // 没有 过期 或损坏时返回 null
+    static Contents load(Path sidecar, Path data) throws IOException {
+        try (FileChannel channel = FileChannel.open(sidecar, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < FIXED_HEADER + 4 + 8 || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate().limit((int) size - 8));
+            if (crc.getValue() != buffer.getLong((int) size - 8)) {
+                return null;
+            }
+            buffer.limit((int) size - 8);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || buffer.getLong() != Files.size(data)
+                    || buffer.getLong() != Files.getLastModifiedTime(data).toMillis()) {
+                return null;
+            }
+            int rows = buffer.getInt();
+            long garbageBytes = buffer.getLong();
+            long schemaOffset = buffer.getLong();
+            OffsetIndex offsets = new OffsetIndex(rows);
+            offsets.load(buffer.asLongBuffer(), rows);
+            buffer.position(buffer.position() + rows * 8);
+            int indexCount = buffer.getInt();
+            List<ColumnIndex> indexes = new ArrayList<>(indexCount);
+            for (int i = 0; i < indexCount; i++) {
+                ColumnIndex index = new ColumnIndex(readString(buffer), buffer.get() != 0);
+                int values = buffer.getInt();
+                for (int v = 0; v < values; v++) {
+                    String value = readString(buffer);
+                    int[] rowNumbers = new int[buffer.getInt()];
+                    for (int r = 0; r < rowNumbers.length; r++) {
+                        rowNumbers[r] = buffer.getInt();
+                    }
+                    index.rows.put(value, rowNumbers);
+                }
+                indexes.add(index);
+            }
+            return new Contents(offsets, garbageBytes, schemaOffset, indexes);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // 长度字段损坏导致越界 (BufferUnderflowException 等)
+            return null;
+        }
+    }
+
+    static void delete(Path sidecar) throws IOException {
+        Files.deleteIfExists(sidecar);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
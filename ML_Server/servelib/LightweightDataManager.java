@@ -1,236 +1,1273 @@
 package servelib;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class LightweightDataManager {
+import servelib.log.LOGH;
+import servelib.log.LOGX;
+
+public class LightweightDataManager implements TableStore {
+
+    // 存储方式 单行修改都追加到文件末尾 (不复制整个文件) 旧行成为垃圾 由后台压缩回收
+    // IN_PLACE: 静止时是普通的 | 分隔表 (列结构版本大于 1 时第一行末尾是 "\u001C版本")
+    //           打开和 shutdown 时把追加的行和列结构记录压缩回去
+    //           没有追加记录时 批量提交一次顺序重写后原子替换
+    // APPEND: 追加记录一直保留到压缩 批量提交也是追加
+    // READ_ONLY: 只读打开 (例如转换的源表) 不压缩 不写索引文件 修改时抛出 IllegalStateException
+    //            其他管理器可能正在写这个文件 替换它会使对方的写入丢失
+    public static enum StorageMode {
+        IN_PLACE, APPEND, READ_ONLY
+    }
+
+    // 追加记录的前缀 "\u001E行号|" 之后是完整的行 普通数据中不会出现这个字符
+    private static final byte RECORD_MARK = 0x1E;
+    // 批量提交: 每行以 "\u001D行号|" 开头 最后是 "\u001F行数" 没有提交行的记录在启动时丢弃
+    private static final byte BATCH_MARK = 0x1D;
+    private static final byte COMMIT_MARK = 0x1F;
+    // 列结构记录 "\u001C版本|列名|..." 最新的一条生效 (见 TableSchema)
+    private static final byte SCHEMA_MARK = 0x1C;
+    // ScanPart.rows 中的特殊值
+    private static final long PLAIN_ROW = -1;
+    private static final long COMMIT_LINE = -2;
+    private static final long SCHEMA_LINE = -3;
+    private static final long PENDING_ROW = 1L << 32;
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    // 垃圾超过文件的这个比例时触发压缩
+    private static final double DEFAULT_COMPACTION_RATIO = 0.5;
+    private static final long MIN_COMPACTION_BYTES = 64 * 1024;
+    // 超过这个大小时按 CPU 数分段并行建立索引
+    private static final long PARALLEL_SCAN_BYTES = 64L * 1024 * 1024;
+    private static final log log = new log();
 
     private final String filePath;
-    private final Map<Integer, Long> rowIndex;
+    private final StorageMode storageMode;
+    private volatile double compactionRatio = DEFAULT_COMPACTION_RATIO;
+    private long garbageBytes; // 被覆盖的旧行字节数 writeLock 保护
+    private long schemaOffset = -1; // 最新列结构记录的偏移 没有时为 -1 writeLock 保护
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    // 当前版本 (文件句柄 行偏移 列结构) 读者固定一个版本后不加锁读取 写入者在 writeLock 内发布新版本
+    private volatile Generation current;
     private final ExecutorService executor;
-    private final Map<Integer, String> cache;
-    private static final int CACHE_SIZE = 100;
-    private List<String> headers;
+    private final RowCache cache;
+    private static final int CACHE_SIZE = 100000; // 缓存的行数上限
+    private static final long CACHE_BYTES = 64L * 1024 * 1024; // 估算的内存上限
     private static final String DELIMITER = "|";
     private final ReentrantLock writeLock = new ReentrantLock();
+    // 二级索引 列名 -> (值 -> 行号)
+    private final Map<String, ColumnIndex> indexes = new ConcurrentHashMap<>();
+    // 索引文件 磁盘上的内容与内存一致时 sidecarCurrent 为 true 第一次修改数据前删除
+    private final Path sidecar;
+    private boolean sidecarCurrent;
 
     public LightweightDataManager(String filePath) {
+        this(filePath, StorageMode.IN_PLACE);
+    }
+
+    public LightweightDataManager(String filePath, StorageMode storageMode) {
+        this(filePath, storageMode, CACHE_SIZE, CACHE_BYTES);
+    }
+
+    public LightweightDataManager(String filePath, StorageMode storageMode, int cacheEntries, long cacheBytes) {
         this.filePath = filePath;
-        this.rowIndex = new ConcurrentHashMap<>();
+        this.storageMode = storageMode;
         this.executor = Executors.newFixedThreadPool(4);
-        this.cache = new ConcurrentHashMap<>();
-        this.headers = new ArrayList<>();
-        loadHeaders();
-        buildIndex();
+        this.cache = new RowCache(cacheEntries, cacheBytes);
+        this.sidecar = IndexSidecar.pathFor(filePath);
+        TableFile table = openTable();
+        OffsetIndex offsets = loadSidecar(table);
+        boolean loaded = offsets != null;
+        if (!loaded) {
+            offsets = buildIndex(table);
+        }
+        TableSchema schema = loadSchema(table, schemaOffset);
+        indexes.keySet().removeIf(column -> !schema.contains(column));
+        current = new Generation(table, offsets, schema, 0);
+        if (!loaded && storageMode != StorageMode.READ_ONLY) {
+            saveSidecar();
+        }
+        if (storageMode == StorageMode.IN_PLACE && (garbageBytes > 0 || schemaOffset >= 0)) {
+            // 之前以 APPEND 模式写过 或者上次没有 shutdown 原地修改前先还原成普通表
+            rewriteFile();
+        }
     }
 
-    private void loadHeaders() {
-        try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
-            String headerLine = reader.readLine();
+    private TableFile openTable() {
+        try {
+            return new TableFile(Paths.get(filePath), storageMode != StorageMode.READ_ONLY);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open " + filePath, e);
+        }
+    }
+
+    // 第一行的列名和版本 有列结构记录时以最新的一条为准
+    private static TableSchema loadSchema(TableFile table, long schemaOffset) {
+        try {
+            if (schemaOffset >= 0) {
+                return TableSchema.parse(table.readLine(schemaOffset).substring(1));
+            }
+            String headerLine = table.readLine(0);
             if (headerLine != null) {
-                headers = new ArrayList<>(Arrays.asList(headerLine.split("\\" + DELIMITER, -1)));
+                return TableSchema.header(headerLine);
             }
-        } catch (IOException e) {
+            return TableSchema.plain(Collections.emptyList());
+        } catch (IOException | RuntimeException e) {
             throw new RuntimeException("Failed to load headers", e);
         }
     }
 
-    private void buildIndex() {
-        rowIndex.clear();
-        try (RandomAccessFile file = new RandomAccessFile(filePath, "r")) {
-            long offset = file.getFilePointer();
-            String line = file.readLine(); // Skip header
-            offset = file.getFilePointer();
-            int rowNumber = 0;
-            while ((line = file.readLine()) != null) {
-                rowIndex.put(rowNumber++, offset);
-                offset = file.getFilePointer();
+    // 固定当前版本 用完后必须 exit()
+    // 进入之后版本已被替换时退出重试 不会拿到已经释放的文件
+    private Generation acquire() {
+        while (true) {
+            Generation generation = current;
+            generation.enter();
+            if (generation == current) {
+                return generation;
             }
-        } catch (IOException e) {
+            generation.exit();
+        }
+    }
+
+    // 在 writeLock 内替换当前版本 旧版本在最后一个读者退出后释放
+    private void publish(TableFile table, OffsetIndex offsets, TableSchema schema) {
+        Generation old = current;
+        current = new Generation(table, offsets, schema, old.version + 1);
+        old.retire();
+    }
+
+    // 列名 (当前版本)
+    public List<String> getHeaders() {
+        return current.headers;
+    }
+
+    // 行数 (当前版本)
+    public int size() {
+        return current.offsets.size();
+    }
+
+    // 列结构版本 文件第一行为 1 每次 addColumn/removeColumn 加一
+    public int getSchemaVersion() {
+        return current.schema.version;
+    }
+
+    // 一段文件的扫描结果 按文件中的顺序记录
+    // rows: PLAIN_ROW 普通行 / COMMIT_LINE 批量提交行 / SCHEMA_LINE 列结构记录 / 行号 (+ PENDING_ROW 表示属于某次批量提交)
+    private static final class ScanPart {
+        final OffsetIndex offsets = new OffsetIndex();
+        final OffsetIndex lengths = new OffsetIndex();
+        final OffsetIndex rows = new OffsetIndex();
+    }
+
+    // 扫描得到每一行的偏移 追加记录 ("\u001E行号|...") 覆盖之前的版本 同时找到最后一条列结构记录
+    // 大文件在换行处切成多段并行扫描 再按顺序合并
+    private OffsetIndex buildIndex(TableFile table) {
+        try {
+            long start = table.nextLine(0);
+            long size = table.size();
+            int parts = size - start < PARALLEL_SCAN_BYTES ? 1
+                    : (int) Math.min(Runtime.getRuntime().availableProcessors(), (size - start) / (16 * 1024 * 1024));
+            long[] bounds = new long[parts + 1];
+            bounds[0] = start;
+            bounds[parts] = size;
+            for (int k = 1; k < parts; k++) {
+                // 对齐到下一行的开头
+                bounds[k] = Math.max(bounds[k - 1], table.nextLine(start + (size - start) * k / parts - 1));
+            }
+            List<ForkJoinTask<ScanPart>> tasks = new ArrayList<>();
+            for (int k = 0; k < parts; k++) {
+                long from = bounds[k];
+                long to = bounds[k + 1];
+                tasks.add(ForkJoinPool.commonPool().submit(() -> scanPart(table, from, to)));
+            }
+            OffsetIndex index = new OffsetIndex();
+            OffsetIndex lengths = new OffsetIndex();
+            List<long[]> pending = new ArrayList<>(); // 等待提交行的批量记录 {行号, 偏移, 长度}
+            long garbage = 0;
+            long schema = -1;
+            for (ForkJoinTask<ScanPart> task : tasks) {
+                ScanPart part = task.get();
+                for (int i = 0; i < part.offsets.size(); i++) {
+                    long row = part.rows.get(i);
+                    if (row == PLAIN_ROW) {
+                        index.add(part.offsets.get(i));
+                        lengths.add(part.lengths.get(i));
+                    } else if (row == COMMIT_LINE) {
+                        for (long[] record : pending) {
+                            garbage += lengths.get((int) record[0]);
+                            lengths.set((int) record[0], record[2]);
+                            index.set((int) record[0], record[1]);
+                        }
+                        pending.clear();
+                        garbage += part.lengths.get(i);
+                    } else if (row == SCHEMA_LINE) {
+                        schema = part.offsets.get(i);
+                    } else if (row >= PENDING_ROW) {
+                        pending.add(new long[] { row - PENDING_ROW, part.offsets.get(i), part.lengths.get(i) });
+                    } else {
+                        garbage += lengths.get((int) row);
+                        lengths.set((int) row, part.lengths.get(i));
+                        index.set((int) row, part.offsets.get(i));
+                    }
+                }
+            }
+            // 文件末尾没有提交的批量记录 (写入时崩溃) 忽略
+            for (long[] record : pending) {
+                garbage += record[2];
+            }
+            garbageBytes = garbage;
+            schemaOffset = schema;
+            return index;
+        } catch (IOException | InterruptedException | ExecutionException e) {
             throw new RuntimeException("Failed to build index", e);
         }
     }
 
+    private static ScanPart scanPart(TableFile table, long from, long to) throws IOException {
+        ScanPart part = new ScanPart();
+        if (from >= to) {
+            return part;
+        }
+        table.scan(from, to, (window, start, end, base) -> {
+            part.lengths.add(end - start + 1);
+            byte mark = end > start ? window.get(start) : 0;
+            if (mark == RECORD_MARK || mark == BATCH_MARK) {
+                long prefix = parseRecordPrefix(window, start, end);
+                part.rows.add((prefix >>> 32) + (mark == BATCH_MARK ? PENDING_ROW : 0));
+                part.offsets.add(base + (int) prefix);
+            } else if (mark == COMMIT_MARK) {
+                part.rows.add(COMMIT_LINE);
+                part.offsets.add(base + start);
+            } else if (mark == SCHEMA_MARK) {
+                part.rows.add(SCHEMA_LINE);
+                part.offsets.add(base + start);
+            } else {
+                part.rows.add(PLAIN_ROW);
+                part.offsets.add(base + start);
+            }
+        });
+        return part;
+    }
+
+    // 解析 "\u001E行号|" 前缀 返回 (行号 << 32) | 行数据在 window 中的起始下标
+    private static long parseRecordPrefix(ByteBuffer window, int start, int end) {
+        long row = 0;
+        int i = start + 1;
+        while (i < end && window.get(i) != '|') {
+            row = row * 10 + (window.get(i++) - '0');
+        }
+        return (row << 32) | (i + 1);
+    }
+
+    // 索引文件有效时返回其中的行偏移 否则返回 null
+    private OffsetIndex loadSidecar(TableFile table) {
+        try {
+            IndexSidecar.Contents contents = IndexSidecar.load(sidecar, table.getPath());
+            if (contents == null) {
+                return null;
+            }
+            garbageBytes = contents.garbageBytes;
+            schemaOffset = contents.schemaOffset;
+            for (ColumnIndex index : contents.indexes) {
+                indexes.put(index.column, index);
+            }
+            sidecarCurrent = true;
+            return contents.offsets;
+        } catch (IOException e) {
+            log.print(LOGH.SYSTEM, LOGX.DEBUG, "Ignoring index file " + sidecar + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // 索引文件只是加速启动 写入失败不影响数据
+    private void saveSidecar() {
+        try {
+            Generation generation = current;
+            IndexSidecar.save(sidecar, generation.table.getPath(), generation.offsets, garbageBytes,
+                    schemaOffset, indexes.values());
+            sidecarCurrent = true;
+        } catch (IOException e) {
+            log.print(LOGH.SYSTEM, LOGX.WARN, "Failed to write index file " + sidecar + ": " + e.getMessage());
+        }
+    }
+
+    // 在 writeLock 内 第一次修改数据前调用 崩溃后不会留下过期的索引文件
+    private void invalidateSidecar() throws IOException {
+        if (sidecarCurrent) {
+            IndexSidecar.delete(sidecar);
+            sidecarCurrent = false;
+        }
+    }
+
     public String readRow(int rowNumber) {
-        if (cache.containsKey(rowNumber)) {
-            return cache.get(rowNumber);
-        }
-        Long offset = rowIndex.get(rowNumber);
-        if (offset == null) {
-            throw new IllegalArgumentException("Row number out of range: " + rowNumber);
-        }
-        try (RandomAccessFile file = new RandomAccessFile(filePath, "r")) {
-            file.seek(offset);
-            String line = file.readLine();
-            cache.put(rowNumber, line);
-            return line;
+        Generation generation = acquire();
+        try {
+            return String.join(DELIMITER, generation.schema.project(readValues(generation, rowNumber)));
+        } finally {
+            generation.exit();
+        }
+    }
+
+    // 解析后的行 (按物理位置 见 TableSchema) 与缓存共享 调用方修改前需要复制
+    // 缓存总是保存最新的值: 写入者发布新版本之后才更新缓存 读者放入缓存后版本已变化时撤销
+    private String[] readValues(Generation generation, int rowNumber) {
+        String[] cached = cache.get(rowNumber);
+        if (cached != null) {
+            return cached;
+        }
+        long start = System.nanoTime();
+        String[] values = readFromFile(generation, rowNumber);
+        cache.recordLoad(System.nanoTime() - start);
+        cache.put(rowNumber, values);
+        if (generation != current) {
+            cache.invalidate(rowNumber);
+        }
+        return values;
+    }
+
+    // 不经过缓存 读取某个版本中的一行
+    static String[] readFromFile(Generation generation, int rowNumber) {
+        try {
+            return splitRow(generation.table.readLine(generation.offsets.get(rowNumber)));
         } catch (IOException e) {
             throw new RuntimeException("Failed to read row: " + rowNumber, e);
         }
     }
 
+    // 按 DELIMITER 切分 保留空字段 (等同于 split("\\|", -1) 但不经过正则)
+    static String[] splitRow(String row) {
+        if (row == null) {
+            return new String[0];
+        }
+        int count = 1;
+        for (int i = row.indexOf(DELIMITER); i >= 0; i = row.indexOf(DELIMITER, i + 1)) {
+            count++;
+        }
+        String[] values = new String[count];
+        int start = 0;
+        for (int k = 0; k < count - 1; k++) {
+            int end = row.indexOf(DELIMITER, start);
+            values[k] = row.substring(start, end);
+            start = end + 1;
+        }
+        values[count - 1] = row.substring(start);
+        return values;
+    }
+
+    public RowCache getCache() {
+        return cache;
+    }
+
+    // 当前版本的只读快照 / point-in-time snapshot
+    // 之后提交的修改 (包括压缩和列变更) 对快照不可见 读取直接访问该版本的文件 不经过行缓存
+    // 快照持有旧文件 用完必须 close
+    public Snapshot snapshot() {
+        return new Snapshot(acquire());
+    }
+
+    public static final class Snapshot implements AutoCloseable {
+        private final Generation generation;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Snapshot(Generation generation) {
+            this.generation = generation;
+        }
+
+        // 每次提交加一
+        public long getVersion() {
+            return generation.version;
+        }
+
+        public List<String> getHeaders() {
+            return generation.headers;
+        }
+
+        // 行数
+        public int size() {
+            return generation.offsets.size();
+        }
+
+        public String get(int id, String column) {
+            int columnIndex = generation.schema.column(column);
+            if (columnIndex == -1) {
+                throw new IllegalArgumentException("Column not found: " + column);
+            }
+            return valueAt(read(id - 1), columnIndex);
+        }
+
+        public String readRow(int rowNumber) {
+            return String.join(DELIMITER, generation.schema.project(read(rowNumber)));
+        }
+
+        private String[] read(int rowNumber) {
+            if (closed.get()) {
+                throw new IllegalStateException("Snapshot closed");
+            }
+            return readFromFile(generation, rowNumber);
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                generation.exit();
+            }
+        }
+    }
+
+    // 流式查询 / streaming query over a snapshot
+    // 多列条件 投影 limit 和数值聚合 在 fork-join 线程上按行号范围并行扫描 不经过行缓存
+    // 结果按行号顺序惰性产生 不在内存中收集所有行
+    // stream() 固定一个版本直到遍历结束 提前结束时需要关闭流 (try-with-resources) 才会释放
+    public Query query() {
+        return new Query();
+    }
+
+    public final class Query {
+        private final List<String> columns = new ArrayList<>();
+        private final List<Predicate<String>> tests = new ArrayList<>();
+        private String[] projection;
+        private long limit = -1;
+        private boolean parallel = true;
+
+        private Query() {
+        }
+
+        // 同一个查询中的多个条件是 AND 关系 缺少的列按 "null" 处理
+        public Query where(String column, Predicate<String> test) {
+            columns.add(column);
+            tests.add(test);
+            return this;
+        }
+
+        public Query whereEquals(String column, String value) {
+            return where(column, value::equals);
+        }
+
+        // 只返回这些列 (按给出的顺序) 不调用时返回整行
+        public Query select(String... columns) {
+            this.projection = columns.clone();
+            return this;
+        }
+
+        public Query limit(long maxRows) {
+            if (maxRows < 0) {
+                throw new IllegalArgumentException("limit must be >= 0");
+            }
+            this.limit = maxRows;
+            return this;
+        }
+
+        // 在调用线程上顺序扫描
+        public Query sequential() {
+            this.parallel = false;
+            return this;
+        }
+
+        public Stream<String[]> stream() {
+            return stream(projection);
+        }
+
+        public long count() {
+            try (Stream<String[]> rows = stream(null)) {
+                return rows.count();
+            }
+        }
+
+        // 某一列的 count/sum/min/max 只统计能解析成数字的值 ("null" 和空值跳过)
+        public DoubleSummaryStatistics stats(String column) {
+            try (Stream<String[]> rows = stream(new String[] { column })) {
+                return rows.map(values -> values[0])
+                        .filter(value -> !value.isEmpty() && !value.equals("null"))
+                        .mapToDouble(Query::parseNumber)
+                        .filter(number -> !Double.isNaN(number))
+                        .summaryStatistics();
+            }
+        }
+
+        public double sum(String column) {
+            return stats(column).getSum();
+        }
+
+        public OptionalDouble min(String column) {
+            DoubleSummaryStatistics stats = stats(column);
+            return stats.getCount() == 0 ? OptionalDouble.empty() : OptionalDouble.of(stats.getMin());
+        }
+
+        public OptionalDouble max(String column) {
+            DoubleSummaryStatistics stats = stats(column);
+            return stats.getCount() == 0 ? OptionalDouble.empty() : OptionalDouble.of(stats.getMax());
+        }
+
+        private static double parseNumber(String value) {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+
+        private Stream<String[]> stream(String[] select) {
+            Generation generation = acquire();
+            RowSpliterator.Pin pin = new RowSpliterator.Pin(generation);
+            try {
+                TableSchema schema = generation.schema;
+                int[] whereIndexes = indexesOf(schema, columns.toArray(new String[0]));
+                int[] selectIndexes = select == null ? null : indexesOf(schema, select);
+                List<Predicate<String>> conditions = new ArrayList<>(tests);
+                Stream<String[]> rows = StreamSupport.stream(
+                        new RowSpliterator(pin, generation.table.nextLine(0)), parallel).onClose(pin);
+                if (!conditions.isEmpty()) {
+                    rows = rows.filter(values -> {
+                        for (int i = 0; i < whereIndexes.length; i++) {
+                            if (!conditions.get(i).test(valueAt(values, whereIndexes[i]))) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    });
+                }
+                if (selectIndexes != null) {
+                    rows = rows.map(values -> {
+                        String[] selected = new String[selectIndexes.length];
+                        for (int i = 0; i < selectIndexes.length; i++) {
+                            selected[i] = valueAt(values, selectIndexes[i]);
+                        }
+                        return selected;
+                    });
+                } else {
+                    rows = rows.map(schema::project);
+                }
+                return limit >= 0 ? rows.limit(limit) : rows;
+            } catch (IOException | RuntimeException e) {
+                pin.run();
+                if (e instanceof RuntimeException) {
+                    throw (RuntimeException) e;
+                }
+                throw new RuntimeException("Failed to scan " + filePath, e);
+            }
+        }
+    }
+
+    // 列的物理位置
+    private static int[] indexesOf(TableSchema schema, String[] columns) {
+        int[] indexes = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indexes[i] = schema.column(columns[i]);
+            if (indexes[i] == -1) {
+                throw new IllegalArgumentException("Column not found: " + columns[i]);
+            }
+        }
+        return indexes;
+    }
+
     public String get(int id, String column) {
-        int columnIndex = headers.indexOf(column);
-        if (columnIndex == -1) {
-            throw new IllegalArgumentException("Column not found: " + column);
+        Generation generation = acquire();
+        try {
+            int columnIndex = generation.schema.column(column);
+            if (columnIndex == -1) {
+                throw new IllegalArgumentException("Column not found: " + column);
+            }
+            String[] values = readValues(generation, id - 1);
+            return (columnIndex < values.length) ? values[columnIndex] : "null";
+        } finally {
+            generation.exit();
         }
-        String row = readRow(id - 1);
-        String[] values = row.split("\\" + DELIMITER, -1);
-        return (columnIndex < values.length) ? values[columnIndex] : "null";
     }
 
     public String get(String searchColumn, String searchValue, String targetColumn) {
-        int searchIndex = headers.indexOf(searchColumn);
-        int targetIndex = headers.indexOf(targetColumn);
-        if (searchIndex == -1 || targetIndex == -1) {
-            throw new IllegalArgumentException("Column not found");
+        Generation generation = acquire();
+        try {
+            int searchIndex = generation.schema.column(searchColumn);
+            int targetIndex = generation.schema.column(targetColumn);
+            if (searchIndex == -1 || targetIndex == -1) {
+                throw new IllegalArgumentException("Column not found");
+            }
+            ColumnIndex index = indexes.get(searchColumn);
+            if (index != null) {
+                for (int rowNumber : index.lookup(searchValue)) {
+                    // 索引在新版本发布之后才更新 按固定的版本再确认一次
+                    String[] values = readValues(generation, rowNumber);
+                    if (searchIndex < values.length && values[searchIndex].equals(searchValue)) {
+                        return (targetIndex < values.length) ? values[targetIndex] : "null";
+                    }
+                }
+                return null;
+            }
+            for (int rowNumber = 0; rowNumber < generation.offsets.size(); rowNumber++) {
+                String[] values = readValues(generation, rowNumber);
+                if (searchIndex < values.length && values[searchIndex].equals(searchValue)) {
+                    return (targetIndex < values.length) ? values[targetIndex] : "null";
+                }
+            }
+            return null;
+        } finally {
+            generation.exit();
         }
-        for (int rowNumber : rowIndex.keySet()) {
-            String row = readRow(rowNumber);
-            String[] values = row.split("\\" + DELIMITER, -1);
-            if (searchIndex < values.length && values[searchIndex].equals(searchValue)) {
-                return (targetIndex < values.length) ? values[targetIndex] : "null";
+    }
+
+    // 所有匹配行的 id (从 1 开始 与 get(int id, ...) 一致)
+    public List<Integer> find(String searchColumn, String searchValue) {
+        List<Integer> ids = new ArrayList<>();
+        ColumnIndex index = indexes.get(searchColumn);
+        if (index != null) {
+            for (int rowNumber : index.lookup(searchValue)) {
+                ids.add(rowNumber + 1);
+            }
+            return ids;
+        }
+        Generation generation = acquire();
+        try {
+            int searchIndex = generation.schema.column(searchColumn);
+            if (searchIndex == -1) {
+                throw new IllegalArgumentException("Column not found: " + searchColumn);
             }
+            forEachRow(generation, (rowNumber, values) -> {
+                if (searchIndex < values.length && values[searchIndex].equals(searchValue)) {
+                    ids.add(rowNumber + 1);
+                }
+            });
+        } finally {
+            generation.exit();
         }
-        return null;
+        // 追加记录在文件末尾 按行号排序
+        Collections.sort(ids);
+        return ids;
     }
 
     public void set(int id, String column, String value) {
-        int columnIndex = headers.indexOf(column);
+        requireWritable();
+        int columnIndex = current.schema.column(column);
         if (columnIndex == -1) {
             throw new IllegalArgumentException("Column not found: " + column);
         }
-        String row = readRow(id - 1);
-        String[] values = row.split("\\" + DELIMITER, -1);
-        if (columnIndex >= values.length) {
-            values = Arrays.copyOf(values, columnIndex + 1);
+        Generation generation = acquire();
+        String[] values;
+        try {
+            values = readValues(generation, id - 1);
+        } finally {
+            generation.exit();
         }
-        values[columnIndex] = value;
-        String newRow = String.join(DELIMITER, values);
+        String newRow = String.join(DELIMITER, withValue(values, columnIndex, value));
         updateRow(id - 1, newRow);
     }
 
     public void set(String searchColumn, String searchValue, String targetColumn, String targetValue) {
-        int searchIndex = headers.indexOf(searchColumn);
-        int targetIndex = headers.indexOf(targetColumn);
+        requireWritable();
+        TableSchema schema = current.schema;
+        int searchIndex = schema.column(searchColumn);
+        int targetIndex = schema.column(targetColumn);
         if (searchIndex == -1 || targetIndex == -1) {
             throw new IllegalArgumentException("Column not found");
         }
-        for (int rowNumber : rowIndex.keySet()) {
-            String row = readRow(rowNumber);
-            String[] values = row.split("\\" + DELIMITER, -1);
+        ColumnIndex index = indexes.get(searchColumn);
+        List<Integer> candidates = new ArrayList<>();
+        if (index != null) {
+            for (int rowNumber : index.lookup(searchValue)) {
+                candidates.add(rowNumber);
+            }
+        } else {
+            for (int rowNumber = 0; rowNumber < current.offsets.size(); rowNumber++) {
+                candidates.add(rowNumber);
+            }
+        }
+        for (int rowNumber : candidates) {
+            String[] values = readRowValues(rowNumber);
             if (searchIndex < values.length && values[searchIndex].equals(searchValue)) {
-                if (targetIndex >= values.length) {
-                    values = Arrays.copyOf(values, targetIndex + 1);
-                }
-                values[targetIndex] = targetValue;
-                String newRow = String.join(DELIMITER, values);
+                String newRow = String.join(DELIMITER, withValue(values, targetIndex, targetValue));
                 updateRow(rowNumber, newRow);
             }
         }
     }
 
+    private String[] readRowValues(int rowNumber) {
+        Generation generation = acquire();
+        try {
+            return readValues(generation, rowNumber);
+        } finally {
+            generation.exit();
+        }
+    }
+
     private void updateRow(int rowNumber, String newData) {
         Future<?> future = executor.submit(() -> {
             writeLock.lock();
-            try (RandomAccessFile file = new RandomAccessFile(filePath, "rw")) {
-                Long offset = rowIndex.get(rowNumber);
-                if (offset == null) {
-                    throw new IllegalArgumentException("Row number out of range: " + rowNumber);
-                }
-                file.seek(offset);
-                String oldLine = file.readLine();
-                long nextOffset = file.getFilePointer();
-                byte[] remainingData = new byte[(int) (file.length() - nextOffset)];
-                file.readFully(remainingData);
-    
-                file.seek(offset);
-                file.writeBytes(newData + System.lineSeparator());
-                file.write(remainingData);
-    
-                // 截断文件，确保文件长度正确
-                file.setLength(file.getFilePointer());
-    
-                cache.put(rowNumber, newData);
+            try {
+                Generation generation = current;
+                long offset = generation.offsets.get(rowNumber);
+                Map<Integer, String[]> oldRows = Collections.singletonMap(rowNumber,
+                        splitRow(generation.table.readLine(offset)));
+                Map<Integer, String[]> newRows = Collections.singletonMap(rowNumber, splitRow(newData));
+                // 与 applyBatch 相同: 先检查唯一约束 写入并发布之后才修改索引
+                // 写入失败时索引不变 读者也不会从索引找到还没有发布的值
+                checkUnique(oldRows, newRows);
+                invalidateSidecar();
+                // 两种模式都追加: 不改动已有的字节 旧版本的读者不受影响 新旧版本共用一个文件 只复制被修改的偏移块
+                // IN_PLACE 每次重写整个文件的代价与表的大小成正比 追加的记录由压缩或 shutdown 收回
+                OffsetIndex offsets = generation.offsets.copy();
+                appendRow(generation.table, offsets, rowNumber, newData.getBytes(StandardCharsets.UTF_8));
+                garbageBytes += generation.table.nextLine(offset) - offset;
+                publish(generation.table, offsets, generation.schema);
+                maybeCompact(generation.table.size());
+                applyIndexes(oldRows, newRows);
+                cache.put(rowNumber, newRows.get(rowNumber));
             } catch (IOException e) {
                 throw new RuntimeException("Failed to update row: " + rowNumber, e);
             } finally {
                 writeLock.unlock();
             }
         });
-    
+
         try {
             future.get();
-        } catch (InterruptedException | ExecutionException e) {
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IllegalArgumentException) {
+                throw (IllegalArgumentException) e.getCause();
+            }
+            throw new RuntimeException("Failed to update row: " + rowNumber, e);
+        } catch (InterruptedException e) {
             throw new RuntimeException("Failed to update row: " + rowNumber, e);
         }
     }
 
+    // 在文件末尾追加 "\u001E行号|新行" 并把行指针移过去 只写新行的字节
+    private static void appendRow(TableFile table, OffsetIndex rowIndex, int rowNumber, byte[] newBytes)
+            throws IOException {
+        long end = table.size();
+        byte[] prefix = ("" + (char) RECORD_MARK + rowNumber + DELIMITER).getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer record = ByteBuffer.allocate(LINE_SEPARATOR.length + prefix.length + newBytes.length
+                + LINE_SEPARATOR.length);
+        if (end > 0) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            table.read(end - 1, last);
+            if (last.get(0) != '\n') {
+                // 最后一行没有换行符
+                record.put(LINE_SEPARATOR);
+            }
+        }
+        record.put(prefix);
+        long dataOffset = end + record.position();
+        record.put(newBytes).put(LINE_SEPARATOR).flip();
+        table.write(end, record);
+        rowIndex.set(rowNumber, dataOffset);
+    }
+
+    private void maybeCompact(long fileLength) {
+        if (fileLength < MIN_COMPACTION_BYTES || garbageBytes < fileLength * compactionRatio) {
+            return;
+        }
+        if (compacting.compareAndSet(false, true)) {
+            executor.submit(() -> {
+                try {
+                    rewriteFileNow();
+                } catch (RuntimeException e) {
+                    log.print(LOGH.SYSTEM, LOGX.WARN, "Compaction of " + filePath + " failed: " + e.getMessage());
+                } finally {
+                    compacting.set(false);
+                }
+            });
+        }
+    }
+
+    // 立即把存活的行重写成一个新文件 APPEND 模式下回收全部垃圾
+    public void compact() {
+        requireWritable();
+        rewriteFile();
+    }
+
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    public long getGarbageBytes() {
+        return garbageBytes;
+    }
+
+    public void setCompactionRatio(double compactionRatio) {
+        if (compactionRatio <= 0 || compactionRatio > 1) {
+            throw new IllegalArgumentException("compactionRatio must be in (0, 1]");
+        }
+        this.compactionRatio = compactionRatio;
+    }
+
+    // 一组行同时修改后是否违反唯一约束 (组内的行可以互相交换值)
+    private void checkUnique(Map<Integer, String[]> oldRows, Map<Integer, String[]> newRows) {
+        for (ColumnIndex index : indexes.values()) {
+            if (!index.unique) {
+                continue;
+            }
+            int columnIndex = current.schema.column(index.column);
+            Map<String, Integer> claimed = new HashMap<>();
+            for (Map.Entry<Integer, String[]> entry : newRows.entrySet()) {
+                String newValue = valueAt(entry.getValue(), columnIndex);
+                if (newValue.equals(valueAt(oldRows.get(entry.getKey()), columnIndex))) {
+                    continue;
+                }
+                Integer other = claimed.put(newValue, entry.getKey());
+                boolean taken = other != null;
+                for (int owner : index.lookup(newValue)) {
+                    // 组内的行如果同时改掉了这个值 就不算冲突
+                    String[] ownerNew = newRows.get(owner);
+                    if (owner != entry.getKey() && (ownerNew == null || valueAt(ownerNew, columnIndex).equals(newValue))) {
+                        taken = true;
+                    }
+                }
+                if (taken) {
+                    throw new IllegalArgumentException("Duplicate value for unique column " + index.column + ": "
+                            + newValue);
+                }
+            }
+        }
+    }
+
+    // 先删除全部旧值再加入新值 组内交换值时不会误删
+    private void applyIndexes(Map<Integer, String[]> oldRows, Map<Integer, String[]> newRows) {
+        for (ColumnIndex index : indexes.values()) {
+            int columnIndex = current.schema.column(index.column);
+            for (Map.Entry<Integer, String[]> entry : newRows.entrySet()) {
+                String oldValue = valueAt(oldRows.get(entry.getKey()), columnIndex);
+                if (!oldValue.equals(valueAt(entry.getValue(), columnIndex))) {
+                    index.remove(oldValue, entry.getKey());
+                }
+            }
+            for (Map.Entry<Integer, String[]> entry : newRows.entrySet()) {
+                String newValue = valueAt(entry.getValue(), columnIndex);
+                if (!newValue.equals(valueAt(oldRows.get(entry.getKey()), columnIndex))) {
+                    index.add(newValue, entry.getKey());
+                }
+            }
+        }
+    }
+
+    private static String valueAt(String[] values, int columnIndex) {
+        return (columnIndex >= 0 && columnIndex < values.length) ? values[columnIndex] : "null";
+    }
+
+    // 复制一行并修改一列 比这一列短的行 (之后新增的列) 中间补 "null"
+    private static String[] withValue(String[] values, int columnIndex, String value) {
+        String[] copy = Arrays.copyOf(values, Math.max(values.length, columnIndex + 1));
+        Arrays.fill(copy, values.length, copy.length, "null");
+        copy[columnIndex] = value;
+        return copy;
+    }
+
+    public void createIndex(String column) {
+        createIndex(column, false);
+    }
+
+    // 建立二级索引 之后按该列的 get/set/find 不再扫描整张表
+    // unique 为 true 时已有重复值会抛出 IllegalStateException 之后的 set 写入重复值会抛出 IllegalArgumentException
+    public void createIndex(String column, boolean unique) {
+        if (!getHeaders().contains(column)) {
+            throw new IllegalArgumentException("Column not found: " + column);
+        }
+        writeLock.lock();
+        try {
+            ColumnIndex existing = indexes.get(column);
+            if (existing != null && existing.unique == unique) {
+                // 已经从索引文件读入
+                return;
+            }
+            indexes.put(column, buildColumnIndex(column, unique));
+            sidecarCurrent = false;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void dropIndex(String column) {
+        writeLock.lock();
+        try {
+            indexes.remove(column);
+            sidecarCurrent = false;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean hasIndex(String column) {
+        return indexes.containsKey(column);
+    }
+
+    // 顺序扫描整个文件 (mmap) 不经过行缓存 逐行 pread 对大表太慢
+    // 在 writeLock 内调用 当前版本不会被替换
+    private ColumnIndex buildColumnIndex(String column, boolean unique) {
+        Generation generation = current;
+        int columnIndex = generation.schema.column(column);
+        ColumnIndex index = new ColumnIndex(column, unique);
+        forEachRow(generation, (rowNumber, values) -> {
+            String value = valueAt(values, columnIndex);
+            if (index.conflicts(value, rowNumber)) {
+                throw new IllegalStateException("Duplicate value for unique column " + column + ": " + value);
+            }
+            index.add(value, rowNumber);
+        });
+        return index;
+    }
+
+    private interface RowVisitor {
+        void row(int rowNumber, String[] values);
+    }
+
+    // 按文件顺序访问 generation 中的每一行 (物理位置) 被追加记录覆盖的旧版本和之后追加的记录跳过
+    private void forEachRow(Generation generation, RowVisitor visitor) {
+        TableFile table = generation.table;
+        OffsetIndex index = generation.offsets;
+        int[] plainRows = { 0 };
+        byte[][] scratch = { new byte[256] };
+        try {
+            table.scan(table.nextLine(0), Long.MAX_VALUE, (window, start, end, base) -> {
+                int row;
+                int dataStart = start;
+                byte mark = end > start ? window.get(start) : 0;
+                if (mark == RECORD_MARK || mark == BATCH_MARK) {
+                    long prefix = parseRecordPrefix(window, start, end);
+                    row = (int) (prefix >>> 32);
+                    dataStart = (int) prefix;
+                } else if (mark == COMMIT_MARK || mark == SCHEMA_MARK) {
+                    return;
+                } else {
+                    row = plainRows[0]++;
+                }
+                if (row >= index.size() || index.get(row) != base + dataStart) {
+                    return;
+                }
+                int dataEnd = end > dataStart && window.get(end - 1) == '\r' ? end - 1 : end;
+                int length = dataEnd - dataStart;
+                if (scratch[0].length < length) {
+                    scratch[0] = new byte[Math.max(length, scratch[0].length * 2)];
+                }
+                window.get(dataStart, scratch[0], 0, length);
+                visitor.row(row, splitRow(new String(scratch[0], 0, length, StandardCharsets.UTF_8)));
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to scan " + filePath, e);
+        }
+    }
+
+    // 压缩改变了物理位置后重建 被删除列上的索引一并删除
+    private void rebuildIndexes() {
+        for (ColumnIndex index : new ArrayList<>(indexes.values())) {
+            if (current.schema.contains(index.column)) {
+                indexes.put(index.column, buildColumnIndex(index.column, index.unique));
+            } else {
+                indexes.remove(index.column);
+            }
+        }
+    }
+
+    // 批量修改 / batched writes
+    // 修改先在内存中缓存 commit 时一次获取 writeLock 一次写入 一次 fsync 全部成功或全部不生效
+    // IN_PLACE: 一次顺序扫描写出新文件 然后原子替换
+    // APPEND: 所有记录一次追加 最后写入提交行 崩溃时没有提交行的记录在启动时丢弃
+    public Batch batch() {
+        return new Batch();
+    }
+
+    public final class Batch {
+        private final List<String[]> changes = new ArrayList<>(); // {id 或 null, 查找列, 查找值, 目标列, 新值}
+        private boolean committed;
+
+        private Batch() {
+        }
+
+        public Batch set(int id, String column, String value) {
+            requireColumn(column);
+            changes.add(new String[] { Integer.toString(id), null, null, column, value });
+            return this;
+        }
+
+        // 查找在 commit 时按提交前的数据进行
+        public Batch set(String searchColumn, String searchValue, String targetColumn, String targetValue) {
+            requireColumn(searchColumn);
+            requireColumn(targetColumn);
+            changes.add(new String[] { null, searchColumn, searchValue, targetColumn, targetValue });
+            return this;
+        }
+
+        public int size() {
+            return changes.size();
+        }
+
+        public void commit() {
+            try {
+                commitAsync().join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        // 在 executor 上提交 调用方可以继续工作
+        public CompletableFuture<Void> commitAsync() {
+            if (committed) {
+                throw new IllegalStateException("Batch already committed");
+            }
+            requireWritable();
+            committed = true;
+            List<String[]> pending = new ArrayList<>(changes);
+            return CompletableFuture.runAsync(() -> applyBatch(pending), executor);
+        }
+    }
+
+    private void requireWritable() {
+        if (storageMode == StorageMode.READ_ONLY) {
+            throw new IllegalStateException("Opened read-only: " + filePath);
+        }
+    }
+
+    private void requireColumn(String column) {
+        if (!getHeaders().contains(column)) {
+            throw new IllegalArgumentException("Column not found: " + column);
+        }
+    }
+
+    private void applyBatch(List<String[]> changes) {
+        writeLock.lock();
+        try {
+            // 同一行的多次修改合并成一行 后面的修改覆盖前面的
+            Map<Integer, String[]> oldRows = new HashMap<>();
+            TreeMap<Integer, String[]> newRows = new TreeMap<>();
+            Generation generation = current;
+            for (String[] change : changes) {
+                int targetIndex = generation.schema.column(change[3]);
+                if (targetIndex == -1) {
+                    throw new IllegalArgumentException("Column not found: " + change[3]);
+                }
+                List<Integer> rows = new ArrayList<>();
+                if (change[0] != null) {
+                    rows.add(Integer.parseInt(change[0]) - 1);
+                } else {
+                    for (int id : find(change[1], change[2])) {
+                        rows.add(id - 1);
+                    }
+                }
+                for (int rowNumber : rows) {
+                    String[] values = newRows.get(rowNumber);
+                    if (values == null) {
+                        values = readValues(generation, rowNumber);
+                        oldRows.put(rowNumber, values);
+                    }
+                    newRows.put(rowNumber, withValue(values, targetIndex, change[4]));
+                }
+            }
+            if (newRows.isEmpty()) {
+                return;
+            }
+            checkUnique(oldRows, newRows);
+            invalidateSidecar();
+            // rewriteBatch 按顺序把每一行当作普通行 文件中已有追加记录时也追加
+            if (storageMode == StorageMode.APPEND || garbageBytes > 0) {
+                appendBatch(newRows);
+            } else {
+                rewriteBatch(newRows);
+            }
+            applyIndexes(oldRows, newRows);
+            for (Map.Entry<Integer, String[]> entry : newRows.entrySet()) {
+                cache.put(entry.getKey(), entry.getValue());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to commit batch", e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void appendBatch(TreeMap<Integer, String[]> newRows) throws IOException {
+        Generation generation = current;
+        TableFile table = generation.table;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long end = table.size();
+        if (end > 0) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            table.read(end - 1, last);
+            if (last.get(0) != '\n') {
+                out.write(LINE_SEPARATOR);
+            }
+        }
+        Map<Integer, Long> offsets = new HashMap<>();
+        for (Map.Entry<Integer, String[]> entry : newRows.entrySet()) {
+            out.write(("" + (char) BATCH_MARK + entry.getKey() + DELIMITER).getBytes(StandardCharsets.US_ASCII));
+            offsets.put(entry.getKey(), end + out.size());
+            out.write(String.join(DELIMITER, entry.getValue()).getBytes(StandardCharsets.UTF_8));
+            out.write(LINE_SEPARATOR);
+        }
+        out.write(("" + (char) COMMIT_MARK + newRows.size()).getBytes(StandardCharsets.US_ASCII));
+        out.write(LINE_SEPARATOR);
+        table.write(end, ByteBuffer.wrap(out.toByteArray()));
+        table.force();
+        // 写入成功后才发布新的行指针
+        OffsetIndex rowIndex = generation.offsets.copy();
+        for (Map.Entry<Integer, Long> entry : offsets.entrySet()) {
+            long old = rowIndex.get(entry.getKey());
+            garbageBytes += table.nextLine(old) - old;
+            rowIndex.set(entry.getKey(), entry.getValue());
+        }
+        publish(table, rowIndex, generation.schema);
+        maybeCompact(table.size());
+    }
+
+    // 顺序复制整个文件 修改过的行写入新内容 新文件的偏移在写出时直接得到 不再重新扫描
+    // 列结构记录不复制 当前的列结构写在新文件的第一行
+    private void rewriteBatch(Map<Integer, String[]> newRows) throws IOException {
+        Generation generation = current;
+        TableFile table = generation.table;
+        Path target = table.getPath();
+        Path temp = Paths.get(filePath + ".tmp");
+        OffsetIndex index = new OffsetIndex(generation.offsets.size());
+        long headerEnd = table.nextLine(0);
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             BufferedOutputStream out = new BufferedOutputStream(file, 1 << 16)) {
+            byte[] header = generation.schema.encodeHeader().getBytes(StandardCharsets.UTF_8);
+            out.write(header);
+            out.write(LINE_SEPARATOR);
+            long[] written = { header.length + LINE_SEPARATOR.length };
+            int[] rowNumber = { 0 };
+            byte[][] scratch = { new byte[8192] };
+            IOException[] failure = new IOException[1];
+            table.scan(headerEnd, Long.MAX_VALUE, (window, start, end, base) -> {
+                if (failure[0] != null) {
+                    return;
+                }
+                if (end > start && window.get(start) == SCHEMA_MARK) {
+                    return;
+                }
+                try {
+                    int row = rowNumber[0]++;
+                    index.add(written[0]);
+                    String[] values = newRows.get(row);
+                    if (values != null) {
+                        byte[] bytes = String.join(DELIMITER, values).getBytes(StandardCharsets.UTF_8);
+                        out.write(bytes);
+                        out.write(LINE_SEPARATOR);
+                        written[0] += bytes.length + LINE_SEPARATOR.length;
+                    } else {
+                        int length = end - start;
+                        if (scratch[0].length < length) {
+                            scratch[0] = new byte[length];
+                        }
+                        window.get(start, scratch[0], 0, length);
+                        out.write(scratch[0], 0, length);
+                        out.write('\n');
+                        written[0] += length + 1;
+                    }
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        // 旧版本的读者继续读已被替换的旧文件 最后一个退出时关闭
+        schemaOffset = -1;
+        publish(new TableFile(target), index, generation.schema);
+    }
+
+    private static byte[] schemaRecord(TableSchema schema) {
+        byte[] record = ((char) SCHEMA_MARK + schema.encode()).getBytes(StandardCharsets.UTF_8);
+        byte[] line = Arrays.copyOf(record, record.length + LINE_SEPARATOR.length);
+        System.arraycopy(LINE_SEPARATOR, 0, line, record.length, LINE_SEPARATOR.length);
+        return line;
+    }
+
+    // 列变更只在文件末尾追加一条列结构记录 不重写数据 耗时与表大小无关
+    // 新列在之前写入的行中读出 "null" 删除的列在读取时隐藏 数据在下一次压缩时去掉
     public void addColumn(String column) {
-        if (!headers.contains(column)) {
-            headers.add(column);
-            rewriteFile();
+        if (column.isEmpty() || column.contains(DELIMITER) || column.indexOf('\n') >= 0
+                || column.indexOf('\r') >= 0 || column.indexOf(SCHEMA_MARK) >= 0) {
+            throw new IllegalArgumentException("Invalid column name: " + column);
+        }
+        if (!getHeaders().contains(column)) {
+            changeSchema(schema -> schema.contains(column) ? schema : schema.withColumn(column));
         }
     }
 
     public void removeColumn(String column) {
-        int columnIndex = headers.indexOf(column);
-        if (columnIndex == -1) {
+        if (!getHeaders().contains(column)) {
             throw new IllegalArgumentException("Column not found: " + column);
         }
-        headers.remove(columnIndex);
-        rewriteFile();
+        changeSchema(schema -> {
+            if (!schema.contains(column)) {
+                throw new IllegalArgumentException("Column not found: " + column);
+            }
+            return schema.withoutColumn(column);
+        });
     }
 
-    private void rewriteFile() {
+    // 物理位置不变 行缓存和其余列的索引继续有效
+    private void changeSchema(UnaryOperator<TableSchema> change) {
+        requireWritable();
         Future<?> future = executor.submit(() -> {
             writeLock.lock();
-            File tempFile = new File(filePath + ".tmp");
-            List<String> oldHeaders;
-            try (BufferedReader reader = new BufferedReader(new FileReader(filePath));
-                 BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile))) {
-                String oldHeaderLine = reader.readLine();
-                oldHeaders = (oldHeaderLine != null) ?
-                        Arrays.asList(oldHeaderLine.split("\\" + DELIMITER, -1)) :
-                        Collections.emptyList();
-                writer.write(String.join(DELIMITER, headers) + System.lineSeparator());
-                Map<String, Integer> oldHeaderIndices = new HashMap<>();
-                for (int i = 0; i < oldHeaders.size(); i++) {
-                    oldHeaderIndices.put(oldHeaders.get(i), i);
-                }
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] oldValues = line.split("\\" + DELIMITER, -1);
-                    List<String> newValues = new ArrayList<>();
-                    for (String header : headers) {
-                        Integer oldIndex = oldHeaderIndices.get(header);
-                        if (oldIndex != null && oldIndex < oldValues.length) {
-                            newValues.add(oldValues[oldIndex]);
-                        } else {
-                            newValues.add("null");
-                        }
+            try {
+                Generation generation = current;
+                TableSchema schema = change.apply(generation.schema);
+                if (schema == generation.schema) {
+                    return;
+                }
+                invalidateSidecar();
+                TableFile table = generation.table;
+                long end = table.size();
+                byte[] record = schemaRecord(schema);
+                ByteBuffer buffer = ByteBuffer.allocate(LINE_SEPARATOR.length + record.length);
+                if (end > 0) {
+                    ByteBuffer last = ByteBuffer.allocate(1);
+                    table.read(end - 1, last);
+                    if (last.get(0) != '\n') {
+                        // 最后一行没有换行符
+                        buffer.put(LINE_SEPARATOR);
                     }
-                    writer.write(String.join(DELIMITER, newValues) + System.lineSeparator());
                 }
+                long offset = end + buffer.position();
+                buffer.put(record).flip();
+                table.write(end, buffer);
+                table.force();
+                schemaOffset = offset;
+                publish(table, generation.offsets, schema);
+                indexes.keySet().removeIf(column -> !schema.contains(column));
             } catch (IOException e) {
-                throw new RuntimeException("Failed to rewrite file", e);
+                throw new RuntimeException("Failed to change columns of " + filePath, e);
             } finally {
                 writeLock.unlock();
             }
+        });
 
-            try {
-                Files.move(tempFile.toPath(), new File(filePath).toPath(), StandardCopyOption.REPLACE_EXISTING);
-            } catch (IOException e) {
-                throw new RuntimeException("Failed to replace file", e);
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IllegalArgumentException) {
+                throw (IllegalArgumentException) e.getCause();
             }
+            throw new RuntimeException("Failed to change columns of " + filePath, e);
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Failed to change columns of " + filePath, e);
+        }
+    }
 
-            buildIndex();
-            cache.clear();
-        });
+    private void rewriteFile() {
+        Future<?> future = executor.submit(this::rewriteFileNow);
 
         try {
             future.get();
@@ -239,6 +1276,52 @@ public class LightweightDataManager {
         }
     }
 
+    // 按行号顺序写出每一行的最新版本 (同时回收垃圾 去掉已删除的列 补齐新列) 然后原子替换原文件
+    // 列结构版本号保留: 大于 1 时写在新文件第一行的末尾 不再需要列结构记录
+    private void rewriteFileNow() {
+        writeLock.lock();
+        try {
+            Generation generation = current;
+            TableSchema schema = generation.schema.compacted();
+            int[] positions = generation.schema.positions();
+            File tempFile = new File(filePath + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tempFile);
+                 BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+                writer.write(schema.encodeHeader() + System.lineSeparator());
+                String[] newValues = new String[positions.length];
+                for (int rowNumber = 0; rowNumber < generation.offsets.size(); rowNumber++) {
+                    String[] oldValues = readValues(generation, rowNumber);
+                    for (int i = 0; i < positions.length; i++) {
+                        newValues[i] = valueAt(oldValues, positions[i]);
+                    }
+                    writer.write(String.join(DELIMITER, newValues) + System.lineSeparator());
+                }
+                writer.flush();
+                out.getFD().sync();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to rewrite file", e);
+            }
+
+            try {
+                try {
+                    Files.move(tempFile.toPath(), new File(filePath).toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempFile.toPath(), new File(filePath).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to replace file", e);
+            }
+
+            TableFile table = openTable();
+            publish(table, buildIndex(table), schema);
+            cache.clear();
+            rebuildIndexes();
+            saveSidecar();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
     public void shutdown() {
         executor.shutdown();
         try {
@@ -248,5 +1331,23 @@ public class LightweightDataManager {
         } catch (InterruptedException e) {
             executor.shutdownNow();
         }
+        writeLock.lock();
+        try {
+            if (storageMode == StorageMode.IN_PLACE && (garbageBytes > 0 || schemaOffset >= 0)) {
+                // 还原成普通表 失败时追加记录还在 下次打开时再压缩
+                try {
+                    rewriteFileNow();
+                } catch (RuntimeException e) {
+                    log.print(LOGH.SYSTEM, LOGX.WARN, "Compaction of " + filePath + " failed: " + e.getMessage());
+                }
+            }
+            if (!sidecarCurrent && storageMode != StorageMode.READ_ONLY) {
+                saveSidecar();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        // 还在读的快照结束后关闭文件
+        current.retire();
     }
 }
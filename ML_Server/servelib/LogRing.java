@@ -0,0 +1,95 @@
+package servelib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import servelib.log.LOGH;
+import servelib.log.LOGX;
+
+// 日志的有界无锁环形队列 / bounded lock-free MPSC ring buffer for log entries
+// 多个请求线程写入 一个后台线程读出 槽位和 Entry 对象预先分配 写入一条日志不分配内存
+// 每个槽位有一个序号: 等于 pos 时可写 等于 pos + 1 时可读 读完后设为 pos + capacity 留给下一圈
+final class LogRing {
+
+    static final class Entry {
+        LOGH head;
+        LOGX level;
+        String message;
+        long time;
+    }
+
+    private final Entry[] entries;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // 下一个要写入的位置 写入者用 CAS 领取
+    private long head; // 下一个要读出的位置 只有读取线程访问
+
+    LogRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+        entries = new Entry[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+    }
+
+    // 队列满时返回 false
+    boolean offer(LOGH head, LOGX level, String message, long time) {
+        long pos = tail.get();
+        int slot;
+        while (true) {
+            slot = (int) pos & mask;
+            long diff = sequences.get(slot) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // 这个槽位上一圈的内容还没有被读走
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+        Entry entry = entries[slot];
+        entry.head = head;
+        entry.level = level;
+        entry.message = message;
+        entry.time = time;
+        sequences.lazySet(slot, pos + 1);
+        return true;
+    }
+
+    // 读取线程: 下一条已写完的记录 没有时返回 null 用完后调用 release
+    Entry peek() {
+        int slot = (int) head & mask;
+        return sequences.get(slot) == head + 1 ? entries[slot] : null;
+    }
+
+    void release() {
+        int slot = (int) head & mask;
+        entries[slot].message = null;
+        sequences.lazySet(slot, head + entries.length);
+        head++;
+    }
+
+    // 已领取的位置数 (包括正在写入的)
+    long claimed() {
+        return tail.get();
+    }
+
+    // 读取线程调用
+    long consumed() {
+        return head;
+    }
+
+    // 读取线程调用 没有已领取的位置 (与 peek() == null 不同: 正在写入的记录也算)
+    boolean isEmpty() {
+        return tail.get() == head;
+    }
+}
@@ -0,0 +1,217 @@
+package servelib;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+// 请求指标 / request metrics, exposed in Prometheus text format
+// ConnectionHandler 在每个请求结束时调用 record 三段耗时:
+//   parse: 请求开始 (第一个请求从 accept 起 之后的请求从第一个字节到达起) 到请求头解析完
+//   first byte: 解析完到响应的第一个字节交给 socket
+//   duration: 请求开始到响应写完
+// 按路由前缀分组 duration 再按状态码分组 直方图的桶固定 记录一次只是几次 LongAdder 累加
+// 其余模块 (连接数 缓存命中) 通过 gauge/counter 注册 在导出时读取当前值
+public final class Metrics {
+
+    // 秒 最后还有一个 +Inf 桶
+    private static final double[] BOUNDS = { 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1,
+            0.25, 0.5, 1, 2.5, 5, 10 };
+    private static final long[] BOUND_NANOS = new long[BOUNDS.length];
+    private static final String[] BOUND_LABELS = new String[BOUNDS.length + 1]; // "0.0001" ... "+Inf"
+    private static final String UNMATCHED = "none"; // 没有匹配到路由 (包括无法解析的请求)
+    private static final int MIN_STATUS = 100;
+    private static final int MAX_STATUS = 599;
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUND_NANOS[i] = (long) (BOUNDS[i] * 1e9);
+            BOUND_LABELS[i] = BigDecimal.valueOf(BOUNDS[i]).stripTrailingZeros().toPlainString();
+        }
+        BOUND_LABELS[BOUNDS.length] = "+Inf";
+    }
+
+    // 固定桶的直方图 桶内是该区间的次数 导出时再累加成 Prometheus 的 le 形式
+    static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            int i = 0;
+            while (i < BOUND_NANOS.length && nanos > BOUND_NANOS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+    }
+
+    private static final class RouteMetrics {
+        final Histogram parse = new Histogram();
+        final Histogram firstByte = new Histogram();
+        final AtomicReferenceArray<Histogram> duration = new AtomicReferenceArray<>(MAX_STATUS + 1); // 按状态码
+        final LongAdder bytes = new LongAdder();
+
+        Histogram duration(int status) {
+            Histogram histogram = duration.get(status);
+            if (histogram == null) {
+                duration.compareAndSet(status, null, new Histogram());
+                histogram = duration.get(status);
+            }
+            return histogram;
+        }
+    }
+
+    private static final class Gauge {
+        final String name;
+        final String help;
+        final String type;
+        final DoubleSupplier value;
+
+        Gauge(String name, String help, String type, DoubleSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private static final Map<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+    private static final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+    private static final LongAdder bytesOut = new LongAdder();
+
+    private Metrics() {
+    }
+
+    // 一个请求结束 route 为 null 表示没有匹配到路由
+    public static void record(Router.Route route, BuildResponse response, long startNanos, long parsedNanos) {
+        long end = System.nanoTime();
+        RouteMetrics metrics = routes.computeIfAbsent(route == null ? UNMATCHED : route.getPrefix(),
+                prefix -> new RouteMetrics());
+        metrics.parse.record(parsedNanos - startNanos);
+        long firstByte = response.getFirstByteNanos();
+        if (firstByte != 0) {
+            metrics.firstByte.record(firstByte - parsedNanos);
+        }
+        int status = response.getStatus();
+        metrics.duration(status >= MIN_STATUS && status <= MAX_STATUS ? status : 0).record(end - startNanos);
+        metrics.bytes.add(response.getBytesSent());
+        bytesOut.add(response.getBytesSent());
+    }
+
+    // 导出时读取的当前值 例如活动连接数
+    public static void gauge(String name, String help, DoubleSupplier value) {
+        gauges.add(new Gauge(name, help, "gauge", value));
+    }
+
+    // 由别处维护的单调递增计数 例如缓存命中次数
+    public static void counter(String name, String help, DoubleSupplier value) {
+        gauges.add(new Gauge(name, help, "counter", value));
+    }
+
+    public static long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    // GET 时返回文本格式的全部指标
+    public static RouteHandler handler() {
+        return (request, response) -> {
+            if (!"GET".equals(request.getRequestType())) {
+                response.output_Status(405, "Method Not Allowed");
+                return;
+            }
+            response.output_Content("text/plain; version=0.0.4; charset=utf-8",
+                    export().getBytes(StandardCharsets.UTF_8));
+        };
+    }
+
+    // Prometheus text exposition format 0.0.4
+    public static String export() {
+        StringBuilder out = new StringBuilder(8192);
+        Map<String, RouteMetrics> sorted = new TreeMap<>(routes);
+        header(out, "http_request_parse_seconds", "Request start to request head parsed", "histogram");
+        for (Map.Entry<String, RouteMetrics> entry : sorted.entrySet()) {
+            histogram(out, "http_request_parse_seconds", "route=\"" + escape(entry.getKey()) + "\"",
+                    entry.getValue().parse);
+        }
+        header(out, "http_response_first_byte_seconds", "Request head parsed to first response byte sent",
+                "histogram");
+        for (Map.Entry<String, RouteMetrics> entry : sorted.entrySet()) {
+            if (entry.getValue().firstByte.count() > 0) {
+                histogram(out, "http_response_first_byte_seconds", "route=\"" + escape(entry.getKey()) + "\"",
+                        entry.getValue().firstByte);
+            }
+        }
+        header(out, "http_request_duration_seconds", "Request start to response written", "histogram");
+        for (Map.Entry<String, RouteMetrics> entry : sorted.entrySet()) {
+            AtomicReferenceArray<Histogram> byStatus = entry.getValue().duration;
+            for (int status = 0; status < byStatus.length(); status++) {
+                Histogram histogram = byStatus.get(status);
+                if (histogram != null) {
+                    histogram(out, "http_request_duration_seconds", "route=\"" + escape(entry.getKey())
+                            + "\",status=\"" + (status == 0 ? "unknown" : Integer.toString(status)) + "\"", histogram);
+                }
+            }
+        }
+        header(out, "http_response_bytes_total", "Response bytes written, headers included", "counter");
+        for (Map.Entry<String, RouteMetrics> entry : sorted.entrySet()) {
+            out.append("http_response_bytes_total{route=\"").append(escape(entry.getKey())).append("\"} ")
+                    .append(entry.getValue().bytes.sum()).append('\n');
+        }
+        List<Gauge> registered = new ArrayList<>(gauges);
+        for (Gauge gauge : registered) {
+            header(out, gauge.name, gauge.help, gauge.type);
+            out.append(gauge.name).append(' ').append(number(gauge.value.getAsDouble())).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, String labels, Histogram histogram) {
+        long cumulative = 0;
+        for (int i = 0; i < histogram.buckets.length; i++) {
+            cumulative += histogram.buckets[i].sum();
+            out.append(name).append("_bucket{").append(labels).append(",le=\"")
+                    .append(BOUND_LABELS[i]).append("\"} ").append(cumulative)
+                    .append('\n');
+        }
+        out.append(name).append("_sum{").append(labels).append("} ")
+                .append(number(histogram.sumNanos.sum() / 1e9)).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+    }
+
+    private static String number(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value)
+                : Double.toString(value);
+    }
+
+    // 标签值中的 \ " 和换行需要转义
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
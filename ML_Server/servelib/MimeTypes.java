@@ -0,0 +1,90 @@
+package servelib;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// 扩展名 -> Content-Type 表 / extension to Content-Type table
+// 头部行在注册时拼接并编码好 请求时只做一次哈希查找 与表的大小无关 头部字节直接加入 gathering write
+public final class MimeTypes {
+
+    public static final String DEFAULT_TYPE = "application/octet-stream";
+
+    public static final class Type {
+        private final String contentType;
+        private final String header; // 完整的 "Content-Type: ...\r\n"
+        private final String cacheControlHeader; // 完整的 "Cache-Control: ...\r\n" 或 ""
+        private final ByteBuffer headerBytes; // header + cacheControlHeader 直接内存 只读
+        private final boolean compressible;
+
+        Type(String contentType, String cacheControlHeader) {
+            this.contentType = contentType;
+            this.header = "Content-Type: " + contentType + (textual(contentType) ? ";charset=utf-8" : "") + "\r\n";
+            this.cacheControlHeader = cacheControlHeader == null ? "" : cacheControlHeader;
+            byte[] bytes = (header + this.cacheControlHeader).getBytes(StandardCharsets.UTF_8);
+            this.headerBytes = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip().asReadOnlyBuffer();
+            this.compressible = textual(contentType);
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getHeader() {
+            return header;
+        }
+
+        public String getCacheControlHeader() {
+            return cacheControlHeader;
+        }
+
+        // 已编码的 Content-Type 和 Cache-Control 行 每次返回独立的 position/limit
+        public ByteBuffer getHeaderBytes() {
+            return headerBytes.duplicate();
+        }
+
+        public boolean isCompressible() {
+            return compressible;
+        }
+    }
+
+    private static final Map<String, Type> BY_EXTENSION = new ConcurrentHashMap<>();
+    private static volatile Type defaultType = new Type(DEFAULT_TYPE, "");
+
+    private MimeTypes() {
+    }
+
+    // 文本类型 加 charset 并且值得 gzip
+    private static boolean textual(String contentType) {
+        return contentType.startsWith("text/") || contentType.endsWith("javascript") || contentType.endsWith("json")
+                || contentType.endsWith("xml") || contentType.equals("image/svg+xml");
+    }
+
+    public static Type of(String contentType, String cacheControlHeader) {
+        return new Type(contentType, cacheControlHeader);
+    }
+
+    public static void register(String extension, String contentType, String cacheControlHeader) {
+        BY_EXTENSION.put(extension.toLowerCase(Locale.ROOT), new Type(contentType, cacheControlHeader));
+    }
+
+    public static void setDefault(String contentType, String cacheControlHeader) {
+        defaultType = new Type(contentType, cacheControlHeader);
+    }
+
+    // 按文件名的最后一个扩展名查找 没有或未知时返回 application/octet-stream
+    public static Type forPath(String path) {
+        int dot = path.lastIndexOf('.');
+        if (dot < 0 || dot < path.lastIndexOf('/') || dot == path.length() - 1) {
+            return defaultType;
+        }
+        String extension = path.substring(dot + 1);
+        Type type = BY_EXTENSION.get(extension);
+        if (type == null) {
+            type = BY_EXTENSION.get(extension.toLowerCase(Locale.ROOT));
+        }
+        return type == null ? defaultType : type;
+    }
+}
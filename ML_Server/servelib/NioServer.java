@@ -0,0 +1,331 @@
+package servelib;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import servelib.log.LOGH;
+import servelib.log.LOGX;
+
+// selector 事件循环服务器 / selector-based NIO server
+// 空闲连接只占用一个 SelectionKey 和一个小缓冲区 不占用线程
+// 事件循环读取到完整的请求头后 才把连接交给工作线程 由 ConnectionHandler 阻塞处理
+// keep-alive 连接处理完缓冲区中的请求后回到事件循环 空闲超时由事件循环定期清理
+public class NioServer implements ServerCore {
+    private static final log log = new log();
+
+    private static final int INITIAL_BUFFER = 1024;
+    private static final int MAX_HEAD = 64 * 1024; // 请求头(含PROXY头)最大长度
+    private static final long SWEEP_INTERVAL = 1000; // 空闲连接检查间隔(毫秒)
+    // PROXY protocol v2 签名中包含 \r\n\r\n 判断请求头结束时需要跳过
+    private static final byte[] PROXY_V2_SIG = ProxyProtocol.V2_SIGNATURE;
+
+    private final ServerConfig config;
+    private final Semaphore permits;
+    private final AtomicInteger active = new AtomicInteger();
+    private final EventLoop[] loops;
+
+    private ServerSocketChannel serverChannel;
+    private ExecutorService workers;
+    private Thread acceptThread;
+    private volatile boolean running;
+
+    public NioServer(ServerConfig config) {
+        this.config = config;
+        this.permits = new Semaphore(config.getMaxConnections());
+        this.loops = new EventLoop[config.getEventLoops()];
+    }
+
+    @Override
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(config.getPort()), config.getBacklog());
+        workers = ServerThreads.workerExecutor("worker", config.getWorkerThreads());
+        running = true;
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].thread.start();
+        }
+        acceptThread = new Thread(this::acceptLoop, "accept-" + config.getPort());
+        acceptThread.start();
+        log.print(LOGH.SYSTEM, LOGX.INFO, "NIO server listening on " + config.getPort() + " eventLoops="
+                + loops.length + " maxConnections=" + config.getMaxConnections());
+    }
+
+    // 阻塞 accept 然后轮询分配给事件循环
+    private void acceptLoop() {
+        int next = 0;
+        while (running) {
+            SocketChannel channel;
+            try {
+                permits.acquire();
+                channel = serverChannel.accept();
+            } catch (InterruptedException | ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                permits.release();
+                log.print(LOGH.SYSTEM, LOGX.ERROR, "accept failed: " + e.getMessage());
+                continue;
+            }
+            active.incrementAndGet();
+            Conn conn = new Conn(channel, loops[next]);
+            loops[next].register(conn);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    private void release(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        active.decrementAndGet();
+        permits.release();
+    }
+
+    // 把已读到完整请求头的连接交给工作线程
+    private void dispatch(Conn conn) {
+        workers.execute(() -> {
+            SocketChannel channel = conn.channel;
+            boolean park = false;
+            try {
+                channel.configureBlocking(true);
+                Socket socket = channel.socket();
+                if (conn.handler == null) {
+                    conn.handler = new ConnectionHandler(socket, config, true);
+                }
+                ByteBuffer head = conn.buffer;
+                InputStream in = new SequenceInputStream(
+                        new ByteArrayInputStream(head.array(), 0, head.position()), socket.getInputStream());
+                park = conn.handler.run(in, conn.started);
+                if (park && running) {
+                    channel.configureBlocking(false);
+                }
+            } catch (IOException e) {
+                log.print(LOGH.SYSTEM, LOGX.DEBUG, () -> "Connection error: " + e.getMessage());
+                park = false;
+            }
+            if (park && running) {
+                conn.buffer.clear();
+                conn.scanned = 0;
+                conn.started = 0;
+                conn.loop.register(conn);
+            } else {
+                release(channel);
+            }
+        });
+    }
+
+    // 每个连接的状态 在事件循环与工作线程之间传递 同一时刻只属于其中一方
+    private static final class Conn {
+        final SocketChannel channel;
+        final EventLoop loop;
+        ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER);
+        int scanned; // 已经扫描过 \r\n\r\n 的位置 避免重复扫描
+        long lastActive; // 最近一次读到数据的时间 用于空闲超时
+        long started = System.nanoTime(); // 下一个请求的起点: accept 或者第一个字节到达 (Metrics)
+        ConnectionHandler handler; // 第一次分派时创建 保存连接级别的状态
+
+        Conn(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+    }
+
+    // 判断缓冲区中是否已有完整的请求头
+    static boolean headComplete(ByteBuffer buffer, Conn conn) {
+        byte[] data = buffer.array();
+        int length = buffer.position();
+        int start = 0;
+        if (data[0] == PROXY_V2_SIG[0]) {
+            // 可能是 PROXY v2 二进制头 先确认签名和长度
+            int check = Math.min(length, PROXY_V2_SIG.length);
+            for (int i = 0; i < check; i++) {
+                if (data[i] != PROXY_V2_SIG[i]) {
+                    check = -1;
+                    break;
+                }
+            }
+            if (check != -1) {
+                if (length < 16) {
+                    return false;
+                }
+                start = 16 + (((data[14] & 0xFF) << 8) | (data[15] & 0xFF));
+            }
+        }
+        for (int i = Math.max(start, conn.scanned); i + 3 < length; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+                return true;
+            }
+        }
+        conn.scanned = Math.max(start, length - 3);
+        return false;
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Conn> pending = new ConcurrentLinkedQueue<>();
+        private final List<SelectionKey> handOff = new ArrayList<>();
+        private long lastSweep;
+
+        EventLoop(int id) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "nio-loop-" + id);
+            this.thread.setDaemon(true);
+        }
+
+        void register(Conn conn) {
+            conn.lastActive = System.currentTimeMillis();
+            pending.add(conn);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(SWEEP_INTERVAL);
+                    registerPending();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            read(key);
+                        }
+                    }
+                    if (!handOff.isEmpty()) {
+                        // 取消的 key 需要经过一次 select 才会真正注销 之后才能切换为阻塞模式
+                        selector.selectNow();
+                        for (SelectionKey key : handOff) {
+                            dispatch((Conn) key.attachment());
+                        }
+                        handOff.clear();
+                    }
+                    sweepIdle();
+                } catch (IOException e) {
+                    log.print(LOGH.SYSTEM, LOGX.ERROR, "event loop error: " + e.getMessage());
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                release((SocketChannel) key.channel());
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void registerPending() {
+            Conn conn;
+            while ((conn = pending.poll()) != null) {
+                try {
+                    conn.channel.configureBlocking(false);
+                    conn.channel.register(selector, SelectionKey.OP_READ, conn);
+                } catch (IOException e) {
+                    release(conn.channel);
+                }
+            }
+        }
+
+        // 关闭空闲超时的连接 (包括迟迟发不完请求头的连接)
+        private void sweepIdle() {
+            long now = System.currentTimeMillis();
+            if (now - lastSweep < SWEEP_INTERVAL) {
+                return;
+            }
+            lastSweep = now;
+            long deadline = now - config.getIdleTimeoutMillis();
+            for (SelectionKey key : selector.keys()) {
+                Conn conn = (Conn) key.attachment();
+                if (key.isValid() && conn.lastActive < deadline) {
+                    key.cancel();
+                    release(conn.channel);
+                }
+            }
+        }
+
+        private void read(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Conn conn = (Conn) key.attachment();
+            try {
+                if (!conn.buffer.hasRemaining()) {
+                    if (conn.buffer.capacity() >= MAX_HEAD) {
+                        // 请求头过大
+                        key.cancel();
+                        release(channel);
+                        return;
+                    }
+                    ByteBuffer bigger = ByteBuffer.allocate(Math.min(MAX_HEAD, conn.buffer.capacity() * 2));
+                    conn.buffer.flip();
+                    bigger.put(conn.buffer);
+                    conn.buffer = bigger;
+                }
+                int n = channel.read(conn.buffer);
+                if (n < 0) {
+                    key.cancel();
+                    release(channel);
+                    return;
+                }
+                if (n > 0) {
+                    conn.lastActive = System.currentTimeMillis();
+                    if (conn.started == 0) {
+                        conn.started = System.nanoTime();
+                    }
+                }
+                if (n > 0 && headComplete(conn.buffer, conn)) {
+                    key.cancel();
+                    handOff.add(key);
+                }
+            } catch (IOException e) {
+                key.cancel();
+                release(channel);
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException ignored) {
+        }
+        if (acceptThread != null) {
+            acceptThread.interrupt();
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return active.get();
+    }
+}
@@ -0,0 +1,85 @@
+package servelib;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+// 行号 -> 文件偏移量 / growable primitive row-offset index
+// 分块的 long[] 不装箱 扩容时只复制块的引用 不复制已有数据
+// copy() 与原索引共享所有块 修改时只复制被写到的块 (copy-on-write) 原索引保持不变
+final class OffsetIndex {
+
+    static final int CHUNK_BITS = 12;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private long[][] chunks;
+    private boolean[] owned; // 块属于这个索引 可以直接修改
+    private volatile int size;
+
+    OffsetIndex() {
+        this(CHUNK_SIZE);
+    }
+
+    OffsetIndex(int expectedRows) {
+        chunks = new long[Math.max(1, (expectedRows + CHUNK_MASK) >>> CHUNK_BITS)][];
+        owned = new boolean[chunks.length];
+    }
+
+    private OffsetIndex(OffsetIndex source) {
+        chunks = source.chunks.clone();
+        owned = new boolean[chunks.length];
+        size = source.size;
+    }
+
+    // 共享全部块的副本 之后只能修改副本 原索引不能再修改
+    OffsetIndex copy() {
+        return new OffsetIndex(this);
+    }
+
+    int size() {
+        return size;
+    }
+
+    long get(int row) {
+        if (row < 0 || row >= size) {
+            throw new IllegalArgumentException("Row number out of range: " + row);
+        }
+        return chunks[row >>> CHUNK_BITS][row & CHUNK_MASK];
+    }
+
+    void set(int row, long offset) {
+        if (row < 0 || row >= size) {
+            throw new IllegalArgumentException("Row number out of range: " + row);
+        }
+        writable(row >>> CHUNK_BITS)[row & CHUNK_MASK] = offset;
+    }
+
+    void add(long offset) {
+        int row = size;
+        writable(row >>> CHUNK_BITS)[row & CHUNK_MASK] = offset;
+        size = row + 1;
+    }
+
+    // 需要时扩容 分配或复制块
+    private long[] writable(int chunk) {
+        if (chunk >= chunks.length) {
+            int length = Math.max(chunks.length * 2, chunk + 1);
+            chunks = Arrays.copyOf(chunks, length);
+            owned = Arrays.copyOf(owned, length);
+        }
+        if (!owned[chunk]) {
+            chunks[chunk] = chunks[chunk] == null ? new long[CHUNK_SIZE] : chunks[chunk].clone();
+            owned[chunk] = true;
+        }
+        return chunks[chunk];
+    }
+
+    // 从索引文件批量读入 count 个偏移
+    void load(LongBuffer source, int count) {
+        while (size < count) {
+            int n = Math.min(CHUNK_SIZE - (size & CHUNK_MASK), count - size);
+            source.get(writable(size >>> CHUNK_BITS), size & CHUNK_MASK, n);
+            size += n;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package servelib;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+// PROXY protocol 解码 / PROXY protocol v1 + v2 decoder (frp, haproxy, nginx ...)
+// 根据前几个字节自动识别 v1 (文本) 与 v2 (二进制)
+// v2: 先读取 16 字节固定头 再按声明的长度精确读取地址和 TLV 之后的请求字节留在输入流中
+public final class ProxyProtocol {
+
+    // 每个监听端口的配置
+    // OFF: 不检查 PROXY 头
+    // OPTIONAL: 自动识别 有则解析 没有则当作普通连接 (兼容旧的 Frp = true 行为)
+    // REQUIRED: 必须有 PROXY 头 否则关闭连接 (只暴露给 frp 的端口建议使用)
+    public static enum Mode {
+        OFF, OPTIONAL, REQUIRED
+    }
+
+    // v2 签名 "\r\n\r\n\0\r\nQUIT\n"
+    static final byte[] V2_SIGNATURE = { 0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A };
+    private static final byte[] V1_PREFIX = "PROXY ".getBytes(StandardCharsets.US_ASCII);
+    private static final int V1_MAX_LENGTH = 107; // 包括结尾的 \r\n
+
+    // v2 地址族 (高4位)
+    private static final int AF_UNSPEC = 0x0;
+    private static final int AF_INET = 0x1;
+    private static final int AF_INET6 = 0x2;
+    private static final int AF_UNIX = 0x3;
+
+    // v2 TLV 类型
+    public static final int PP2_TYPE_ALPN = 0x01;
+    public static final int PP2_TYPE_AUTHORITY = 0x02;
+    public static final int PP2_TYPE_CRC32C = 0x03;
+    public static final int PP2_TYPE_NOOP = 0x04;
+    public static final int PP2_TYPE_UNIQUE_ID = 0x05;
+    public static final int PP2_TYPE_SSL = 0x20;
+    public static final int PP2_TYPE_NETNS = 0x30;
+
+    // 解码结果
+    public static final class Header {
+        private final int version;
+        private final boolean local; // LOCAL 命令 (例如健康检查) 没有地址信息
+        private final String transport; // TCP4 TCP6 UDP4 UDP6 UNIX UNKNOWN
+        private final InetSocketAddress source;
+        private final InetSocketAddress destination;
+        private final String sourcePath; // AF_UNIX
+        private final String destinationPath;
+        private final Map<Integer, byte[]> tlvs;
+
+        Header(int version, boolean local, String transport, InetSocketAddress source,
+                InetSocketAddress destination, String sourcePath, String destinationPath, Map<Integer, byte[]> tlvs) {
+            this.version = version;
+            this.local = local;
+            this.transport = transport;
+            this.source = source;
+            this.destination = destination;
+            this.sourcePath = sourcePath;
+            this.destinationPath = destinationPath;
+            this.tlvs = tlvs;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public boolean isLocal() {
+            return local;
+        }
+
+        public String getTransport() {
+            return transport;
+        }
+
+        public InetSocketAddress getSource() {
+            return source;
+        }
+
+        public InetSocketAddress getDestination() {
+            return destination;
+        }
+
+        public String getSourcePath() {
+            return sourcePath;
+        }
+
+        public String getDestinationPath() {
+            return destinationPath;
+        }
+
+        public Map<Integer, byte[]> getTlvs() {
+            return tlvs;
+        }
+
+        public String getAuthority() {
+            byte[] value = tlvs.get(PP2_TYPE_AUTHORITY);
+            return value == null ? null : new String(value, StandardCharsets.UTF_8);
+        }
+
+        // 客户端地址 LOCAL / UNKNOWN / UNIX 时返回 null
+        public String getClientIp() {
+            return source == null ? null : source.getAddress().getHostAddress();
+        }
+    }
+
+    private ProxyProtocol() {
+    }
+
+    // 读取连接开头的 PROXY 头
+    // 没有 PROXY 头时返回 null 且不消耗任何字节; 格式错误时抛出 IOException
+    public static Header read(BufferedInputStream in) throws IOException {
+        // 逐字节比较前缀 一旦不匹配立即停止 不会为了判断而阻塞等待更多数据
+        in.mark(V2_SIGNATURE.length);
+        boolean v1 = true;
+        boolean v2 = true;
+        int matched = 0;
+        while (matched < V2_SIGNATURE.length) {
+            int b = in.read();
+            if (b < 0) {
+                break;
+            }
+            v2 = v2 && b == (V2_SIGNATURE[matched] & 0xFF);
+            v1 = v1 && matched < V1_PREFIX.length && b == V1_PREFIX[matched];
+            matched++;
+            if (!v1 && !v2 || v1 && matched == V1_PREFIX.length) {
+                break;
+            }
+        }
+        in.reset();
+        if (v2 && matched == V2_SIGNATURE.length) {
+            return readV2(in);
+        }
+        if (v1 && matched == V1_PREFIX.length) {
+            return readV1(in);
+        }
+        return null;
+    }
+
+    private static Header readV2(BufferedInputStream in) throws IOException {
+        byte[] fixed = readExactly(in, 16);
+        int versionCommand = fixed[12] & 0xFF;
+        if ((versionCommand >> 4) != 2) {
+            throw new IOException("Unsupported PROXY v2 version: " + (versionCommand >> 4));
+        }
+        int command = versionCommand & 0x0F;
+        if (command > 1) {
+            throw new IOException("Unsupported PROXY v2 command: " + command);
+        }
+        int family = (fixed[13] & 0xFF) >> 4;
+        int protocol = fixed[13] & 0x0F;
+        int length = ((fixed[14] & 0xFF) << 8) | (fixed[15] & 0xFF);
+        byte[] body = readExactly(in, length);
+
+        String transport = "UNKNOWN";
+        InetSocketAddress source = null;
+        InetSocketAddress destination = null;
+        String sourcePath = null;
+        String destinationPath = null;
+        int addressLength;
+        switch (family) {
+            case AF_INET:
+                addressLength = 12;
+                require(length >= addressLength, "IPv4 address block too short");
+                source = new InetSocketAddress(InetAddress.getByAddress(slice(body, 0, 4)), port(body, 8));
+                destination = new InetSocketAddress(InetAddress.getByAddress(slice(body, 4, 4)), port(body, 10));
+                transport = protocol == 2 ? "UDP4" : "TCP4";
+                break;
+            case AF_INET6:
+                addressLength = 36;
+                require(length >= addressLength, "IPv6 address block too short");
+                source = new InetSocketAddress(InetAddress.getByAddress(slice(body, 0, 16)), port(body, 32));
+                destination = new InetSocketAddress(InetAddress.getByAddress(slice(body, 16, 16)), port(body, 34));
+                transport = protocol == 2 ? "UDP6" : "TCP6";
+                break;
+            case AF_UNIX:
+                addressLength = 216;
+                require(length >= addressLength, "UNIX address block too short");
+                sourcePath = unixPath(body, 0);
+                destinationPath = unixPath(body, 108);
+                transport = "UNIX";
+                break;
+            case AF_UNSPEC:
+            default:
+                addressLength = 0;
+                break;
+        }
+
+        Map<Integer, byte[]> tlvs = parseTlvs(fixed, body, addressLength);
+        if (command == 0) {
+            // LOCAL: 连接由代理自己发起 忽略地址
+            return new Header(2, true, "UNKNOWN", null, null, null, null, tlvs);
+        }
+        return new Header(2, false, transport, source, destination, sourcePath, destinationPath, tlvs);
+    }
+
+    private static Map<Integer, byte[]> parseTlvs(byte[] fixed, byte[] body, int offset) throws IOException {
+        if (offset >= body.length) {
+            return Collections.emptyMap();
+        }
+        Map<Integer, byte[]> tlvs = new LinkedHashMap<>();
+        int crcOffset = -1;
+        while (offset < body.length) {
+            require(offset + 3 <= body.length, "Truncated TLV");
+            int type = body[offset] & 0xFF;
+            int length = ((body[offset + 1] & 0xFF) << 8) | (body[offset + 2] & 0xFF);
+            require(offset + 3 + length <= body.length, "Truncated TLV value");
+            if (type == PP2_TYPE_CRC32C && length == 4) {
+                crcOffset = offset + 3;
+            }
+            if (type != PP2_TYPE_NOOP) {
+                tlvs.put(type, slice(body, offset + 3, length));
+            }
+            offset += 3 + length;
+        }
+        if (crcOffset >= 0) {
+            // 校验和覆盖整个头部 计算时 CRC 字段置零
+            int expected = ((body[crcOffset] & 0xFF) << 24) | ((body[crcOffset + 1] & 0xFF) << 16)
+                    | ((body[crcOffset + 2] & 0xFF) << 8) | (body[crcOffset + 3] & 0xFF);
+            byte[] zeroed = body.clone();
+            zeroed[crcOffset] = zeroed[crcOffset + 1] = zeroed[crcOffset + 2] = zeroed[crcOffset + 3] = 0;
+            CRC32C crc = new CRC32C();
+            crc.update(fixed);
+            crc.update(zeroed);
+            require((int) crc.getValue() == expected, "PROXY v2 CRC32C mismatch");
+        }
+        return tlvs;
+    }
+
+    // v1: "PROXY TCP4 源地址 目标地址 源端口 目标端口\r\n" 或 "PROXY UNKNOWN ...\r\n"
+    private static Header readV1(BufferedInputStream in) throws IOException {
+        byte[] line = new byte[V1_MAX_LENGTH];
+        int length = 0;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated PROXY v1 header");
+            }
+            if (length == line.length) {
+                throw new IOException("PROXY v1 header too long");
+            }
+            line[length++] = (byte) b;
+            if (b == '\n') {
+                break;
+            }
+        }
+        require(length >= 2 && line[length - 2] == '\r', "PROXY v1 header must end with CRLF");
+        String[] parts = new String(line, 0, length - 2, StandardCharsets.US_ASCII).split(" ");
+        require(parts.length >= 2 && parts[0].equals("PROXY"), "Invalid PROXY v1 header");
+        String transport = parts[1];
+        if (transport.equals("UNKNOWN")) {
+            return new Header(1, false, transport, null, null, null, null, Collections.emptyMap());
+        }
+        require(parts.length == 6 && (transport.equals("TCP4") || transport.equals("TCP6")),
+                "Invalid PROXY v1 header");
+        InetSocketAddress source = new InetSocketAddress(literal(parts[2], transport), v1Port(parts[4]));
+        InetSocketAddress destination = new InetSocketAddress(literal(parts[3], transport), v1Port(parts[5]));
+        return new Header(1, false, transport, source, destination, null, null, Collections.emptyMap());
+    }
+
+    // 只接受数字形式的地址 不做 DNS 解析
+    private static InetAddress literal(String address, String transport) throws IOException {
+        boolean ipv6 = transport.equals("TCP6");
+        require(ipv6 ? address.indexOf(':') >= 0 : address.matches("\\d{1,3}(\\.\\d{1,3}){3}"),
+                "Invalid PROXY v1 address: " + address);
+        return InetAddress.getByName(address);
+    }
+
+    private static int v1Port(String port) throws IOException {
+        try {
+            int value = Integer.parseInt(port);
+            require(value >= 0 && value <= 65535, "Invalid PROXY v1 port: " + port);
+            return value;
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid PROXY v1 port: " + port);
+        }
+    }
+
+    private static byte[] readExactly(BufferedInputStream in, int length) throws IOException {
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length != length) {
+            throw new EOFException("Truncated PROXY v2 header");
+        }
+        return bytes;
+    }
+
+    private static byte[] slice(byte[] data, int offset, int length) {
+        byte[] out = new byte[length];
+        System.arraycopy(data, offset, out, 0, length);
+        return out;
+    }
+
+    private static int port(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static String unixPath(byte[] data, int offset) {
+        int end = offset;
+        while (end < offset + 108 && data[end] != 0) {
+            end++;
+        }
+        return new String(data, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static void require(boolean condition, String message) throws IOException {
+        if (!condition) {
+            throw new IOException(message);
+        }
+    }
+}
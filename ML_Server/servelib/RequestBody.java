@@ -0,0 +1,345 @@
+package servelib;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+// 请求体 / framed request body
+// 按 Content-Length 或 Transfer-Encoding: chunked 从连接的 BufferedInputStream 中读取 读到结尾返回 -1 不会读到下一个请求
+// Expect: 100-continue 时第一次读取才发送 "100 Continue" 处理器直接拒绝 (例如 413) 时客户端不会上传
+// 超过 limit 时抛出 BodyException(413) 格式错误时 BodyException(400)
+// close() 不关闭连接 没有读完的部分由 ConnectionHandler 丢弃 (或关闭连接)
+public final class RequestBody extends InputStream {
+
+    // 带有 HTTP 状态码的请求体错误
+    public static final class BodyException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int status;
+
+        public BodyException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_CHUNK_LINE = 4096; // 块大小行 (含扩展)
+    private static final int MAX_TRAILERS = 8 * 1024;
+
+    private final BufferedInputStream in;
+    private final Socket socket; // 发送 100 Continue
+    private final long length; // Content-Length chunked 时为 -1
+    private long limit;
+    private long read; // 已读取的请求体字节 (chunked 时不含块头)
+    private long chunkRemaining; // 当前块剩余的字节
+    private boolean chunkEnd; // 当前块的数据已读完 后面还有 CRLF
+    private boolean finished;
+    private boolean expectContinue;
+    private boolean continueSent;
+
+    private RequestBody(BufferedInputStream in, Socket socket, long length, long limit, boolean expectContinue) {
+        this.in = in;
+        this.socket = socket;
+        this.length = length;
+        this.limit = limit;
+        this.expectContinue = expectContinue;
+        this.finished = length == 0;
+    }
+
+    // 没有请求体
+    static RequestBody empty() {
+        return new RequestBody(null, null, 0, 0, false);
+    }
+
+    // 检查请求头中的分帧方式 连接无法继续使用的错误都在这里发现 (读取请求体之前)
+    static RequestBody open(BuildRequest request, Socket socket, BufferedInputStream in, long limit)
+            throws BodyException {
+        String transferEncoding = request.getHeader("Transfer-Encoding");
+        String contentLength = request.getHeader("Content-Length");
+        String expect = request.getHeader("Expect");
+        boolean expectContinue = false;
+        if (expect != null) {
+            if (!expect.trim().equalsIgnoreCase("100-continue")) {
+                throw new BodyException(417, "Unsupported Expect: " + expect);
+            }
+            // HTTP/1.0 客户端不会等待 100
+            expectContinue = "HTTP/1.1".equals(request.getRequestVersion());
+        }
+        if (transferEncoding != null) {
+            if (contentLength != null) {
+                // 两者同时出现是请求走私的常见形式
+                throw new BodyException(400, "Both Transfer-Encoding and Content-Length");
+            }
+            if (!transferEncoding.trim().toLowerCase(Locale.ROOT).equals("chunked")) {
+                throw new BodyException(501, "Unsupported Transfer-Encoding: " + transferEncoding);
+            }
+            return new RequestBody(in, socket, -1, limit, expectContinue);
+        }
+        if (contentLength == null) {
+            return new RequestBody(in, socket, 0, limit, false);
+        }
+        long value = parseLength(contentLength);
+        if (value > limit) {
+            throw new BodyException(413, "Content-Length " + value + " exceeds " + limit);
+        }
+        return new RequestBody(in, socket, value, limit, expectContinue && value > 0);
+    }
+
+    // 重复的 Content-Length 必须相同 ("10, 10")
+    private static long parseLength(String value) throws BodyException {
+        long length = -1;
+        for (String part : value.split(",")) {
+            part = part.trim();
+            if (part.isEmpty() || part.length() > 18) {
+                throw new BodyException(400, "Invalid Content-Length: " + value);
+            }
+            long parsed = 0;
+            for (int i = 0; i < part.length(); i++) {
+                char c = part.charAt(i);
+                if (c < '0' || c > '9') {
+                    throw new BodyException(400, "Invalid Content-Length: " + value);
+                }
+                parsed = parsed * 10 + (c - '0');
+            }
+            if (length >= 0 && parsed != length) {
+                throw new BodyException(400, "Conflicting Content-Length: " + value);
+            }
+            length = parsed;
+        }
+        return length;
+    }
+
+    // Content-Length 的值 chunked 时为 -1
+    public long getLength() {
+        return length;
+    }
+
+    public boolean isChunked() {
+        return length < 0;
+    }
+
+    public long getBytesRead() {
+        return read;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    // 读完整个请求体 (包括 chunked 的结尾) 之后为 true
+    public boolean isFinished() {
+        return finished;
+    }
+
+    // 按路由收紧上限 不能超过 ServerConfig 的 maxBodyBytes (在读取请求头时已经检查过)
+    public void setLimit(long limit) throws BodyException {
+        if (limit < this.limit) {
+            this.limit = limit;
+        }
+        if (length > this.limit || read > this.limit) {
+            throw new BodyException(413, "Request body exceeds " + this.limit);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return n < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int count) throws IOException {
+        if (finished) {
+            return -1;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        sendContinue();
+        if (length >= 0) {
+            int n = in.read(bytes, offset, (int) Math.min(count, length - read));
+            if (n < 0) {
+                throw new EOFException("Request body truncated after " + read + " of " + length + " bytes");
+            }
+            read += n;
+            finished = read == length;
+            return n;
+        }
+        if (chunkRemaining == 0) {
+            nextChunk();
+            if (finished) {
+                return -1;
+            }
+        }
+        int n = in.read(bytes, offset, (int) Math.min(count, chunkRemaining));
+        if (n < 0) {
+            throw new EOFException("Chunked request body truncated");
+        }
+        read += n;
+        chunkRemaining -= n;
+        chunkEnd = chunkRemaining == 0;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (finished || in == null || (expectContinue && !continueSent)) {
+            return 0;
+        }
+        long remaining = length >= 0 ? length - read : chunkRemaining;
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        byte[] scratch = new byte[(int) Math.min(8192, Math.max(1, count))];
+        long skipped = 0;
+        while (skipped < count) {
+            int n = read(scratch, 0, (int) Math.min(scratch.length, count - skipped));
+            if (n < 0) {
+                break;
+            }
+            skipped += n;
+        }
+        return skipped;
+    }
+
+    // 不关闭连接
+    @Override
+    public void close() {
+    }
+
+    // 丢弃剩余的请求体 最多 max 字节 读完时返回 true
+    // 客户端还在等待 100 Continue 时不读取 (也不发送 100) 返回 false 调用方应关闭连接
+    public boolean discard(long max) throws IOException {
+        if (finished) {
+            return true;
+        }
+        if (expectContinue && !continueSent) {
+            return false;
+        }
+        long remaining = length >= 0 ? length - read : -1;
+        if (remaining > max) {
+            return false;
+        }
+        long start = read;
+        byte[] scratch = new byte[8192];
+        while (!finished) {
+            if (read - start > max) {
+                return false;
+            }
+            if (read(scratch, 0, scratch.length) < 0) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    private void sendContinue() throws IOException {
+        if (expectContinue && !continueSent) {
+            continueSent = true;
+            OutputStream out = socket.getOutputStream();
+            out.write(CONTINUE);
+            out.flush();
+        }
+    }
+
+    // 块头: 十六进制大小 [; 扩展] CRLF 大小为 0 时读取尾部字段直到空行
+    // 分帧严格按 RFC 9112: 大小只能是十六进制数字 (不接受 "+" 和空白) 每一行和块数据之后必须是 CRLF
+    // 宽松的解析会与前端代理对请求体的边界判断不同 (请求走私)
+    private void nextChunk() throws IOException {
+        if (chunkEnd) {
+            expectLineEnd();
+            chunkEnd = false;
+        }
+        String line = readLine(MAX_CHUNK_LINE);
+        int end = line.indexOf(';');
+        if (end < 0) {
+            end = line.length();
+        }
+        if (end == 0 || end > 15) {
+            throw new BodyException(400, "Invalid chunk size: " + line);
+        }
+        long value = 0;
+        for (int i = 0; i < end; i++) {
+            int digit = hexDigit(line.charAt(i));
+            if (digit < 0) {
+                throw new BodyException(400, "Invalid chunk size: " + line);
+            }
+            value = value << 4 | digit;
+        }
+        if (value == 0) {
+            int trailers = 0;
+            String trailer;
+            while (!(trailer = readLine(MAX_TRAILERS)).isEmpty()) {
+                trailers += trailer.length() + 2;
+                if (trailers > MAX_TRAILERS) {
+                    throw new BodyException(400, "Chunked trailers too large");
+                }
+            }
+            finished = true;
+            return;
+        }
+        if (read + value > limit) {
+            throw new BodyException(413, "Request body exceeds " + limit);
+        }
+        chunkRemaining = value;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private void expectLineEnd() throws IOException {
+        if (in.read() != '\r' || in.read() != '\n') {
+            throw new BodyException(400, "Missing CRLF after chunk data");
+        }
+    }
+
+    // 以 CRLF 结尾的一行 单独的 CR 或 LF 都是错误
+    private String readLine(int max) throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Chunked request body truncated");
+            }
+            if (b == '\r') {
+                int lf = in.read();
+                if (lf < 0) {
+                    throw new EOFException("Chunked request body truncated");
+                }
+                if (lf != '\n') {
+                    throw new BodyException(400, "Bare CR in chunked body");
+                }
+                return line.toString();
+            }
+            if (b == '\n') {
+                throw new BodyException(400, "Bare LF in chunked body");
+            }
+            if (line.length() >= max) {
+                throw new BodyException(400, "Chunk line too long");
+            }
+            line.append((char) b);
+        }
+    }
+}
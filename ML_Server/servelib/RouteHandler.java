@@ -0,0 +1,11 @@
+package servelib;
+
+import java.io.IOException;
+
+// 动态路由的处理接口 / handler for a routed URL prefix
+// 在 Router 中按路径前缀注册 ConnectionHandler 匹配到后直接调用 不限请求方法
+@FunctionalInterface
+public interface RouteHandler {
+
+    void handle(BuildRequest request, BuildResponse response) throws IOException;
+}
@@ -0,0 +1,144 @@
+package servelib;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+// 路由表 / URL prefix router
+// 按路径段建立前缀树 查找时逐段走树 开销只与路径深度有关 与路由数量无关
+// 增加路由时复制受影响的那一条路径再整体替换根节点 (copy-on-write) 查找不加锁
+public final class Router {
+
+    public static final class Route {
+        private final String prefix;
+        private final String directory; // 静态目录 处理器路由时为 null
+        private final MimeTypes.Type type; // null 表示按扩展名判断
+        private final boolean cacheable; // 是否进入 StaticFileCache
+        private final boolean attachment; // 以下载方式返回 (Content-Disposition)
+        private final RouteHandler handler;
+
+        private Route(String prefix, String directory, MimeTypes.Type type, boolean cacheable, boolean attachment,
+                RouteHandler handler) {
+            this.prefix = normalize(prefix);
+            this.directory = directory;
+            this.type = type;
+            this.cacheable = cacheable;
+            this.attachment = attachment;
+            this.handler = handler;
+        }
+
+        // 把 prefix 之下的请求映射到 directory 下的文件
+        public static Route directory(String prefix, String directory, MimeTypes.Type type, boolean cacheable) {
+            return new Route(prefix, directory, type, cacheable, false, null);
+        }
+
+        public static Route download(String prefix, String directory) {
+            return new Route(prefix, directory, null, false, true, null);
+        }
+
+        public static Route handler(String prefix, RouteHandler handler) {
+            return new Route(prefix, null, null, false, false, handler);
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        // 固定类型优先 否则按文件扩展名
+        public MimeTypes.Type typeFor(String path) {
+            return type != null ? type : MimeTypes.forPath(path);
+        }
+
+        public boolean isCacheable() {
+            return cacheable;
+        }
+
+        public boolean isAttachment() {
+            return attachment;
+        }
+
+        public RouteHandler getHandler() {
+            return handler;
+        }
+
+        // 去掉前缀后的部分 "/data/HTML/a.html" -> "/a.html"
+        public String remainder(String path) {
+            return path.substring(Math.min(prefix.length(), path.length()));
+        }
+    }
+
+    private static final class Node {
+        final Map<String, Node> children;
+        final Route route;
+
+        Node(Map<String, Node> children, Route route) {
+            this.children = children;
+            this.route = route;
+        }
+    }
+
+    private static final Node EMPTY = new Node(Collections.emptyMap(), null);
+
+    private volatile Node root = EMPTY;
+
+    // 相同前缀的路由会被替换
+    public synchronized void add(Route route) {
+        root = insert(root, route.prefix, 1, route);
+    }
+
+    public synchronized void remove(String prefix) {
+        root = insert(root, normalize(prefix), 1, null);
+    }
+
+    private static Node insert(Node node, String prefix, int start, Route route) {
+        if (start >= prefix.length()) {
+            return new Node(node.children, route);
+        }
+        int end = prefix.indexOf('/', start);
+        if (end < 0) {
+            end = prefix.length();
+        }
+        String segment = prefix.substring(start, end);
+        Map<String, Node> children = new HashMap<>(node.children);
+        children.put(segment, insert(children.getOrDefault(segment, EMPTY), prefix, end + 1, route));
+        return new Node(children, node.route);
+    }
+
+    // 最长前缀匹配 只在完整的路径段上匹配 ("/data/HTML" 不会匹配 "/data/HTMLX")
+    public Route match(String path) {
+        Node node = root;
+        Route best = node.route;
+        int start = 1;
+        int length = path.length();
+        while (start < length) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            node = node.children.get(path.substring(start, end));
+            if (node == null) {
+                break;
+            }
+            if (node.route != null) {
+                best = node.route;
+            }
+            start = end + 1;
+        }
+        return best;
+    }
+
+    // "/data/HTML/" -> "/data/HTML"
+    private static String normalize(String prefix) {
+        if (!prefix.startsWith("/")) {
+            prefix = "/" + prefix;
+        }
+        while (prefix.length() > 1 && prefix.endsWith("/")) {
+            prefix = prefix.substring(0, prefix.length() - 1);
+        }
+        return prefix;
+    }
+}
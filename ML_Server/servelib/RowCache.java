@@ -0,0 +1,168 @@
+package servelib;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// LightweightDataManager 的行缓存 / bounded LRU cache of parsed rows
+// 按行号分成多个段 每段是一个 accessOrder 的 LinkedHashMap 各自加锁 减少线程之间的竞争
+// 同时受条目数和估算字节数限制 超出时淘汰该段最久未使用的行
+public class RowCache {
+
+    private static final int SEGMENTS = 16;
+
+    private static final class Segment {
+        final LinkedHashMap<Integer, String[]> rows = new LinkedHashMap<>(16, 0.75f, true);
+        long bytes;
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final int maxEntriesPerSegment;
+    private final long maxBytesPerSegment;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+
+    public RowCache(int maxEntries, long maxBytes) {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("RowCache limits must be > 0");
+        }
+        this.maxEntriesPerSegment = Math.max(1, maxEntries / SEGMENTS);
+        this.maxBytesPerSegment = Math.max(1, maxBytes / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    private Segment segment(int rowNumber) {
+        return segments[(rowNumber ^ (rowNumber >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    // 返回的数组与缓存共享 调用方不能修改
+    public String[] get(int rowNumber) {
+        Segment segment = segment(rowNumber);
+        String[] values;
+        synchronized (segment) {
+            values = segment.rows.get(rowNumber);
+        }
+        if (values == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return values;
+    }
+
+    public void put(int rowNumber, String[] values) {
+        Segment segment = segment(rowNumber);
+        long size = sizeOf(values);
+        if (size > maxBytesPerSegment) {
+            invalidate(rowNumber);
+            return;
+        }
+        synchronized (segment) {
+            String[] previous = segment.rows.put(rowNumber, values);
+            if (previous != null) {
+                segment.bytes -= sizeOf(previous);
+            }
+            segment.bytes += size;
+            Iterator<Map.Entry<Integer, String[]>> it = segment.rows.entrySet().iterator();
+            while ((segment.rows.size() > maxEntriesPerSegment || segment.bytes > maxBytesPerSegment) && it.hasNext()) {
+                Map.Entry<Integer, String[]> eldest = it.next();
+                segment.bytes -= sizeOf(eldest.getValue());
+                it.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    // 记录一次从磁盘读取并解析的耗时
+    public void recordLoad(long nanos) {
+        loads.increment();
+        loadNanos.add(nanos);
+    }
+
+    public void invalidate(int rowNumber) {
+        Segment segment = segment(rowNumber);
+        synchronized (segment) {
+            String[] previous = segment.rows.remove(rowNumber);
+            if (previous != null) {
+                segment.bytes -= sizeOf(previous);
+            }
+        }
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.rows.clear();
+                segment.bytes = 0;
+            }
+        }
+    }
+
+    // 估算: 数组和每个 String 的对象头 加上字符本身
+    private static long sizeOf(String[] values) {
+        long size = 16 + 8L * values.length;
+        for (String value : values) {
+            size += 40 + value.length();
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    // 平均每次加载耗时 (纳秒)
+    public long getAverageLoadNanos() {
+        long n = loads.sum();
+        return n == 0 ? 0 : loadNanos.sum() / n;
+    }
+
+    public long getTotalLoadNanos() {
+        return loadNanos.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.rows.size();
+            }
+        }
+        return size;
+    }
+
+    public long getCurrentBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.bytes;
+            }
+        }
+        return bytes;
+    }
+}
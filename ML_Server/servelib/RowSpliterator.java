@@ -0,0 +1,137 @@
+package servelib;
+
+import java.io.IOException;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// 按行号范围遍历一个 Generation / parallel row scan over one table generation
+// 每一行在文件中都有一行普通数据 (按行号顺序) 被追加记录覆盖的行改为按偏移读取新版本
+// 所以行号范围 [row, end) 对应文件中连续的一段 顺序 mmap 读取 内存占用与表大小无关
+// trySplit 在中间附近找一个仍指向普通行的行号切开 供并行流分给 fork-join 线程
+final class RowSpliterator implements Spliterator<String[]> {
+
+    private static final int MIN_SPLIT_ROWS = 4096;
+    private static final int SPLIT_PROBE = 64; // 找切分点时最多检查的行数
+
+    // 所有切分出来的部分共同持有一个版本 全部遍历完或者流关闭时释放
+    static final class Pin implements Runnable {
+        private final Generation generation;
+        private final AtomicInteger open = new AtomicInteger(1);
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Pin(Generation generation) {
+            this.generation = generation;
+        }
+
+        private void done() {
+            if (open.decrementAndGet() == 0) {
+                run();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (released.compareAndSet(false, true)) {
+                generation.exit();
+            }
+        }
+    }
+
+    private final Pin pin;
+    private final Generation generation;
+    private int row;
+    private final int end;
+    private long start; // 第 row 行普通数据的偏移
+    private TableFile.LineCursor cursor;
+    private boolean finished;
+
+    RowSpliterator(Pin pin, long start) {
+        this(pin, 0, pin.generation.offsets.size(), start);
+    }
+
+    private RowSpliterator(Pin pin, int row, int end, long start) {
+        this.pin = pin;
+        this.generation = pin.generation;
+        this.row = row;
+        this.end = end;
+        this.start = start;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super String[]> action) {
+        if (row >= end) {
+            finish();
+            return false;
+        }
+        try {
+            if (cursor == null) {
+                cursor = generation.table.cursor(start);
+            }
+            if (!cursor.advance()) {
+                row = end;
+                finish();
+                return false;
+            }
+            String[] values;
+            if (generation.offsets.get(row) == cursor.offset()) {
+                values = LightweightDataManager.splitRow(cursor.line());
+            } else {
+                // 这一行已被追加记录覆盖 普通行是旧版本
+                values = LightweightDataManager.readFromFile(generation, row);
+            }
+            row++;
+            action.accept(values);
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to scan " + generation.table.getPath(), e);
+        }
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super String[]> action) {
+        while (tryAdvance(action)) {
+        }
+    }
+
+    private void finish() {
+        if (!finished) {
+            finished = true;
+            pin.done();
+        }
+    }
+
+    @Override
+    public Spliterator<String[]> trySplit() {
+        if (cursor != null || end - row < 2 * MIN_SPLIT_ROWS) {
+            return null;
+        }
+        int middle = (row + end) >>> 1;
+        try {
+            for (int probe = middle; probe < end && probe < middle + SPLIT_PROBE; probe++) {
+                long offset = generation.offsets.get(probe);
+                if (generation.table.isLineStart(offset)) {
+                    RowSpliterator prefix = new RowSpliterator(pin, row, probe, start);
+                    pin.open.incrementAndGet();
+                    row = probe;
+                    start = offset;
+                    return prefix;
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to scan " + generation.table.getPath(), e);
+        }
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return end - row;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+    }
+}
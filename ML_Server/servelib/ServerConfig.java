@@ -0,0 +1,281 @@
+package servelib;
+
+// 服务器配置 / server core configuration
+// 由 Main_Server 从启动参数填充 然后交给 VirtualThreadServer 或 NioServer
+public class ServerConfig {
+
+    // 两种运行模式
+    // VIRTUAL: 每个连接一个虚拟线程 (jdk21+ 否则退化为普通线程池)
+    // NIO: 少量 selector 事件循环线程 + 工作线程
+    public static enum Mode {
+        VIRTUAL, NIO
+    }
+
+    private Mode mode = Mode.VIRTUAL;
+    private int port = 80;
+    private int backlog = 1024;
+    private int maxConnections = 10000; // 同时在线连接上限
+    private int eventLoops = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private int workerThreads = Runtime.getRuntime().availableProcessors() * 2; // NIO模式 且没有虚拟线程时使用
+    private int idleTimeoutMillis = 15000; // keep-alive 连接空闲超时
+    private int maxRequestsPerConnection = 1000; // 单个连接最多处理的请求数 之后发送 Connection: close
+    // PROXY 头 (frp) 每个监听端口单独配置 默认自动识别
+    private ProxyProtocol.Mode proxyProtocol = ProxyProtocol.Mode.OPTIONAL;
+    // 日志 logFile 为空时输出到 stdout
+    private log.LOGX logLevel = log.LOGX.INFO;
+    private String logFile;
+    private log.Overflow logOverflow = log.Overflow.DROP;
+    // 指标 (Metrics) 的路径 为空或 off 时不提供
+    private String metricsPath = "/metrics";
+    // 请求体 (见 RequestBody / buildAPI.MainPOST) maxBodyBytes 是所有路由的上限
+    private long maxBodyBytes = 64L * 1024 * 1024;
+    private long maxFieldBytes = 64 * 1024; // multipart 中没有文件名的字段 读入内存
+    private int maxParts = 128;
+    // 上传 (multipart POST 或 PUT) 的路径 为空或 off 时不提供
+    private String uploadPath;
+    private String uploadDirectory = "data/File";
+
+    public static ServerConfig fromArgs(String[] args) {
+        // 格式: key=value 例如 mode=nio port=8080 maxConnections=50000
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                continue;
+            }
+            String key = arg.substring(0, eq).trim();
+            String value = arg.substring(eq + 1).trim();
+            switch (key) {
+                case "mode":
+                    config.setMode(Mode.valueOf(value.toUpperCase()));
+                    break;
+                case "port":
+                    config.setPort(Integer.parseInt(value));
+                    break;
+                case "backlog":
+                    config.setBacklog(Integer.parseInt(value));
+                    break;
+                case "maxConnections":
+                    config.setMaxConnections(Integer.parseInt(value));
+                    break;
+                case "eventLoops":
+                    config.setEventLoops(Integer.parseInt(value));
+                    break;
+                case "workerThreads":
+                    config.setWorkerThreads(Integer.parseInt(value));
+                    break;
+                case "idleTimeout":
+                    config.setIdleTimeoutMillis(Integer.parseInt(value));
+                    break;
+                case "maxRequestsPerConnection":
+                    config.setMaxRequestsPerConnection(Integer.parseInt(value));
+                    break;
+                case "proxyProtocol":
+                    config.setProxyProtocol(ProxyProtocol.Mode.valueOf(value.toUpperCase()));
+                    break;
+                case "logLevel":
+                    config.setLogLevel(log.LOGX.valueOf(value.toUpperCase()));
+                    break;
+                case "logFile":
+                    config.setLogFile(value);
+                    break;
+                case "logOverflow":
+                    config.setLogOverflow(log.Overflow.valueOf(value.toUpperCase()));
+                    break;
+                case "metricsPath":
+                    config.setMetricsPath(value.isEmpty() || value.equalsIgnoreCase("off") ? null : value);
+                    break;
+                case "maxBodyBytes":
+                    config.setMaxBodyBytes(Long.parseLong(value));
+                    break;
+                case "maxFieldBytes":
+                    config.setMaxFieldBytes(Long.parseLong(value));
+                    break;
+                case "maxParts":
+                    config.setMaxParts(Integer.parseInt(value));
+                    break;
+                case "uploadPath":
+                    config.setUploadPath(value.isEmpty() || value.equalsIgnoreCase("off") ? null : value);
+                    break;
+                case "uploadDirectory":
+                    config.setUploadDirectory(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + key);
+            }
+        }
+        return config;
+    }
+
+    // Getters and setters
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("maxConnections must be > 0");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public void setEventLoops(int eventLoops) {
+        if (eventLoops <= 0) {
+            throw new IllegalArgumentException("eventLoops must be > 0");
+        }
+        this.eventLoops = eventLoops;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        if (workerThreads <= 0) {
+            throw new IllegalArgumentException("workerThreads must be > 0");
+        }
+        this.workerThreads = workerThreads;
+    }
+
+    public int getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public void setIdleTimeoutMillis(int idleTimeoutMillis) {
+        if (idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("idleTimeoutMillis must be > 0");
+        }
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public int getMaxRequestsPerConnection() {
+        return maxRequestsPerConnection;
+    }
+
+    public void setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+        if (maxRequestsPerConnection <= 0) {
+            throw new IllegalArgumentException("maxRequestsPerConnection must be > 0");
+        }
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+    }
+
+    public ProxyProtocol.Mode getProxyProtocol() {
+        return proxyProtocol;
+    }
+
+    public void setProxyProtocol(ProxyProtocol.Mode proxyProtocol) {
+        this.proxyProtocol = proxyProtocol;
+    }
+
+    public log.LOGX getLogLevel() {
+        return logLevel;
+    }
+
+    public void setLogLevel(log.LOGX logLevel) {
+        this.logLevel = logLevel;
+    }
+
+    public String getLogFile() {
+        return logFile;
+    }
+
+    public void setLogFile(String logFile) {
+        this.logFile = logFile;
+    }
+
+    public log.Overflow getLogOverflow() {
+        return logOverflow;
+    }
+
+    public void setLogOverflow(log.Overflow logOverflow) {
+        this.logOverflow = logOverflow;
+    }
+
+    // null 表示不提供
+    public String getMetricsPath() {
+        return metricsPath;
+    }
+
+    public void setMetricsPath(String metricsPath) {
+        this.metricsPath = metricsPath;
+    }
+
+    public long getMaxBodyBytes() {
+        return maxBodyBytes;
+    }
+
+    public void setMaxBodyBytes(long maxBodyBytes) {
+        if (maxBodyBytes < 0) {
+            throw new IllegalArgumentException("maxBodyBytes must be >= 0");
+        }
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    public long getMaxFieldBytes() {
+        return maxFieldBytes;
+    }
+
+    public void setMaxFieldBytes(long maxFieldBytes) {
+        if (maxFieldBytes < 0) {
+            throw new IllegalArgumentException("maxFieldBytes must be >= 0");
+        }
+        this.maxFieldBytes = maxFieldBytes;
+    }
+
+    public int getMaxParts() {
+        return maxParts;
+    }
+
+    public void setMaxParts(int maxParts) {
+        if (maxParts <= 0) {
+            throw new IllegalArgumentException("maxParts must be > 0");
+        }
+        this.maxParts = maxParts;
+    }
+
+    // null 表示不提供
+    public String getUploadPath() {
+        return uploadPath;
+    }
+
+    public void setUploadPath(String uploadPath) {
+        this.uploadPath = uploadPath;
+    }
+
+    public String getUploadDirectory() {
+        return uploadDirectory;
+    }
+
+    public void setUploadDirectory(String uploadDirectory) {
+        this.uploadDirectory = uploadDirectory;
+    }
+}
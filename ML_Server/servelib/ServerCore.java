@@ -0,0 +1,24 @@
+package servelib;
+
+import java.io.IOException;
+
+// 服务器核心 两种实现: VirtualThreadServer / NioServer
+// 两者都把连接交给 ConnectionHandler 因此 BuildRequest/BuildResponse 不需要关心运行模式
+public interface ServerCore {
+
+    void start() throws IOException;
+
+    void stop();
+
+    int getActiveConnections();
+
+    static ServerCore create(ServerConfig config) {
+        switch (config.getMode()) {
+            case NIO:
+                return new NioServer(config);
+            case VIRTUAL:
+            default:
+                return new VirtualThreadServer(config);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package servelib;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import servelib.log.LOGH;
+import servelib.log.LOGX;
+
+// 线程工具 jdk21+ 使用虚拟线程 旧版本退化为普通线程
+final class ServerThreads {
+    private static final log log = new log();
+
+    private ServerThreads() {
+    }
+
+    // 每个任务一个虚拟线程 (通过反射获取 以便在jdk17上也能编译运行)
+    static ExecutorService perTaskExecutor(String name) {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.print(LOGH.SYSTEM, LOGX.WARN, "Virtual threads unavailable, using platform threads for " + name);
+            return Executors.newCachedThreadPool(daemonFactory(name));
+        }
+    }
+
+    // 虚拟线程不可用时使用固定大小的线程池
+    static ExecutorService workerExecutor(String name, int fallbackThreads) {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.print(LOGH.SYSTEM, LOGX.WARN, "Virtual threads unavailable, using " + fallbackThreads
+                    + " platform threads for " + name);
+            return Executors.newFixedThreadPool(fallbackThreads, daemonFactory(name));
+        }
+    }
+
+    static Thread daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static ThreadFactory daemonFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return task -> daemon(name + "-" + counter.incrementAndGet(), task);
+    }
+}
@@ -0,0 +1,429 @@
+package servelib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import servelib.log.LOGH;
+import servelib.log.LOGX;
+
+// 小文件静态资源缓存 / byte-size bounded LRU cache of small static files
+// 每个条目保存文件内容和预先编码好的响应头 (状态行 Content-Type ETag Last-Modified Cache-Control Content-Length)
+// 以及对应的 304 响应头
+// 响应头不含 Connection 行和结尾空行 由 BuildResponse 按连接状态拼接
+// 文本类型在首次加载时额外保存一份 gzip 版本 请求时只做选择 不做压缩
+// 通过 WatchService 监听 data/ 目录失效 监听不可用时退化为比较 mtime
+// 同时缓存所有静态文件的校验信息 (ETag/Last-Modified) 检查 304 时不访问文件系统
+public class StaticFileCache {
+    private static final log log = new log();
+
+    // 一个编码版本 (原始或 gzip) 的响应头 内容 304 响应头 和 ETag
+    public static final class Variant {
+        // 直接内存 写入 SocketChannel 时不再需要额外复制
+        private final ByteBuffer head;
+        private final ByteBuffer body;
+        private final ByteBuffer notModifiedHead;
+        private final String etag;
+
+        Variant(String head, byte[] body, String notModifiedHead, String etag) {
+            this.head = toDirect(head.getBytes(StandardCharsets.UTF_8));
+            this.body = toDirect(body);
+            this.notModifiedHead = toDirect(notModifiedHead.getBytes(StandardCharsets.UTF_8));
+            this.etag = etag;
+        }
+
+        private static ByteBuffer toDirect(byte[] bytes) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+            buffer.put(bytes).flip();
+            return buffer.asReadOnlyBuffer();
+        }
+
+        // 每次返回独立的 position/limit 多个线程可以同时发送同一个条目
+        public ByteBuffer getHead() {
+            return head.duplicate();
+        }
+
+        public ByteBuffer getBody() {
+            return body.duplicate();
+        }
+
+        public ByteBuffer getNotModifiedHead() {
+            return notModifiedHead.duplicate();
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        long size() {
+            return head.capacity() + body.capacity() + notModifiedHead.capacity();
+        }
+    }
+
+    public static final class Entry {
+        private final Variant identity;
+        // gzip 压缩版本 只在加载时压缩一次 不可压缩或没有收益时为 null
+        private final Variant gzip;
+        private final long lastModified;
+
+        Entry(Variant identity, Variant gzip, long lastModified) {
+            this.identity = identity;
+            this.gzip = gzip;
+            this.lastModified = lastModified;
+        }
+
+        public Variant getIdentity() {
+            return identity;
+        }
+
+        public boolean hasGzip() {
+            return gzip != null;
+        }
+
+        public Variant getGzip() {
+            return gzip;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        long size() {
+            return identity.size() + (gzip == null ? 0 : gzip.size());
+        }
+    }
+
+    // 文件的校验信息 (长度 修改时间 弱 ETag) 用于 304 与 If-Range
+    public static final class Validators {
+        private final long length;
+        private final long lastModified;
+        private final String etag;
+        private final String lastModifiedHttp;
+
+        Validators(long length, long lastModified) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.etag = weakEtag(length, lastModified, "");
+            this.lastModifiedHttp = BuildResponse.httpDate(lastModified);
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModifiedHttp() {
+            return lastModifiedHttp;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    // accessOrder = true 即 LRU 顺序
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long currentBytes;
+
+    // 所有静态文件(包括不缓存内容的大文件)的校验信息 与 entries 一起失效
+    private static final int MAX_VALIDATORS = 65536;
+    private final ConcurrentHashMap<String, Validators> validators = new ConcurrentHashMap<>();
+
+    // 每次失效都会递增 避免把加载期间被修改的旧内容放入缓存
+    private final AtomicLong version = new AtomicLong();
+    private volatile boolean watching;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public StaticFileCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    // filePath 为相对路径 例如 data/HTML/index.html
+    // contentType 为完整的头部行 例如 "Content-Type: text/html;charset=utf-8\r\n"
+    // cacheControl 为完整的 Cache-Control 头部行 可以为空字符串
+    // compressible 为 true 时在加载时同时生成 gzip 版本
+    // 文件不存在或过大时返回 null
+    public Entry get(String filePath, String contentType, String cacheControl, boolean compressible)
+            throws IOException {
+        String key = key(filePath);
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null) {
+            if (watching || new File(key).lastModified() == entry.lastModified) {
+                hits.increment();
+                return entry;
+            }
+            invalidate(key);
+        }
+        misses.increment();
+        return load(key, contentType, cacheControl, compressible);
+    }
+
+    private Entry load(String key, String contentType, String cacheControl, boolean compressible)
+            throws IOException {
+        long loadVersion = version.get();
+        Path path = Paths.get(key);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+        if (Files.size(path) > maxEntryBytes) {
+            return null;
+        }
+        byte[] body = Files.readAllBytes(path);
+        String vary = compressible ? "Vary: Accept-Encoding\r\n" : "";
+        String lastModifiedLine = "Last-Modified: " + BuildResponse.httpDate(lastModified) + "\r\n";
+
+        String etag = weakEtag(body.length, lastModified, "");
+        String validatorLines = "ETag: " + etag + "\r\n" + lastModifiedLine + cacheControl + vary;
+        Variant identity = new Variant("HTTP/1.1 200 OK\r\n" + contentType + validatorLines + "Content-Length: "
+                + body.length + "\r\n", body, "HTTP/1.1 304 Not Modified\r\n" + validatorLines, etag);
+
+        Variant gzipVariant = null;
+        byte[] gzipBody = compressible ? gzip(body) : null;
+        if (gzipBody != null && gzipBody.length < body.length) {
+            // 压缩版本使用不同的 ETag
+            String gzipEtag = weakEtag(body.length, lastModified, "-gz");
+            String gzipValidatorLines = "ETag: " + gzipEtag + "\r\n" + lastModifiedLine + cacheControl + vary;
+            gzipVariant = new Variant("HTTP/1.1 200 OK\r\n" + contentType + "Content-Encoding: gzip\r\n"
+                    + gzipValidatorLines + "Content-Length: " + gzipBody.length + "\r\n", gzipBody,
+                    "HTTP/1.1 304 Not Modified\r\n" + gzipValidatorLines, gzipEtag);
+        }
+        Entry entry = new Entry(identity, gzipVariant, lastModified);
+        synchronized (entries) {
+            if (version.get() == loadVersion) {
+                Entry old = entries.put(key, entry);
+                if (old != null) {
+                    currentBytes -= old.size();
+                }
+                currentBytes += entry.size();
+                evict();
+            }
+        }
+        return entry;
+    }
+
+    // 文件的校验信息 监听目录时缓存 否则每次读取文件属性
+    // 文件不存在时返回 null
+    public Validators getValidators(String filePath) throws IOException {
+        String key = key(filePath);
+        Validators cached = watching ? validators.get(key) : null;
+        if (cached != null) {
+            return cached;
+        }
+        long loadVersion = version.get();
+        Validators loaded = readValidators(key);
+        if (loaded != null && watching) {
+            if (validators.size() >= MAX_VALIDATORS) {
+                validators.clear();
+            }
+            validators.put(key, loaded);
+            if (version.get() != loadVersion) {
+                // 读取期间文件发生变化
+                validators.remove(key, loaded);
+            }
+        }
+        return loaded;
+    }
+
+    // 直接读取文件属性 不经过缓存
+    public static Validators readValidators(String filePath) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(Paths.get(filePath), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!attrs.isRegularFile()) {
+            return null;
+        }
+        return new Validators(attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+
+    // 由长度和修改时间组成的弱 ETag
+    static String weakEtag(long length, long lastModified, String suffix) {
+        return "W/\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + suffix + "\"";
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    // 调用方持有 entries 锁
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            currentBytes -= it.next().getValue().size();
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    // 使一个文件(或目录下的所有文件)失效
+    public void invalidate(String filePath) {
+        String key = key(filePath);
+        String dirPrefix = key + "/";
+        validators.keySet().removeIf(k -> k.equals(key) || k.startsWith(dirPrefix));
+        synchronized (entries) {
+            version.incrementAndGet();
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Entry> e = it.next();
+                if (e.getKey().equals(key) || e.getKey().startsWith(dirPrefix)) {
+                    currentBytes -= e.getValue().size();
+                    it.remove();
+                    invalidations.increment();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        validators.clear();
+        synchronized (entries) {
+            version.incrementAndGet();
+            invalidations.add(entries.size());
+            entries.clear();
+            currentBytes = 0;
+        }
+    }
+
+    private static String key(String filePath) {
+        // 与 WatchService 给出的路径保持同一形式
+        if (filePath.contains("//") || filePath.startsWith("./")) {
+            return Paths.get(filePath).normalize().toString();
+        }
+        return filePath;
+    }
+
+    // 监听目录树 文件变化时失效对应条目
+    public void watch(Path root) {
+        WatchService watchService;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            register(watchService, root);
+        } catch (IOException e) {
+            log.print(LOGH.SYSTEM, LOGX.WARN, "WatchService unavailable, falling back to mtime checks: "
+                    + e.getMessage());
+            return;
+        }
+        clear();
+        watching = true;
+        ServerThreads.daemon("static-cache-watch", () -> watchLoop(watchService)).start();
+    }
+
+    private static void register(WatchService watchService, Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void watchLoop(WatchService watchService) {
+        while (true) {
+            WatchKey watchKey;
+            try {
+                watchKey = watchService.take();
+            } catch (InterruptedException e) {
+                watching = false;
+                return;
+            }
+            Path dir = (Path) watchKey.watchable();
+            for (WatchEvent<?> event : watchKey.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    clear();
+                    continue;
+                }
+                Path changed = dir.resolve((Path) event.context());
+                invalidate(changed.toString());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                    try {
+                        register(watchService, changed);
+                    } catch (IOException e) {
+                        log.print(LOGH.SYSTEM, LOGX.WARN, "Failed to watch " + changed + ": " + e.getMessage());
+                    }
+                }
+            }
+            if (!watchKey.reset()) {
+                // 目录已删除
+                invalidate(dir.toString());
+            }
+        }
+    }
+
+    // 统计信息 / counters
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public long getCurrentBytes() {
+        synchronized (entries) {
+            return currentBytes;
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+}
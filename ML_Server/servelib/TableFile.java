@@ -0,0 +1,297 @@
+package servelib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// LightweightDataManager 的数据文件 / one shared FileChannel per table file
+// 读取用定位读 (pread) 多个线程共用一个 channel 不再每次打开 RandomAccessFile
+// 建立索引时把文件分段 mmap 每次比较 8 个字节寻找换行符 (SWAR)
+// 行按 UTF-8 解码 除了结果 String 以外不分配内存
+final class TableFile implements Closeable {
+
+    private static final int READ_CHUNK = 4096;
+    private static final int MAX_KEPT_BUFFER = 64 * 1024;
+    private static final long MAP_WINDOW = 1L << 30;
+    private static final long CURSOR_WINDOW = 64L * 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(READ_CHUNK));
+
+    // SWAR 常量
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+
+    // 遍历每一行的回调 window 中 [start, end) 是一行的内容 (不含 \n)
+    // base 是 window 第 0 个字节在文件中的偏移
+    interface LineVisitor {
+        void line(ByteBuffer window, int start, int end, long base);
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final AtomicInteger users = new AtomicInteger(); // 引用这个文件的 Generation 个数
+
+    TableFile(Path path) throws IOException {
+        this(path, true);
+    }
+
+    // writable 为 false 时只以读方式打开 write/force 抛出 NonWritableChannelException
+    TableFile(Path path, boolean writable) throws IOException {
+        this.path = path;
+        this.channel = writable ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long size() throws IOException {
+        return channel.size();
+    }
+
+    // 读取 offset 开始的一行 不含 \r\n 已经在文件末尾时返回 null
+    String readLine(long offset) throws IOException {
+        int end = scanLine(offset);
+        ByteBuffer buffer = READ_BUFFER.get();
+        release(buffer);
+        if (end < 0) {
+            return null;
+        }
+        byte[] bytes = buffer.array();
+        if (end > 0 && bytes[end - 1] == '\r') {
+            end--;
+        }
+        return new String(bytes, 0, end, StandardCharsets.UTF_8);
+    }
+
+    // 下一行的起始偏移 (越过 \n)
+    long nextLine(long offset) throws IOException {
+        int end = scanLine(offset);
+        ByteBuffer buffer = READ_BUFFER.get();
+        release(buffer);
+        return end < 0 ? offset : offset + Math.min(end + 1, buffer.position());
+    }
+
+    // 把一行读入线程本地缓冲区 返回 '\n' 的下标 (没有换行符时为读到的长度) 文件末尾返回 -1
+    private int scanLine(long offset) throws IOException {
+        ByteBuffer buffer = READ_BUFFER.get();
+        buffer.clear();
+        int scanned = 0;
+        while (true) {
+            int n = channel.read(buffer, offset + buffer.position());
+            byte[] bytes = buffer.array();
+            int limit = buffer.position();
+            for (int i = scanned; i < limit; i++) {
+                if (bytes[i] == '\n') {
+                    return i;
+                }
+            }
+            scanned = limit;
+            if (n < 0) {
+                return limit == 0 ? -1 : limit;
+            }
+            if (!buffer.hasRemaining()) {
+                // 超长的行 扩大缓冲区
+                ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                larger.put(buffer);
+                READ_BUFFER.set(larger);
+                buffer = larger;
+            }
+        }
+    }
+
+    // 过大的缓冲区用完后不保留
+    private static void release(ByteBuffer buffer) {
+        if (buffer.capacity() > MAX_KEPT_BUFFER) {
+            READ_BUFFER.set(ByteBuffer.allocate(READ_CHUNK));
+        }
+    }
+
+    void write(long position, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    void read(long position, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            if (channel.read(data, position + data.position()) < 0) {
+                throw new IOException("Unexpected end of " + path);
+            }
+        }
+    }
+
+    void truncate(long size) throws IOException {
+        channel.truncate(size);
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    // 遍历起始偏移在 [from, to) 之内的每一行 from 必须是一行的开头
+    // 跨越 to 的最后一行会完整地交给 visitor
+    void scan(long from, long to, LineVisitor visitor) throws IOException {
+        long size = channel.size();
+        long position = from;
+        while (position < to && position < size) {
+            long length = Math.min(MAP_WINDOW, size - position);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            window.order(ByteOrder.LITTLE_ENDIAN);
+            int limit = (int) length;
+            boolean last = position + length == size;
+            int start = 0;
+            while (start < limit && position + start < to) {
+                int newline = findNewline(window, start, limit);
+                if (newline < 0) {
+                    break;
+                }
+                visitor.line(window, start, newline, position);
+                start = newline + 1;
+            }
+            if (position + start >= to) {
+                return;
+            }
+            if (last) {
+                if (start < limit) {
+                    // 最后一行没有换行符
+                    visitor.line(window, start, limit, position);
+                }
+                return;
+            }
+            if (start == 0) {
+                throw new IOException("Line longer than " + MAP_WINDOW + " bytes in " + path);
+            }
+            position += start;
+        }
+    }
+
+    void retain() {
+        users.incrementAndGet();
+    }
+
+    // 最后一个引用释放时关闭
+    void release() throws IOException {
+        if (users.decrementAndGet() == 0) {
+            close();
+        }
+    }
+
+    // window 中 [from, limit) 的第一个 '\n' 没有时返回 -1
+    // window 必须是 LITTLE_ENDIAN 每次检查 8 个字节
+    private static int findNewline(ByteBuffer window, int from, int limit) {
+        int i = from;
+        while (i + 8 <= limit) {
+            long word = window.getLong(i) ^ NEWLINES;
+            long found = (word - ONES) & ~word & HIGHS;
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+            i += 8;
+        }
+        while (i < limit) {
+            if (window.get(i) == '\n') {
+                return i;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    // 一个字节 offset 之前是换行符 (offset 是某一行的开头)
+    boolean isLineStart(long offset) throws IOException {
+        if (offset <= 0) {
+            return offset == 0;
+        }
+        ByteBuffer previous = ByteBuffer.allocate(1);
+        return channel.read(previous, offset - 1) == 1 && previous.get(0) == '\n';
+    }
+
+    LineCursor cursor(long offset) {
+        return new LineCursor(offset);
+    }
+
+    // 从 offset 开始逐行向后读 (按需拉取 不用回调) 每次映射一个窗口
+    final class LineCursor {
+        private MappedByteBuffer window;
+        private long base;
+        private int limit;
+        private int start; // 当前行在 window 中的范围 [start, end)
+        private int end;
+        private int next;
+        private byte[] scratch = new byte[256];
+
+        private LineCursor(long offset) {
+            this.base = offset;
+        }
+
+        // 移到下一行 文件末尾返回 false
+        boolean advance() throws IOException {
+            while (true) {
+                if (window != null) {
+                    int newline = findNewline(window, next, limit);
+                    if (newline >= 0) {
+                        start = next;
+                        end = newline;
+                        next = newline + 1;
+                        return true;
+                    }
+                    if (base + limit == channel.size()) {
+                        if (next == limit) {
+                            return false;
+                        }
+                        // 最后一行没有换行符
+                        start = next;
+                        end = limit;
+                        next = limit;
+                        return true;
+                    }
+                    if (next == 0) {
+                        throw new IOException("Line longer than " + CURSOR_WINDOW + " bytes in " + path);
+                    }
+                    base += next;
+                }
+                long size = channel.size();
+                if (base >= size) {
+                    return false;
+                }
+                long length = Math.min(CURSOR_WINDOW, size - base);
+                window = channel.map(FileChannel.MapMode.READ_ONLY, base, length);
+                window.order(ByteOrder.LITTLE_ENDIAN);
+                limit = (int) length;
+                next = 0;
+            }
+        }
+
+        // 当前行在文件中的偏移
+        long offset() {
+            return base + start;
+        }
+
+        // 当前行的内容 不含 \r\n
+        String line() {
+            int stop = end > start && window.get(end - 1) == '\r' ? end - 1 : end;
+            int length = stop - start;
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            window.get(start, scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
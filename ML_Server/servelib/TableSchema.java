@@ -0,0 +1,119 @@
+package servelib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// LightweightDataManager 的列结构 / versioned schema of a text table
+// 文件第一行是列名 版本大于 1 时末尾是 "\u001C版本" (压缩和批量重写时写入)
+// 之后的修改以 "\u001C版本|列名|..." 一行追加在文件末尾 最新的一条生效 下一次重写时并入第一行
+// 每一列在行中的位置 (物理位置) 不变: 新列加在最后 之前写入的行没有这一列 读出 "null"
+// 删除列只把名字清空 数据仍留在行中 读取时隐藏 压缩时才真正去掉
+final class TableSchema {
+
+    private static final String DELIMITER = "|";
+    private static final String NULL = "null";
+    private static final char VERSION_MARK = '\u001C';
+
+    final int version;
+    final List<String> physical; // 行中每个位置的列名 已删除的为 ""
+    final List<String> headers; // 可见的列 按物理顺序
+    private final int[] positions; // headers 中每一列的物理位置
+    private final Map<String, Integer> index = new HashMap<>();
+    private final boolean identity; // 物理位置与可见列一致 不需要转换
+
+    private TableSchema(int version, List<String> physical) {
+        this.version = version;
+        this.physical = Collections.unmodifiableList(new ArrayList<>(physical));
+        List<String> visible = new ArrayList<>();
+        int[] at = new int[physical.size()];
+        for (int i = 0; i < physical.size(); i++) {
+            String name = physical.get(i);
+            if (!name.isEmpty() && !index.containsKey(name)) {
+                index.put(name, i);
+                at[visible.size()] = i;
+                visible.add(name);
+            }
+        }
+        this.headers = Collections.unmodifiableList(visible);
+        this.positions = Arrays.copyOf(at, visible.size());
+        this.identity = visible.size() == physical.size();
+    }
+
+    // 文件第一行
+    static TableSchema plain(List<String> columns) {
+        return new TableSchema(1, columns);
+    }
+
+    // 文件第一行 "列名|...[\u001C版本]" 版本号放在最后一个列名之后 按 | 分隔读取时列数与数据行相同
+    static TableSchema header(String line) {
+        int mark = line.lastIndexOf(VERSION_MARK);
+        if (mark < 0) {
+            return plain(Arrays.asList(line.split("\\" + DELIMITER, -1)));
+        }
+        return new TableSchema(Integer.parseInt(line.substring(mark + 1)),
+                Arrays.asList(line.substring(0, mark).split("\\" + DELIMITER, -1)));
+    }
+
+    // 已删除的列写成空的列名
+    String encodeHeader() {
+        String names = String.join(DELIMITER, physical);
+        return version > 1 ? names + VERSION_MARK + version : names;
+    }
+
+    // 追加记录去掉标记之后的部分 "版本|列名|..."
+    static TableSchema parse(String record) {
+        String[] fields = LightweightDataManager.splitRow(record);
+        return new TableSchema(Integer.parseInt(fields[0]), Arrays.asList(fields).subList(1, fields.length));
+    }
+
+    String encode() {
+        return version + DELIMITER + String.join(DELIMITER, physical);
+    }
+
+    // 列的物理位置 不存在时返回 -1
+    int column(String name) {
+        Integer at = index.get(name);
+        return at == null ? -1 : at;
+    }
+
+    boolean contains(String name) {
+        return index.containsKey(name);
+    }
+
+    TableSchema withColumn(String name) {
+        List<String> next = new ArrayList<>(physical);
+        next.add(name);
+        return new TableSchema(version + 1, next);
+    }
+
+    TableSchema withoutColumn(String name) {
+        List<String> next = new ArrayList<>(physical);
+        next.set(column(name), "");
+        return new TableSchema(version + 1, next);
+    }
+
+    // 压缩之后 行中只剩可见的列 版本号保留
+    TableSchema compacted() {
+        return new TableSchema(version, headers);
+    }
+
+    // 按可见列取出一行的值 缺少的列为 "null" 没有删除过列时原样返回
+    String[] project(String[] values) {
+        if (identity) {
+            return values;
+        }
+        String[] visible = new String[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            visible[i] = positions[i] < values.length ? values[positions[i]] : NULL;
+        }
+        return visible;
+    }
+
+    int[] positions() {
+        return positions.clone();
+    }
+}
@@ -0,0 +1,28 @@
+package servelib;
+
+import java.util.List;
+
+// 按列名读写的表 / common get/set API of the table formats
+// LightweightDataManager: | 分隔的文本表  ColumnarDataManager: 带类型的二进制列存
+// id 从 1 开始 空值读出来是 "null"
+public interface TableStore {
+
+    List<String> getHeaders();
+
+    // 行数
+    int size();
+
+    String get(int id, String column);
+
+    // 第一个 searchColumn 等于 searchValue 的行 没有时返回 null
+    String get(String searchColumn, String searchValue, String targetColumn);
+
+    // 所有匹配行的 id 从小到大
+    List<Integer> find(String searchColumn, String searchValue);
+
+    void set(int id, String column, String value);
+
+    void set(String searchColumn, String searchValue, String targetColumn, String targetValue);
+
+    void shutdown();
+}
@@ -0,0 +1,98 @@
+package servelib;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import servelib.log.LOGH;
+import servelib.log.LOGX;
+
+// 每个连接一个虚拟线程 / virtual-thread-per-connection server
+// 阻塞式 accept 通过信号量限制同时在线连接数 达到上限时不再 accept 由内核 backlog 排队
+public class VirtualThreadServer implements ServerCore {
+    private static final log log = new log();
+
+    private final ServerConfig config;
+    private final Semaphore permits;
+    private final AtomicInteger active = new AtomicInteger();
+
+    private ServerSocketChannel serverChannel;
+    private ExecutorService executor;
+    private Thread acceptThread;
+    private volatile boolean running;
+
+    public VirtualThreadServer(ServerConfig config) {
+        this.config = config;
+        this.permits = new Semaphore(config.getMaxConnections());
+    }
+
+    @Override
+    public void start() throws IOException {
+        // 使用 ServerSocketChannel 使每个 Socket 都有对应的 Channel
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(config.getPort()), config.getBacklog());
+        executor = ServerThreads.perTaskExecutor("conn");
+        running = true;
+        acceptThread = new Thread(this::acceptLoop, "accept-" + config.getPort());
+        acceptThread.start();
+        log.print(LOGH.SYSTEM, LOGX.INFO, "VIRTUAL server listening on " + config.getPort()
+                + " maxConnections=" + config.getMaxConnections());
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            SocketChannel channel = null;
+            try {
+                permits.acquire();
+                channel = serverChannel.accept();
+            } catch (InterruptedException | ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                permits.release();
+                log.print(LOGH.SYSTEM, LOGX.ERROR, "accept failed: " + e.getMessage());
+                continue;
+            }
+            active.incrementAndGet();
+            Socket socket = channel.socket();
+            executor.execute(() -> {
+                try {
+                    new ConnectionHandler(socket, config, false).run(socket.getInputStream());
+                } catch (IOException e) {
+                    log.print(LOGH.SYSTEM, LOGX.DEBUG, () -> "Connection error: " + e.getMessage());
+                } finally {
+                    ConnectionHandler.closeQuietly(socket);
+                    active.decrementAndGet();
+                    permits.release();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException ignored) {
+        }
+        if (acceptThread != null) {
+            acceptThread.interrupt();
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return active.get();
+    }
+}
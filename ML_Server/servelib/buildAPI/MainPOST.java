@@ -1 +1,226 @@
-//building .....
+package servelib.buildAPI;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import servelib.BuildRequest;
+import servelib.BuildResponse;
+import servelib.RequestBody;
+import servelib.RequestBody.BodyException;
+import servelib.RouteHandler;
+import servelib.Router;
+
+// POST / PUT 处理器 / handlers for requests with a body
+// 请求体以 RequestBody 流的形式交给处理器 按 Content-Length 或 chunked 分帧 Expect: 100-continue 在第一次读取时回复
+//   BuildResponse.addRoute("/api/echo", MainPOST.of((request, body, response) -> ...));
+//   BuildResponse.addRoute("/upload", MainPOST.upload("data/File", 64 * 1024, 128));
+// 读取时超过上限或格式错误抛出 BodyException ConnectionHandler 回复对应的状态码
+public final class MainPOST {
+
+    private static final int WRITE_BUFFER = 64 * 1024;
+    private static final int MAX_FILE_NAME = 200;
+
+    // 带请求体的处理器
+    @FunctionalInterface
+    public interface BodyHandler {
+        void handle(BuildRequest request, RequestBody body, BuildResponse response) throws IOException;
+    }
+
+    private MainPOST() {
+    }
+
+    // 只接受 POST 和 PUT 其他方法回复 405
+    public static RouteHandler of(BodyHandler handler) {
+        return (request, response) -> {
+            String method = request.getRequestType();
+            if (!"POST".equals(method) && !"PUT".equals(method)) {
+                response.output_Status(405, "Method Not Allowed");
+                return;
+            }
+            handler.handle(request, request.getBody(), response);
+        };
+    }
+
+    // 上传到 directory:
+    //   POST multipart/form-data: 文件部分通过 FileChannel 直接写入 directory 文件名清理后重名时加随机后缀
+    //                             普通字段读入内存 每个最多 maxFieldBytes 最多 maxParts 个部分
+    //   PUT: 整个请求体写入路径最后一段命名的文件 已存在时替换
+    // 回复 201 和 JSON: {"files":[{"field":..,"name":..,"size":..}],"fields":{..}} 失败时删除已写入的文件
+    public static RouteHandler upload(String directory, long maxFieldBytes, int maxParts) throws IOException {
+        Path root = Files.createDirectories(Paths.get(directory)).toAbsolutePath();
+        return of((request, body, response) -> {
+            List<String[]> files = new ArrayList<>(); // field, name, size
+            Map<String, String> fields = new LinkedHashMap<>();
+            List<Path> written = new ArrayList<>();
+            try {
+                if ("PUT".equals(request.getRequestType())) {
+                    // 路由前缀之后的部分 PUT 到前缀本身没有文件名
+                    String path = request.getRequestBody();
+                    Router.Route route = BuildResponse.getRouter().match(path);
+                    String rest = route == null ? path : route.remainder(path);
+                    String name = sanitize(rest.substring(rest.lastIndexOf('/') + 1));
+                    if (name == null || resolve(root, name) == null) {
+                        throw new BodyException(400, "PUT needs a valid file name");
+                    }
+                    Path temp = temporary(root);
+                    written.add(temp);
+                    long size = write(body, temp);
+                    Path target = root.resolve(name);
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    written.set(0, target);
+                    files.add(new String[] { "", name, Long.toString(size) });
+                } else {
+                    String boundary = MultipartReader.boundary(request.getHeader("Content-Type"));
+                    if (boundary == null) {
+                        throw new BodyException(415, "Expected multipart/form-data");
+                    }
+                    MultipartReader reader = new MultipartReader(body, boundary, maxParts);
+                    MultipartReader.Part part;
+                    while ((part = reader.next()) != null) {
+                        String field = part.getName() == null ? "" : part.getName();
+                        if (part.getFileName() == null) {
+                            fields.putIfAbsent(field, part.readString(maxFieldBytes));
+                            continue;
+                        }
+                        // 先写入临时文件 写完后再改名 目录中不会出现不完整的文件名
+                        Path temp = temporary(root);
+                        written.add(temp);
+                        long size = part.transferTo(temp);
+                        Path target = moveUnique(temp, root, sanitize(part.getFileName()));
+                        written.set(written.size() - 1, target);
+                        files.add(new String[] { field, target.getFileName().toString(), Long.toString(size) });
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                for (Path path : written) {
+                    Files.deleteIfExists(path);
+                }
+                throw e;
+            }
+            response.output_Content(201, "Created", "application/json; charset=utf-8",
+                    json(files, fields).getBytes(StandardCharsets.UTF_8));
+        });
+    }
+
+    // 经过一个固定大小的缓冲区写入 FileChannel
+    // 不用 transferFrom: 已经传输了部分字节时它会吞掉读取中的异常 BodyException 无法传到 ConnectionHandler
+    private static long write(RequestBody body, Path file) throws IOException {
+        long total = 0;
+        byte[] chunk = new byte[WRITE_BUFFER];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            int n;
+            while ((n = body.read(chunk, 0, chunk.length)) >= 0) {
+                ByteBuffer view = ByteBuffer.wrap(chunk, 0, n);
+                while (view.hasRemaining()) {
+                    channel.write(view);
+                }
+                total += n;
+            }
+        }
+        if (!body.isFinished()) {
+            throw new IOException("Request body ended early");
+        }
+        return total;
+    }
+
+    private static Path temporary(Path root) {
+        return root.resolve(".upload-" + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".part");
+    }
+
+    // 不覆盖已有文件 重名时在扩展名前加随机后缀
+    private static Path moveUnique(Path temp, Path root, String name) throws IOException {
+        if (name == null || resolve(root, name) == null) {
+            name = "upload";
+        }
+        Path target = root.resolve(name);
+        while (true) {
+            try {
+                // 不用 ATOMIC_MOVE: rename(2) 会直接覆盖已存在的文件
+                return Files.move(temp, target);
+            } catch (FileAlreadyExistsException e) {
+                int dot = name.lastIndexOf('.');
+                String suffix = "-" + Integer.toHexString(ThreadLocalRandom.current().nextInt());
+                target = root.resolve(dot > 0 ? name.substring(0, dot) + suffix + name.substring(dot)
+                        : name + suffix);
+            }
+        }
+    }
+
+    // 文件系统编码无法表示的文件名 (例如 LANG=C 时的中文) 返回 null
+    private static Path resolve(Path root, String name) {
+        try {
+            return root.resolve(name);
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    // 客户端提供的文件名: 去掉目录部分 控制字符和 Windows 保留字符替换为 '_' 不能以 '.' 开头 空时返回 null
+    static String sanitize(String name) {
+        if (name == null) {
+            return null;
+        }
+        name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        StringBuilder clean = new StringBuilder(name.length());
+        for (int i = 0; i < name.length() && clean.length() < MAX_FILE_NAME; i++) {
+            char c = name.charAt(i);
+            if (c < 0x20 || c == 0x7f || ":*?\"<>|".indexOf(c) >= 0) {
+                c = '_';
+            }
+            clean.append(c);
+        }
+        while (clean.length() > 0 && (clean.charAt(0) == '.' || clean.charAt(0) == ' ')) {
+            clean.deleteCharAt(0);
+        }
+        return clean.length() == 0 ? null : clean.toString();
+    }
+
+    private static String json(List<String[]> files, Map<String, String> fields) {
+        StringBuilder out = new StringBuilder(128);
+        out.append("{\"files\":[");
+        for (int i = 0; i < files.size(); i++) {
+            String[] file = files.get(i);
+            out.append(i == 0 ? "" : ",").append("{\"field\":");
+            quote(out, file[0]).append(",\"name\":");
+            quote(out, file[1]).append(",\"size\":").append(file[2]).append('}');
+        }
+        out.append("],\"fields\":{");
+        boolean first = true;
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            out.append(first ? "" : ",");
+            quote(out, field.getKey()).append(':');
+            quote(out, field.getValue());
+            first = false;
+        }
+        return out.append("}}").toString();
+    }
+
+    private static StringBuilder quote(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"');
+    }
+}
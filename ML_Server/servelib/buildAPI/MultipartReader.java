@@ -0,0 +1,385 @@
+package servelib.buildAPI;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import servelib.RequestBody.BodyException;
+
+// multipart/form-data 的增量解析 / incremental multipart/form-data parser
+// 在一个固定大小的缓冲区上查找分隔行 "\r\n--boundary" 每个部分的内容以流的形式交给调用方 不会整个读入内存
+//   Part part;
+//   while ((part = reader.next()) != null) {
+//       if (part.getFileName() != null) part.transferTo(file); else part.readString(maxFieldBytes);
+//   }
+// 调用 next() 时上一个部分没有读完的内容被跳过
+public final class MultipartReader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_PART_HEADERS = 16 * 1024; // 每个部分的头部总长度
+    private static final int MAX_BOUNDARY = 70; // RFC 2046
+
+    // 一个部分 / one part
+    public final class Part {
+        private final Map<String, String> headers;
+        private final String name;
+        private final String fileName;
+        private final PartInputStream content = new PartInputStream();
+
+        private Part(Map<String, String> headers) {
+            this.headers = Collections.unmodifiableMap(headers);
+            Map<String, String> disposition = parameters(headers.get("content-disposition"));
+            this.name = disposition.get("name");
+            String encoded = disposition.get("filename*");
+            this.fileName = encoded != null ? decodeExtended(encoded) : disposition.get("filename");
+        }
+
+        // Content-Disposition 中的 name
+        public String getName() {
+            return name;
+        }
+
+        // 上传的文件名 (客户端提供 未经清理) 普通字段为 null
+        public String getFileName() {
+            return fileName;
+        }
+
+        // 没有时为 text/plain (RFC 7578)
+        public String getContentType() {
+            String type = headers.get("content-type");
+            return type == null ? "text/plain" : type;
+        }
+
+        // 部分的头部 名称为小写
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        // 这个部分的内容 读到下一个分隔行为止
+        public InputStream getInputStream() {
+            return content;
+        }
+
+        // 读入内存 超过 maxBytes 时抛出 BodyException(413)
+        public String readString(long maxBytes) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int n;
+            while ((n = content.read(chunk, 0, chunk.length)) >= 0) {
+                if (out.size() + n > maxBytes) {
+                    throw new BodyException(413, "Field " + name + " exceeds " + maxBytes + " bytes");
+                }
+                out.write(chunk, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        // 通过 FileChannel 写入新文件 (文件已存在时失败) 返回写入的字节数
+        // 只经过解析缓冲区 不在堆上保留整个部分
+        public long transferTo(Path file) throws IOException {
+            long total = 0;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE)) {
+                ByteBuffer view;
+                while ((view = content.nextSlice()) != null) {
+                    total += view.remaining();
+                    while (view.hasRemaining()) {
+                        channel.write(view);
+                    }
+                }
+            }
+            return total;
+        }
+    }
+
+    private final InputStream body;
+    private final byte[] delimiter; // "\r\n--" + boundary
+    private final int maxParts;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private int parts;
+    private Part current;
+    private boolean done;
+
+    public MultipartReader(InputStream body, String boundary, int maxParts) {
+        if (boundary.isEmpty() || boundary.length() > MAX_BOUNDARY) {
+            throw new IllegalArgumentException("Invalid boundary");
+        }
+        this.body = body;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.maxParts = maxParts;
+        // 第一个分隔行前面没有 CRLF 先放入一个 使所有分隔行的形式相同
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        limit = 2;
+    }
+
+    // Content-Type 中的 boundary 不是 multipart/form-data 时返回 null
+    public static String boundary(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim();
+        if (!type.equalsIgnoreCase("multipart/form-data") || semicolon < 0) {
+            return null;
+        }
+        String boundary = parameters("form-data" + contentType.substring(semicolon)).get("boundary");
+        return boundary == null || boundary.isEmpty() || boundary.length() > MAX_BOUNDARY ? null : boundary;
+    }
+
+    // 下一个部分 没有更多部分时返回 null
+    public Part next() throws IOException {
+        if (done) {
+            return null;
+        }
+        if (current != null) {
+            // 跳过上一个部分剩余的内容
+            while (current.content.nextSlice() != null) {
+                // 丢弃
+            }
+        } else {
+            skipPreamble();
+        }
+        // 分隔行之后: "--" 表示结束 否则是 (可选的空白) CRLF 然后是部分的头部
+        if (!ensure(2)) {
+            throw malformed("truncated after boundary");
+        }
+        if (buffer[position] == '-' && buffer[position + 1] == '-') {
+            done = true;
+            current = null;
+            // 结尾之后的内容忽略
+            byte[] scratch = new byte[8192];
+            while (body.read(scratch, 0, scratch.length) >= 0) {
+                // 丢弃
+            }
+            return null;
+        }
+        String padding = readLine(MAX_PART_HEADERS);
+        if (!padding.trim().isEmpty()) {
+            throw malformed("unexpected data after boundary");
+        }
+        if (++parts > maxParts) {
+            throw new BodyException(413, "More than " + maxParts + " parts");
+        }
+        Map<String, String> headers = new LinkedHashMap<>();
+        int headerBytes = 0;
+        String line;
+        while (!(line = readLine(MAX_PART_HEADERS - headerBytes)).isEmpty()) {
+            headerBytes += line.length() + 2;
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw malformed("invalid part header");
+            }
+            headers.merge(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim(),
+                    (a, b) -> a + ", " + b);
+        }
+        current = new Part(headers);
+        return current;
+    }
+
+    // 第一个分隔行之前的内容 (preamble) 丢弃 读到分隔行之后
+    private void skipPreamble() throws IOException {
+        PartInputStream preamble = new PartInputStream();
+        while (preamble.nextSlice() != null) {
+            // 丢弃
+        }
+    }
+
+    // 一个部分的内容 到下一个分隔行为止
+    private final class PartInputStream extends InputStream {
+        private boolean ended;
+
+        // 缓冲区中可以交出的一段 (不会包含分隔行的开头) 到达分隔行时返回 null 并跳过分隔行
+        // 返回的 ByteBuffer 在下一次调用之前有效
+        ByteBuffer nextSlice() throws IOException {
+            return nextSlice(Integer.MAX_VALUE);
+        }
+
+        private ByteBuffer nextSlice(int max) throws IOException {
+            while (!ended) {
+                int found = indexOf(delimiter, position, limit);
+                if (found == position) {
+                    position += delimiter.length;
+                    ended = true;
+                    return null;
+                }
+                // 没有找到时末尾可能是分隔行的前一部分 保留 delimiter.length - 1 个字节
+                int end = found >= 0 ? found : limit - (delimiter.length - 1);
+                if (end > position) {
+                    int count = Math.min(max, end - position);
+                    ByteBuffer slice = ByteBuffer.wrap(buffer, position, count);
+                    position += count;
+                    return slice;
+                }
+                if (!fill()) {
+                    throw malformed("body ended inside a part");
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            ByteBuffer slice = nextSlice(1);
+            return slice == null ? -1 : slice.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            ByteBuffer slice = nextSlice(count);
+            if (slice == null) {
+                return -1;
+            }
+            int n = slice.remaining();
+            slice.get(bytes, offset, n);
+            return n;
+        }
+    }
+
+    // 保证缓冲区中至少有 count 个未读字节 请求体结束时返回 false
+    private boolean ensure(int count) throws IOException {
+        while (limit - position < count) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 把未读部分移到开头 再从请求体读取
+    private boolean fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            throw malformed("line too long");
+        }
+        int n = body.read(buffer, limit, buffer.length - limit);
+        if (n < 0) {
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+    private String readLine(int max) throws IOException {
+        int scanned = 0;
+        while (true) {
+            for (int i = position + scanned; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    // 一次读到的整行也要检查 上限不能取决于数据怎样分段到达
+                    if (i - position > max) {
+                        throw new BodyException(431, "Part headers too large");
+                    }
+                    int end = i > position && buffer[i - 1] == '\r' ? i - 1 : i;
+                    String line = new String(buffer, position, end - position, StandardCharsets.UTF_8);
+                    position = i + 1;
+                    return line;
+                }
+            }
+            scanned = limit - position;
+            if (scanned > max) {
+                throw new BodyException(431, "Part headers too large");
+            }
+            if (!fill()) {
+                throw malformed("truncated part headers");
+            }
+        }
+    }
+
+    private int indexOf(byte[] pattern, int from, int to) {
+        byte first = pattern[0];
+        int last = to - pattern.length;
+        for (int i = from; i <= last; i++) {
+            if (buffer[i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < pattern.length && buffer[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static BodyException malformed(String reason) {
+        return new BodyException(400, "Malformed multipart body: " + reason);
+    }
+
+    // "form-data; name=\"a\"; filename=\"b.txt\"" 的参数 名称为小写 引号内的 \ 转义已去除
+    static Map<String, String> parameters(String value) {
+        Map<String, String> result = new LinkedHashMap<>();
+        if (value == null) {
+            return result;
+        }
+        int i = value.indexOf(';');
+        while (i >= 0 && i < value.length()) {
+            i++;
+            int eq = value.indexOf('=', i);
+            if (eq < 0) {
+                break;
+            }
+            String key = value.substring(i, eq).trim().toLowerCase(Locale.ROOT);
+            int p = eq + 1;
+            while (p < value.length() && value.charAt(p) == ' ') {
+                p++;
+            }
+            StringBuilder text = new StringBuilder();
+            if (p < value.length() && value.charAt(p) == '"') {
+                p++;
+                while (p < value.length() && value.charAt(p) != '"') {
+                    char c = value.charAt(p);
+                    if (c == '\\' && p + 1 < value.length()) {
+                        c = value.charAt(++p);
+                    }
+                    text.append(c);
+                    p++;
+                }
+                i = value.indexOf(';', p);
+            } else {
+                int end = value.indexOf(';', p);
+                text.append(value, p, end < 0 ? value.length() : end);
+                i = end;
+            }
+            result.putIfAbsent(key, text.toString().trim());
+        }
+        return result;
+    }
+
+    // RFC 5987: charset'language'value 例如 UTF-8''%E4%B8%AD.txt 或 UTF-8'en'%E4%B8%AD.txt 语言标记忽略
+    static String decodeExtended(String value) {
+        int first = value.indexOf('\'');
+        int second = first < 0 ? -1 : value.indexOf('\'', first + 1);
+        if (second < 0) {
+            return value;
+        }
+        String charset = value.substring(0, first);
+        try {
+            return URLDecoder.decode(value.substring(second + 1).replace("+", "%2B"),
+                    charset.isEmpty() ? "UTF-8" : charset);
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return value.substring(second + 1);
+        }
+    }
+}
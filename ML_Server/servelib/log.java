@@ -1,7 +1,23 @@
 package servelib;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
+// 异步日志 / asynchronous logger
+// print 先检查级别 通过后只把 (头, 级别, 内容, 时间) 放进环形队列 格式化和输出都在后台线程 "log-writer" 上
+// 后台线程一次取出所有排队的日志 拼成一块写入 stdout 或滚动文件
+// 队列满时按 Overflow 丢弃 (计数 之后输出一行提示) 或阻塞等待
 public class log {
     private static final String Reset = "\033[0m";// 清除
     private static final String Red = "\033[31m";
@@ -14,8 +30,8 @@ public class log {
     // private static final String Green = "\033[32m";
     // private static final String Black = "\033[30m";
 
-    private static boolean LOG_OnlyAtlevel = false; // 只
-    private static LOGX SHOW_LOGX = LOGX.INFO;
+    private static volatile boolean LOG_OnlyAtlevel = false; // 只
+    private static volatile LOGX SHOW_LOGX = LOGX.INFO;
 
     // 定义日志级别
     public static enum LOGX {
@@ -48,6 +64,43 @@ public class log {
         }
     }
 
+    // 队列满时的处理方式
+    // DROP: 丢弃这一条 请求线程不等待 (默认)
+    // BLOCK: 等后台线程腾出位置 不丢日志
+    public static enum Overflow {
+        DROP, BLOCK
+    }
+
+    private static final int QUEUE_SIZE = 16384; // 2 的幂
+    private static final int BATCH_BYTES = 64 * 1024; // 攒够这么多字节先写一次
+    private static final long IDLE_PARK_NANOS = 500_000_000L;
+    private static final long DEFAULT_FILE_BYTES = 64L * 1024 * 1024;
+    private static final int DEFAULT_FILE_BACKUPS = 5;
+
+    // 按 LOGH / LOGX 的顺序 预先拼好 TIME 头每秒格式化一次
+    private static final String[] HEADS = { "[ " + Red + "#ROOT#" + Reset + " ]", "[ " + Blue + "SYSTEM" + Reset + " ]",
+            null };
+    private static final String[] LEVELS = { "[A]", "[" + Yellow + "D" + Reset + "]", "[" + Blue + "I" + Reset + "]",
+            "[" + Yellow + "W" + Reset + "]", "[" + Red + "E" + Reset + "]", "[F]", "[M]" };
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
+    private static final LogRing queue = new LogRing(QUEUE_SIZE);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile Overflow overflow = Overflow.DROP;
+    private static final Object targetLock = new Object(); // 切换输出时不能正在写
+    private static OutputStream target = System.out; // targetLock 保护
+    private static volatile boolean sleeping; // 后台线程空闲等待中 写入者需要唤醒
+    private static volatile long written; // 已经写出的条数 flush 等待用
+    private static final Thread writer;
+
+    static {
+        writer = new Thread(log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(log::flush, "log-flush"));
+    }
+
     // 默认参数：打印系统日志级别为INFO
     public void print(LOGX level, String logData) {
         print(LOGH.SYSTEM, level, logData); // 默认头部为 SYSTEM
@@ -63,57 +116,229 @@ public class log {
         print(LOGH.SYSTEM, LOGX.INFO, logData); // 默认级别为 INFO
     }
 
+    // 内容在级别通过之后才生成 (在调用线程上) 拼接字符串的 DEBUG 日志用这个
+    public void print(LOGX level, Supplier<String> logData) {
+        print(LOGH.SYSTEM, level, logData);
+    }
+
+    public void print(LOGH head, LOGX level, Supplier<String> logData) {
+        if (isEnabled(level)) {
+            enqueue(head, level, logData.get());
+        }
+    }
+
     // 完整的日志打印方法，传入 head, level 和 logData
     public void print(LOGH head, LOGX level, String logData) {
-        String headbuild = "";
-        String levelBuild = "";
-
-        // 设置日志头部
-        switch (head) {
-            case ROOT:
-                headbuild = String.format("[ %s#ROOT#%S ]", Red, Reset);
-                break;
-            case SYSTEM:
-                headbuild = String.format("[ %sSYSTEM%s ]", Blue, Reset);
-                break;
-            case TIME:
-                headbuild = String.format("[%s]", new SimpleDateFormat("HH:mm:ss").format(new Date()));
-                break;
-        }
-
-        // 设置日志级别
-        switch (level) {
-            case ALL:
-                levelBuild = "[A]";
-                break;
-            case DEBUG:
-                levelBuild = "[" + Yellow + "D" + Reset + "]";
-                break;
-            case INFO:
-                levelBuild = "[" + Blue + "I" + Reset + "]";
-                break;
-            case ERROR:
-                levelBuild = "[" + Red + "E" + Reset + "]";
-                break;
-            case FATAL:
-                levelBuild = "[F]";
-                break;
-            case MUST:
-                levelBuild = "[M]";
-                break;
-            default:
-                break;
-        }
-
-        // 输出日志
-        if (LOG_OnlyAtlevel) {
-            if (SHOW_LOGX.getValue() == level.getValue()) {
-                System.out.println(headbuild + levelBuild + " | " + logData);
+        if (isEnabled(level)) {
+            enqueue(head, level, logData);
+        }
+    }
+
+    public static boolean isEnabled(LOGX level) {
+        return LOG_OnlyAtlevel ? SHOW_LOGX == level : SHOW_LOGX.getValue() <= level.getValue();
+    }
+
+    public static void setLevel(LOGX level) {
+        SHOW_LOGX = level;
+    }
+
+    // 只输出 setLevel 这一级
+    public static void setOnlyAtLevel(boolean onlyAtLevel) {
+        LOG_OnlyAtlevel = onlyAtLevel;
+    }
+
+    public static void setOverflow(Overflow policy) {
+        overflow = policy;
+    }
+
+    // 队列满而丢弃的条数
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    public static void toStdout() {
+        switchTarget(System.out);
+    }
+
+    // 写入文件 超过 maxBytes 时改名为 .1 (.1 改为 .2 ...) 最多保留 backups 个旧文件
+    public static void toFile(String path) throws IOException {
+        toFile(path, DEFAULT_FILE_BYTES, DEFAULT_FILE_BACKUPS);
+    }
+
+    public static void toFile(String path, long maxBytes, int backups) throws IOException {
+        if (maxBytes <= 0 || backups < 0) {
+            throw new IllegalArgumentException("maxBytes must be > 0 and backups >= 0");
+        }
+        switchTarget(new RollingFile(Paths.get(path), maxBytes, backups));
+    }
+
+    // 之前的日志写完后再切换
+    private static void switchTarget(OutputStream next) {
+        flush();
+        OutputStream previous;
+        synchronized (targetLock) {
+            previous = target;
+            target = next;
+        }
+        if (previous != System.out) {
+            try {
+                previous.close();
+            } catch (IOException e) {
+                System.err.println("log: failed to close log file: " + e.getMessage());
             }
-        } else {
-            if (SHOW_LOGX.getValue() <= level.getValue()) {
-                System.out.println(headbuild + levelBuild + " | " + logData);
+        }
+    }
+
+    // 等待调用之前提交的日志全部写出
+    public static void flush() {
+        long goal = queue.claimed();
+        while (written < goal && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    private static void enqueue(LOGH head, LOGX level, String message) {
+        long time = System.currentTimeMillis();
+        if (!queue.offer(head, level, message, time)) {
+            if (overflow == Overflow.DROP || Thread.currentThread() == writer) {
+                dropped.incrementAndGet();
+                return;
+            }
+            LockSupport.unpark(writer);
+            while (!queue.offer(head, level, message, time)) {
+                LockSupport.parkNanos(50_000);
+            }
+        }
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    // 后台线程 取出排队的日志 格式化后成块写出 没有日志时 park
+    private static void writeLoop() {
+        StringBuilder text = new StringBuilder(BATCH_BYTES);
+        long[] timeCache = { Long.MIN_VALUE };
+        String[] timeHead = { null };
+        long reportedDrops = 0;
+        while (true) {
+            LogRing.Entry entry = queue.peek();
+            if (entry != null) {
+                format(entry, text, timeCache, timeHead);
+                queue.release();
+                if (text.length() < BATCH_BYTES) {
+                    continue;
+                }
+            } else if (!queue.isEmpty()) {
+                // 写入者已经领取位置 还没写完
+                Thread.onSpinWait();
+                continue;
+            }
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                text.append(HEADS[LOGH.SYSTEM.ordinal()]).append(LEVELS[LOGX.WARN.ordinal()])
+                        .append(" | log queue full, dropped ").append(drops - reportedDrops).append(" messages").append(System.lineSeparator());
+                reportedDrops = drops;
+            }
+            write(text);
+            written = queue.consumed();
+            if (entry == null) {
+                sleeping = true;
+                if (queue.isEmpty()) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                sleeping = false;
+            }
+        }
+    }
+
+    private static void format(LogRing.Entry entry, StringBuilder text, long[] timeCache, String[] timeHead) {
+        String head = HEADS[entry.head.ordinal()];
+        if (head == null) {
+            long second = entry.time / 1000;
+            if (second != timeCache[0]) {
+                timeCache[0] = second;
+                timeHead[0] = "[" + TIME_FORMAT.format(Instant.ofEpochMilli(entry.time)) + "]";
+            }
+            head = timeHead[0];
+        }
+        text.append(head).append(LEVELS[entry.level.ordinal()]).append(" | ").append(entry.message)
+                .append(System.lineSeparator());
+    }
+
+    private static void write(StringBuilder text) {
+        if (text.length() == 0) {
+            return;
+        }
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        text.setLength(0);
+        synchronized (targetLock) {
+            try {
+                target.write(bytes);
+                target.flush();
+            } catch (IOException e) {
+                System.err.println("log: write failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // 按大小滚动的日志文件 只在后台线程上写入
+    private static final class RollingFile extends OutputStream {
+        private final Path path;
+        private final long maxBytes;
+        private final int backups;
+        private FileOutputStream out;
+        private long size;
+
+        RollingFile(Path path, long maxBytes, int backups) throws IOException {
+            this.path = path;
+            this.maxBytes = maxBytes;
+            this.backups = backups;
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            open();
+        }
+
+        private void open() throws IOException {
+            out = new FileOutputStream(path.toFile(), true);
+            size = out.getChannel().size();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (size > 0 && size + length > maxBytes) {
+                roll();
             }
+            out.write(bytes, offset, length);
+            size += length;
+        }
+
+        private void roll() throws IOException {
+            out.close();
+            if (backups == 0) {
+                Files.delete(path);
+            } else {
+                for (int i = backups - 1; i >= 1; i--) {
+                    Path older = Paths.get(path + "." + i);
+                    if (Files.exists(older)) {
+                        Files.move(older, Paths.get(path + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                Files.move(path, Paths.get(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            }
+            open();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
         }
     }
 }
@@ -0,0 +1,367 @@
+package servelib;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+// PROXY protocol v1 / v2 解码
+// 头部之后的字节 (HTTP 请求) 必须原样留在输入流中
+class ProxyProtocolTest {
+
+    private static final byte[] REQUEST = "GET /index.html HTTP/1.1\r\nHost: x\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int LOCAL = 0x20;
+    private static final int PROXY = 0x21;
+    private static final int TCP4 = 0x11;
+    private static final int UDP4 = 0x12;
+    private static final int TCP6 = 0x21;
+    private static final int UDP6 = 0x22;
+    private static final int UNIX_STREAM = 0x31;
+    private static final int UNSPEC = 0x00;
+
+    // 小缓冲区 头部和请求跨越多次填充
+    private static BufferedInputStream stream(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return new BufferedInputStream(new ByteArrayInputStream(out.toByteArray()), 8);
+    }
+
+    // 签名 + 版本/命令 + 地址族/协议 + 长度 + 地址和 TLV
+    private static byte[] v2(int command, int family, byte[] addresses, byte[]... tlvs) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.writeBytes(addresses);
+        for (byte[] tlv : tlvs) {
+            body.writeBytes(tlv);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(ProxyProtocol.V2_SIGNATURE);
+        out.write(command);
+        out.write(family);
+        out.write(body.size() >> 8);
+        out.write(body.size() & 0xFF);
+        out.writeBytes(body.toByteArray());
+        return out.toByteArray();
+    }
+
+    private static byte[] tlv(int type, byte[] value) {
+        byte[] out = new byte[3 + value.length];
+        out[0] = (byte) type;
+        out[1] = (byte) (value.length >> 8);
+        out[2] = (byte) value.length;
+        System.arraycopy(value, 0, out, 3, value.length);
+        return out;
+    }
+
+    private static byte[] addresses(String source, String destination, int sourcePort, int destinationPort)
+            throws IOException {
+        byte[] from = InetAddress.getByName(source).getAddress();
+        byte[] to = InetAddress.getByName(destination).getAddress();
+        byte[] out = new byte[from.length + to.length + 4];
+        System.arraycopy(from, 0, out, 0, from.length);
+        System.arraycopy(to, 0, out, from.length, to.length);
+        out[out.length - 4] = (byte) (sourcePort >> 8);
+        out[out.length - 3] = (byte) sourcePort;
+        out[out.length - 2] = (byte) (destinationPort >> 8);
+        out[out.length - 1] = (byte) destinationPort;
+        return out;
+    }
+
+    private static byte[] unixAddresses(String source, String destination) {
+        byte[] out = new byte[216];
+        byte[] from = source.getBytes(StandardCharsets.UTF_8);
+        byte[] to = destination.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(from, 0, out, 0, from.length);
+        System.arraycopy(to, 0, out, 108, to.length);
+        return out;
+    }
+
+    // 在整个头部 (CRC 字段为零) 上计算 CRC32C 填入最后 4 个字节
+    private static byte[] withCrc(byte[] header) {
+        CRC32C crc = new CRC32C();
+        crc.update(header);
+        int value = (int) crc.getValue();
+        byte[] out = header.clone();
+        out[out.length - 4] = (byte) (value >>> 24);
+        out[out.length - 3] = (byte) (value >>> 16);
+        out[out.length - 2] = (byte) (value >>> 8);
+        out[out.length - 1] = (byte) value;
+        return out;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // 头部之后读出的必须正好是原来的请求 并且能被 BuildRequest 解析
+    private static void assertRequestFollows(BufferedInputStream in) throws IOException {
+        in.mark(REQUEST.length);
+        assertArrayEquals(REQUEST, in.readNBytes(REQUEST.length));
+        in.reset();
+        BuildRequest request = new BuildRequest(null, in, new BuildRequest.Buffer(), "127.0.0.1");
+        assertEquals("GET", request.getRequestType());
+        assertEquals("/index.html", request.getRequestBody());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    void noHeaderConsumesNothing() throws IOException {
+        BufferedInputStream in = stream(REQUEST);
+        assertNull(ProxyProtocol.read(in));
+        assertRequestFollows(in);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "PROXZ / HTTP/1.1\r\n", "PROX", "\r\n\r\n\0\r\nQUIX\n", "\r\n\r\nGET", "" })
+    void lookAlikePrefixesAreNotConsumed(String data) throws IOException {
+        BufferedInputStream in = stream(ascii(data));
+        assertNull(ProxyProtocol.read(in));
+        assertArrayEquals(ascii(data), in.readAllBytes());
+    }
+
+    @Test
+    void v2Ipv4() throws IOException {
+        BufferedInputStream in = stream(v2(PROXY, TCP4, addresses("192.0.2.10", "198.51.100.1", 51234, 443)), REQUEST);
+        ProxyProtocol.Header header = ProxyProtocol.read(in);
+        assertEquals(2, header.getVersion());
+        assertFalse(header.isLocal());
+        assertEquals("TCP4", header.getTransport());
+        assertEquals("192.0.2.10", header.getClientIp());
+        assertEquals(new InetSocketAddress("192.0.2.10", 51234), header.getSource());
+        assertEquals(new InetSocketAddress("198.51.100.1", 443), header.getDestination());
+        assertTrue(header.getTlvs().isEmpty());
+        assertRequestFollows(in);
+    }
+
+    @Test
+    void v2Udp4() throws IOException {
+        ProxyProtocol.Header header = ProxyProtocol.read(stream(v2(PROXY, UDP4,
+                addresses("192.0.2.10", "198.51.100.1", 53, 53))));
+        assertEquals("UDP4", header.getTransport());
+    }
+
+    @Test
+    void v2Ipv6() throws IOException {
+        BufferedInputStream in = stream(v2(PROXY, TCP6, addresses("2001:db8::1", "2001:db8:ffff::2", 65535, 80)),
+                REQUEST);
+        ProxyProtocol.Header header = ProxyProtocol.read(in);
+        assertEquals("TCP6", header.getTransport());
+        assertEquals(InetAddress.getByName("2001:db8::1").getHostAddress(), header.getClientIp());
+        assertEquals(65535, header.getSource().getPort());
+        assertEquals(new InetSocketAddress("2001:db8:ffff::2", 80), header.getDestination());
+        assertRequestFollows(in);
+    }
+
+    @Test
+    void v2Ipv6Udp() throws IOException {
+        ProxyProtocol.Header header = ProxyProtocol.read(stream(v2(PROXY, UDP6,
+                addresses("2001:db8::1", "2001:db8::2", 1, 2))));
+        assertEquals("UDP6", header.getTransport());
+    }
+
+    @Test
+    void v2Unix() throws IOException {
+        BufferedInputStream in = stream(v2(PROXY, UNIX_STREAM, unixAddresses("/run/client.sock", "/run/frp.sock")),
+                REQUEST);
+        ProxyProtocol.Header header = ProxyProtocol.read(in);
+        assertEquals("UNIX", header.getTransport());
+        assertEquals("/run/client.sock", header.getSourcePath());
+        assertEquals("/run/frp.sock", header.getDestinationPath());
+        assertNull(header.getSource());
+        assertNull(header.getClientIp());
+        assertRequestFollows(in);
+    }
+
+    // LOCAL (健康检查) 忽略地址 但仍然消耗声明的全部长度
+    @Test
+    void v2LocalIgnoresAddresses() throws IOException {
+        BufferedInputStream in = stream(v2(LOCAL, TCP4, addresses("192.0.2.10", "198.51.100.1", 1, 2)), REQUEST);
+        ProxyProtocol.Header header = ProxyProtocol.read(in);
+        assertTrue(header.isLocal());
+        assertEquals("UNKNOWN", header.getTransport());
+        assertNull(header.getSource());
+        assertNull(header.getClientIp());
+        assertRequestFollows(in);
+    }
+
+    @Test
+    void v2UnspecWithoutAddresses() throws IOException {
+        BufferedInputStream in = stream(v2(LOCAL, UNSPEC, new byte[0]), REQUEST);
+        ProxyProtocol.Header header = ProxyProtocol.read(in);
+        assertTrue(header.isLocal());
+        assertRequestFollows(in);
+    }
+
+    @Test
+    void v2Tlvs() throws IOException {
+        byte[] header = v2(PROXY, TCP4, addresses("192.0.2.10", "198.51.100.1", 1, 2),
+                tlv(ProxyProtocol.PP2_TYPE_ALPN, ascii("h2")),
+                tlv(ProxyProtocol.PP2_TYPE_NOOP, new byte[5]),
+                tlv(ProxyProtocol.PP2_TYPE_AUTHORITY, "例子.test".getBytes(StandardCharsets.UTF_8)),
+                tlv(ProxyProtocol.PP2_TYPE_UNIQUE_ID, new byte[0]));
+        BufferedInputStream in = stream(header, REQUEST);
+        ProxyProtocol.Header decoded = ProxyProtocol.read(in);
+        assertEquals("例子.test", decoded.getAuthority());
+        assertArrayEquals(ascii("h2"), decoded.getTlvs().get(ProxyProtocol.PP2_TYPE_ALPN));
+        assertArrayEquals(new byte[0], decoded.getTlvs().get(ProxyProtocol.PP2_TYPE_UNIQUE_ID));
+        assertFalse(decoded.getTlvs().containsKey(ProxyProtocol.PP2_TYPE_NOOP));
+        assertRequestFollows(in);
+    }
+
+    @Test
+    void v2Crc32c() throws IOException {
+        byte[] header = withCrc(v2(PROXY, TCP4, addresses("192.0.2.10", "198.51.100.1", 1, 2),
+                tlv(ProxyProtocol.PP2_TYPE_AUTHORITY, ascii("example.test")),
+                tlv(ProxyProtocol.PP2_TYPE_CRC32C, new byte[4])));
+        BufferedInputStream in = stream(header, REQUEST);
+        assertEquals("example.test", ProxyProtocol.read(in).getAuthority());
+        assertRequestFollows(in);
+    }
+
+    @Test
+    void v2Crc32cMismatch() {
+        byte[] header = withCrc(v2(PROXY, TCP4, ipv4(), tlv(ProxyProtocol.PP2_TYPE_CRC32C, new byte[4])));
+        // 改动 CRC 覆盖的一个地址字节
+        header[16] ^= 1;
+        IOException e = assertThrows(IOException.class, () -> ProxyProtocol.read(stream(header, REQUEST)));
+        assertTrue(e.getMessage().contains("CRC32C"), e.getMessage());
+    }
+
+    // 地址都是字面量 不会查询 DNS
+    private static byte[] ipv4() {
+        try {
+            return addresses("192.0.2.10", "198.51.100.1", 1, 2);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    void v2TruncatedTlvHeader() {
+        byte[] header = v2(PROXY, TCP4, ipv4(), new byte[] { ProxyProtocol.PP2_TYPE_AUTHORITY, 0 });
+        IOException e = assertThrows(IOException.class, () -> ProxyProtocol.read(stream(header, REQUEST)));
+        assertEquals("Truncated TLV", e.getMessage());
+    }
+
+    @Test
+    void v2TruncatedTlvValue() {
+        byte[] tlv = tlv(ProxyProtocol.PP2_TYPE_AUTHORITY, ascii("example.test"));
+        byte[] header = v2(PROXY, TCP4, ipv4(), Arrays.copyOf(tlv, tlv.length - 3));
+        IOException e = assertThrows(IOException.class, () -> ProxyProtocol.read(stream(header, REQUEST)));
+        assertEquals("Truncated TLV value", e.getMessage());
+    }
+
+    @Test
+    void v2AddressBlockTooShort() {
+        byte[] header = v2(PROXY, TCP6, ipv4());
+        assertThrows(IOException.class, () -> ProxyProtocol.read(stream(header)));
+        byte[] unix = v2(PROXY, UNIX_STREAM, new byte[108]);
+        assertThrows(IOException.class, () -> ProxyProtocol.read(stream(unix)));
+    }
+
+    // 声明的长度超过实际数据 (连接提前关闭)
+    @Test
+    void v2TruncatedHeader() {
+        byte[] header = v2(PROXY, TCP4, ipv4());
+        assertThrows(EOFException.class, () -> ProxyProtocol.read(stream(Arrays.copyOf(header, header.length - 1))));
+        assertThrows(EOFException.class, () -> ProxyProtocol.read(stream(Arrays.copyOf(header, 14))));
+    }
+
+    @Test
+    void v2UnsupportedVersionOrCommand() {
+        byte[] version = v2(PROXY, TCP4, ipv4());
+        version[12] = 0x11;
+        assertThrows(IOException.class, () -> ProxyProtocol.read(stream(version)));
+        byte[] command = v2(PROXY, TCP4, ipv4());
+        command[12] = 0x22;
+        assertThrows(IOException.class, () -> ProxyProtocol.read(stream(command)));
+    }
+
+    @Test
+    void v1Tcp4() throws IOException {
+        BufferedInputStream in = stream(ascii("PROXY TCP4 192.0.2.10 198.51.100.1 51234 443\r\n"), REQUEST);
+        ProxyProtocol.Header header = ProxyProtocol.read(in);
+        assertEquals(1, header.getVersion());
+        assertEquals("TCP4", header.getTransport());
+        assertEquals(new InetSocketAddress("192.0.2.10", 51234), header.getSource());
+        assertEquals(new InetSocketAddress("198.51.100.1", 443), header.getDestination());
+        assertRequestFollows(in);
+    }
+
+    // 规范中最长的 v1 头部 (104 字节)
+    @Test
+    void v1LongestTcp6() throws IOException {
+        String address = "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff";
+        byte[] line = ascii("PROXY TCP6 " + address + " " + address + " 65535 65535\r\n");
+        assertEquals(104, line.length);
+        BufferedInputStream in = stream(line, REQUEST);
+        ProxyProtocol.Header header = ProxyProtocol.read(in);
+        assertEquals("TCP6", header.getTransport());
+        assertEquals(65535, header.getSource().getPort());
+        assertRequestFollows(in);
+    }
+
+    @Test
+    void v1Unknown() throws IOException {
+        BufferedInputStream in = stream(ascii("PROXY UNKNOWN\r\n"), REQUEST);
+        ProxyProtocol.Header header = ProxyProtocol.read(in);
+        assertEquals("UNKNOWN", header.getTransport());
+        assertNull(header.getClientIp());
+        assertRequestFollows(in);
+    }
+
+    // 107 字节 (包括 CRLF) 是上限 再多一个字节就拒绝
+    @Test
+    void v1LengthLimit() throws IOException {
+        String prefix = "PROXY UNKNOWN ";
+        String atLimit = prefix + "x".repeat(107 - prefix.length() - 2) + "\r\n";
+        assertEquals(107, atLimit.length());
+        BufferedInputStream in = stream(ascii(atLimit), REQUEST);
+        assertEquals("UNKNOWN", ProxyProtocol.read(in).getTransport());
+        assertRequestFollows(in);
+
+        String overLimit = prefix + "x".repeat(107 - prefix.length() - 1) + "\r\n";
+        IOException e = assertThrows(IOException.class, () -> ProxyProtocol.read(stream(ascii(overLimit), REQUEST)));
+        assertEquals("PROXY v1 header too long", e.getMessage());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "PROXY TCP4 192.0.2.10 198.51.100.1 51234 443\n",
+            "PROXY TCP4 192.0.2.10 198.51.100.1 51234\r\n",
+            "PROXY TCP4 example.com 198.51.100.1 51234 443\r\n",
+            "PROXY TCP4 2001:db8::1 198.51.100.1 51234 443\r\n",
+            "PROXY TCP6 192.0.2.10 198.51.100.1 51234 443\r\n",
+            "PROXY TCP4 192.0.2.10 198.51.100.1 70000 443\r\n",
+            "PROXY TCP4 192.0.2.10 198.51.100.1 port 443\r\n",
+            "PROXY UDP4 192.0.2.10 198.51.100.1 51234 443\r\n",
+            "PROXY \r\n",
+    })
+    void v1Malformed(String line) {
+        assertThrows(IOException.class, () -> ProxyProtocol.read(stream(ascii(line), REQUEST)));
+    }
+
+    @Test
+    void v1Truncated() {
+        assertThrows(EOFException.class, () -> ProxyProtocol.read(stream(ascii("PROXY TCP4 192.0.2.10"))));
+    }
+}
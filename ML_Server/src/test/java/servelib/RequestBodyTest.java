@@ -0,0 +1,196 @@
+package servelib;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import servelib.RequestBody.BodyException;
+
+// 请求体的分帧 / framing of Content-Length and chunked bodies
+// 分帧与前端代理不一致会导致请求走私 所以格式错误必须拒绝 不能猜测
+class RequestBodyTest {
+
+    private static final String CHUNKED = "POST /up HTTP/1.1\r\nHost: x\r\nTransfer-Encoding: chunked\r\n\r\n";
+    private static final String NEXT = "GET /next HTTP/1.1\r\n\r\n";
+
+    private BufferedInputStream in;
+
+    // 解析请求头后打开请求体 in 中留下请求头之后的所有字节
+    private RequestBody open(String head, String rest, long limit) throws IOException {
+        in = new BufferedInputStream(new ByteArrayInputStream((head + rest).getBytes(StandardCharsets.ISO_8859_1)));
+        BuildRequest request = new BuildRequest(null, in, new BuildRequest.Buffer(), "127.0.0.1");
+        return RequestBody.open(request, null, in, limit);
+    }
+
+    private RequestBody chunked(String rest) throws IOException {
+        return open(CHUNKED, rest, 1 << 20);
+    }
+
+    // 每次最多读 3 个字节 让块边界落在不同的位置
+    private static byte[] readAll(InputStream body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3];
+        int n;
+        while ((n = body.read(buffer, 0, buffer.length)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static String remaining(InputStream in) throws IOException {
+        return new String(in.readAllBytes(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static int status(Class<? extends IOException> type, ThrowingRead read) {
+        IOException e = assertThrows(type, read::run);
+        return e instanceof BodyException ? ((BodyException) e).getStatus() : -1;
+    }
+
+    @FunctionalInterface
+    private interface ThrowingRead {
+        void run() throws IOException;
+    }
+
+    @Test
+    void contentLengthStopsAtTheEndOfTheBody() throws IOException {
+        RequestBody body = open("POST /up HTTP/1.1\r\nContent-Length: 5\r\n\r\n", "hello" + NEXT, 100);
+        assertFalse(body.isChunked());
+        assertEquals("hello", new String(readAll(body), StandardCharsets.US_ASCII));
+        assertTrue(body.isFinished());
+        assertEquals(-1, body.read());
+        assertEquals(NEXT, remaining(in));
+    }
+
+    @Test
+    void repeatedEqualContentLengthsAreAccepted() throws IOException {
+        RequestBody body = open("POST /up HTTP/1.1\r\nContent-Length: 3, 3\r\n\r\n", "abc", 100);
+        assertEquals(3, body.getLength());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "3, 4", "+3", "-3", " ", "0x3", "3a", "1234567890123456789" })
+    void invalidContentLengthIsRejected(String value) {
+        assertEquals(400, status(BodyException.class,
+                () -> open("POST /up HTTP/1.1\r\nContent-Length: " + value + "\r\n\r\n", "abc", 100)));
+    }
+
+    @Test
+    void contentLengthOverTheLimitIsRejectedBeforeReading() {
+        assertEquals(413, status(BodyException.class,
+                () -> open("POST /up HTTP/1.1\r\nContent-Length: 101\r\n\r\n", "", 100)));
+    }
+
+    @Test
+    void truncatedContentLengthBody() throws IOException {
+        RequestBody body = open("POST /up HTTP/1.1\r\nContent-Length: 10\r\n\r\n", "hello", 100);
+        assertThrows(EOFException.class, () -> readAll(body));
+    }
+
+    @Test
+    void transferEncodingWithContentLengthIsRejected() {
+        assertEquals(400, status(BodyException.class, () -> open(
+                "POST /up HTTP/1.1\r\nContent-Length: 5\r\nTransfer-Encoding: chunked\r\n\r\n", "5\r\nhello\r\n0\r\n\r\n",
+                100)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "gzip", "gzip, chunked", "chunked, chunked", "identity" })
+    void onlyPlainChunkedIsSupported(String encoding) {
+        assertEquals(501, status(BodyException.class,
+                () -> open("POST /up HTTP/1.1\r\nTransfer-Encoding: " + encoding + "\r\n\r\n", "", 100)));
+    }
+
+    @Test
+    void chunkedBodyWithExtensionsAndTrailers() throws IOException {
+        RequestBody body = chunked("5\r\nhello\r\n6;name=value\r\n world\r\nA\r\n0123456789\r\n0\r\nX-Check: 1\r\n\r\n"
+                + NEXT);
+        assertTrue(body.isChunked());
+        assertEquals("hello world0123456789", new String(readAll(body), StandardCharsets.US_ASCII));
+        assertTrue(body.isFinished());
+        assertEquals(21, body.getBytesRead());
+        assertEquals(NEXT, remaining(in));
+    }
+
+    @Test
+    void hexDigitsInEitherCase() throws IOException {
+        byte[] data = new byte[0x1aF];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+        String payload = new String(data, StandardCharsets.ISO_8859_1);
+        assertArrayEquals(data, readAll(chunked("1aF\r\n" + payload + "\r\n0\r\n\r\n")));
+        assertArrayEquals(data, readAll(chunked("1Af\r\n" + payload + "\r\n0\r\n\r\n")));
+    }
+
+    // 大小只能是十六进制数字 前后不能有空白或符号 块数据和每一行之后必须是 CRLF
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "+5\r\nhello\r\n0\r\n\r\n",
+            "-5\r\nhello\r\n0\r\n\r\n",
+            " 5\r\nhello\r\n0\r\n\r\n",
+            "5 \r\nhello\r\n0\r\n\r\n",
+            "5\t\r\nhello\r\n0\r\n\r\n",
+            "0x5\r\nhello\r\n0\r\n\r\n",
+            "\r\nhello\r\n0\r\n\r\n",
+            ";x\r\nhello\r\n0\r\n\r\n",
+            "5\nhello\r\n0\r\n\r\n",
+            "5\rhello\r\n0\r\n\r\n",
+            "5\r\nhello\n0\r\n\r\n",
+            "5\r\nhello\r0\r\n\r\n",
+            "5\r\nhelloXX0\r\n\r\n",
+            "5\r\nhello0\r\n\r\n",
+            "5\r\nhello\r\n0\n\r\n",
+            "5\r\nhello\r\n0\r\n\n",
+            "5\r\nhello\r\n0\r\nX-Check: 1\n\r\n",
+            "5\r\nhello\r\n0\r\nX-Check: 1\r\r\n",
+            "FFFFFFFFFFFFFFFF\r\nhello\r\n0\r\n\r\n",
+    })
+    void malformedChunkedFramingIsRejected(String rest) throws IOException {
+        RequestBody body = chunked(rest);
+        assertEquals(400, status(BodyException.class, () -> readAll(body)));
+    }
+
+    @Test
+    void overlongChunkSizeLineIsRejected() throws IOException {
+        RequestBody body = chunked("5;" + "x".repeat(5000) + "\r\nhello\r\n0\r\n\r\n");
+        assertEquals(400, status(BodyException.class, () -> readAll(body)));
+    }
+
+    @Test
+    void oversizedTrailersAreRejected() throws IOException {
+        StringBuilder trailers = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            trailers.append("X-Trailer-").append(i).append(": ").append("v".repeat(60)).append("\r\n");
+        }
+        RequestBody body = chunked("5\r\nhello\r\n0\r\n" + trailers + "\r\n");
+        assertEquals(400, status(BodyException.class, () -> readAll(body)));
+    }
+
+    @Test
+    void chunkOverTheLimitIsRejected() throws IOException {
+        RequestBody body = open(CHUNKED, "5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n", 8);
+        assertEquals(413, status(BodyException.class, () -> readAll(body)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "5\r\nhel", "5\r\nhello", "5\r\nhello\r\n", "5\r\nhello\r\n0\r\n", "5\r\nhello\r\n0\r" })
+    void truncatedChunkedBody(String rest) throws IOException {
+        RequestBody body = chunked(rest);
+        assertThrows(IOException.class, () -> readAll(body));
+        assertFalse(body.isFinished());
+    }
+}
@@ -0,0 +1,223 @@
+package servelib.buildAPI;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import servelib.RequestBody.BodyException;
+
+// multipart/form-data 的增量解析 / incremental multipart parsing
+// 重点是分隔行跨过 64 KB 解析缓冲区边界的情况
+class MultipartReaderTest {
+
+    private static final String BOUNDARY = "----b0undary";
+    private static final int BUFFER_SIZE = 64 * 1024; // 与 MultipartReader.BUFFER_SIZE 相同
+
+    // 每次 read 最多返回 step 个字节 模拟分多次到达的请求体
+    private static InputStream trickle(byte[] data, int step) {
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(byte[] bytes, int offset, int count) throws IOException {
+                return super.read(bytes, offset, Math.min(count, step));
+            }
+        };
+    }
+
+    private static byte[] body(String... parts) {
+        StringBuilder out = new StringBuilder();
+        for (String part : parts) {
+            out.append("--").append(BOUNDARY).append("\r\n").append(part).append("\r\n");
+        }
+        out.append("--").append(BOUNDARY).append("--\r\n");
+        return out.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String field(String name, String value) {
+        return "Content-Disposition: form-data; name=\"" + name + "\"\r\n\r\n" + value;
+    }
+
+    private static String file(String name, String fileName, String content) {
+        return "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + fileName
+                + "\"\r\nContent-Type: application/octet-stream\r\n\r\n" + content;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    // 内容中混入分隔行的前缀 ("\r\n--" "\r\n----b0undar") 不能被当作分隔行
+    private static String content(int length) {
+        String noise = "abc\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1) + "xyz\r\n-";
+        StringBuilder out = new StringBuilder(length);
+        while (out.length() < length) {
+            out.append(noise);
+        }
+        out.setLength(length);
+        return out.toString();
+    }
+
+    @Test
+    void fieldsAndFiles() throws IOException {
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(body(field("title", "hello"),
+                file("upload", "a.txt", "file content"), field("empty", ""))), BOUNDARY, 10);
+        MultipartReader.Part part = reader.next();
+        assertEquals("title", part.getName());
+        assertNull(part.getFileName());
+        assertEquals("text/plain", part.getContentType());
+        assertEquals("hello", part.readString(100));
+        part = reader.next();
+        assertEquals("upload", part.getName());
+        assertEquals("a.txt", part.getFileName());
+        assertEquals("application/octet-stream", part.getContentType());
+        assertEquals("file content", new String(readAll(part.getInputStream()), StandardCharsets.ISO_8859_1));
+        part = reader.next();
+        assertEquals("", part.readString(100));
+        assertNull(reader.next());
+        assertNull(reader.next());
+    }
+
+    @Test
+    void preambleEpilogueAndUnreadPartsAreSkipped() throws IOException {
+        byte[] parts = body(file("a", "a.bin", content(100_000)), field("b", "second"));
+        byte[] data = ("preamble text\r\n" + new String(parts, StandardCharsets.ISO_8859_1) + "epilogue")
+                .getBytes(StandardCharsets.ISO_8859_1);
+        MultipartReader reader = new MultipartReader(trickle(data, 777), BOUNDARY, 10);
+        assertEquals("a", reader.next().getName());
+        MultipartReader.Part second = reader.next();
+        assertEquals("second", second.readString(100));
+        assertNull(reader.next());
+    }
+
+    // 分隔行在缓冲区边界之前 之上 之后 每种读取粒度都要得到完全相同的内容
+    @ParameterizedTest
+    @ValueSource(ints = { 1 << 20, 4093, 1 })
+    void delimiterStraddlingTheBufferEdge(int step) throws IOException {
+        String head = "Content-Disposition: form-data; name=\"f\"; filename=\"f.bin\"\r\n\r\n";
+        int prefix = ("--" + BOUNDARY + "\r\n" + head).length();
+        // 解析器在缓冲区开头放入 2 个字节的 CRLF
+        int edge = BUFFER_SIZE - 2 - prefix;
+        int from = step == 1 ? edge - 4 : edge - 40;
+        for (int length = from; length <= edge + 4; length++) {
+            String expected = content(length);
+            MultipartReader reader = new MultipartReader(trickle(body(head + expected, field("after", "x")), step),
+                    BOUNDARY, 10);
+            MultipartReader.Part part = reader.next();
+            assertEquals(expected, new String(readAll(part.getInputStream()), StandardCharsets.ISO_8859_1),
+                    "length " + length);
+            assertEquals("x", reader.next().readString(10), "length " + length);
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void partLargerThanTheBufferIsStreamedToAFile(@TempDir Path dir) throws IOException {
+        String expected = content(3 * BUFFER_SIZE + 123);
+        MultipartReader reader = new MultipartReader(trickle(body(file("f", "big.bin", expected)), 5000), BOUNDARY, 10);
+        Path target = dir.resolve("big.bin");
+        assertEquals(expected.length(), reader.next().transferTo(target));
+        assertArrayEquals(expected.getBytes(StandardCharsets.ISO_8859_1), Files.readAllBytes(target));
+        assertNull(reader.next());
+    }
+
+    @Test
+    void extendedFileNames() throws IOException {
+        String chinese = "中.txt";
+        for (String value : new String[] { "UTF-8''%E4%B8%AD.txt", "UTF-8'en'%E4%B8%AD.txt", "utf-8'zh-CN'%E4%B8%AD.txt" }) {
+            String part = "Content-Disposition: form-data; name=\"f\"; filename=\"fallback.txt\"; filename*=" + value
+                    + "\r\n\r\nx";
+            MultipartReader reader = new MultipartReader(new ByteArrayInputStream(body(part)), BOUNDARY, 10);
+            assertEquals(chinese, reader.next().getFileName(), value);
+        }
+        assertEquals("a+b c.txt", MultipartReader.decodeExtended("UTF-8''a+b%20c.txt"));
+        assertEquals("plain.txt", MultipartReader.decodeExtended("plain.txt"));
+    }
+
+    @Test
+    void boundaryFromContentType() {
+        assertEquals("abc", MultipartReader.boundary("multipart/form-data; boundary=abc"));
+        assertEquals("a b", MultipartReader.boundary("Multipart/Form-Data; charset=utf-8; boundary=\"a b\""));
+        assertNull(MultipartReader.boundary("multipart/form-data"));
+        assertNull(MultipartReader.boundary("text/plain; boundary=abc"));
+        assertNull(MultipartReader.boundary("multipart/form-data; boundary=" + "x".repeat(71)));
+        assertNull(MultipartReader.boundary(null));
+    }
+
+    @Test
+    void tooManyParts() throws IOException {
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(body(field("a", "1"), field("b", "2"),
+                field("c", "3"))), BOUNDARY, 2);
+        assertNotNull(reader.next());
+        assertNotNull(reader.next());
+        BodyException e = assertThrows(BodyException.class, reader::next);
+        assertEquals(413, e.getStatus());
+    }
+
+    @Test
+    void fieldOverTheLimit() throws IOException {
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(body(field("a", "0123456789"))),
+                BOUNDARY, 10);
+        BodyException e = assertThrows(BodyException.class, () -> reader.next().readString(9));
+        assertEquals(413, e.getStatus());
+    }
+
+    @Test
+    void oversizedPartHeaders() throws IOException {
+        String part = "Content-Disposition: form-data; name=\"a\"\r\nX-Padding: " + "p".repeat(20_000) + "\r\n\r\nx";
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(body(part)), BOUNDARY, 10);
+        BodyException e = assertThrows(BodyException.class, reader::next);
+        assertEquals(431, e.getStatus());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            // 没有结尾的分隔行
+            "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nvalue",
+            // 请求体中没有分隔行
+            "no boundary here",
+            // 分隔行之后不是 CRLF
+            "--" + BOUNDARY + "junk\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nv\r\n--" + BOUNDARY + "--",
+            // 头部没有冒号
+            "--" + BOUNDARY + "\r\nnot a header\r\n\r\nv\r\n--" + BOUNDARY + "--",
+            // 头部没有结束
+            "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"a\"\r\n",
+    })
+    void malformedBodies(String data) {
+        BodyException e = assertThrows(BodyException.class, () -> {
+            MultipartReader reader = new MultipartReader(
+                    new ByteArrayInputStream(data.getBytes(StandardCharsets.ISO_8859_1)), BOUNDARY, 10);
+            MultipartReader.Part part;
+            while ((part = reader.next()) != null) {
+                readAll(part.getInputStream());
+            }
+        });
+        assertEquals(400, e.getStatus());
+    }
+
+    @Test
+    void invalidBoundary() {
+        assertThrows(IllegalArgumentException.class, () -> new MultipartReader(new ByteArrayInputStream(new byte[0]),
+                "", 10));
+    }
+}
@@ -0,0 +1,56 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// benchmarks.jar 的入口 / entry point of benchmarks.jar
+// 参数与 JMH 相同 默认加上 gc 分析 (gc.alloc.rate.norm 每次操作分配的字节 gc.count GC 次数)
+// 传 -Dbench.gc=false 关闭
+//   java -jar benchmarks.jar                            全部
+//   java -jar benchmarks.jar RequestParser -p request=browser
+//   java -jar benchmarks.jar DataManager -p rows=10000,100000
+public final class BenchmarkMain {
+
+    // 只列出信息不运行 交给 JMH 自己的 Main
+    private static final List<String> LIST_OPTIONS = Arrays.asList("-h", "-l", "-lp", "-lrf", "-lprof");
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (String arg : args) {
+            if (LIST_OPTIONS.contains(arg)) {
+                org.openjdk.jmh.Main.main(args);
+                return;
+            }
+        }
+        CommandLineOptions cmd;
+        try {
+            cmd = new CommandLineOptions(args);
+        } catch (CommandLineOptionException e) {
+            System.err.println("Error parsing command line: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+        boolean gc = Boolean.parseBoolean(System.getProperty("bench.gc", "true"));
+        if (gc && cmd.getProfilers().stream().noneMatch(p -> p.getKlass().equals("gc")
+                || p.getKlass().equals(GCProfiler.class.getName()))) {
+            options.addProfiler(GCProfiler.class);
+        }
+        try {
+            new Runner(options.build()).run();
+        } catch (RunnerException e) {
+            System.err.println("Benchmark failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import servelib.LightweightDataManager;
+
+// LightweightDataManager 在生成的表上的 get / set / 按列查找 / get, set and lookups on generated tables
+// 表 "id|name|email|city|score" email 唯一并建有索引 city 只有 100 个不同的值且没有索引
+// 生成的表缓存在 -Dbench.dir (默认 java.io.tmpdir/microlib-bench) 每次 trial 复制一份再打开 set 不影响之后的运行
+// 行号和查找的值预先随机生成 (2^20 个) 均匀分布在整张表上 行缓存 (10 万行) 对 10^6 行以上的表基本不命中
+// lookupScan 每次都扫描整个文件 10^7 行时一次操作需要数秒
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class DataManagerBenchmark {
+
+    @Param({ "10000", "100000", "1000000", "10000000" })
+    public int rows;
+
+    // 两种模式的 set 都是追加 IN_PLACE 在 tearDown (shutdown) 时把文件压缩回普通表 不计入测量
+    @Param({ "APPEND", "IN_PLACE" })
+    public String storage;
+
+    private static final int KEYS = 1 << 20; // 2 的幂 远大于行缓存
+    private static final String[] SCORES = { "0", "17", "4711", "99999", "123456" };
+
+    private Path work;
+    private LightweightDataManager manager;
+    private final int[] ids = new int[KEYS];
+    private final String[] emails = new String[KEYS];
+    private final String[] cities = new String[KEYS];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Path template = template(rows);
+        work = template.resolveSibling("work-" + ProcessHandle.current().pid() + "-" + rows + ".txt");
+        Files.copy(template, work, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+        Path sidecar = Paths.get(template + ".idx");
+        if (Files.exists(sidecar)) {
+            Files.copy(sidecar, Paths.get(work + ".idx"), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.COPY_ATTRIBUTES);
+        }
+        manager = new LightweightDataManager(work.toString(), LightweightDataManager.StorageMode.valueOf(storage));
+        manager.createIndex("email", true);
+
+        SplittableRandom random = new SplittableRandom(rows);
+        for (int i = 0; i < KEYS; i++) {
+            int id = random.nextInt(rows) + 1;
+            ids[i] = id;
+            emails[i] = email(id);
+            cities[i] = city(random.nextInt(rows) + 1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        manager.shutdown();
+        Files.deleteIfExists(work);
+        Files.deleteIfExists(Paths.get(work + ".idx"));
+    }
+
+    private int next() {
+        return next++ & (KEYS - 1);
+    }
+
+    @Benchmark
+    public String get() {
+        return manager.get(ids[next()], "score");
+    }
+
+    @Benchmark
+    public void set() {
+        int i = next();
+        manager.set(ids[i], "score", SCORES[i % SCORES.length]);
+    }
+
+    // 按有索引的唯一列查找另一列
+    @Benchmark
+    public String lookupIndexed() {
+        return manager.get("email", emails[next()], "score");
+    }
+
+    // 按没有索引的列查找所有匹配的行
+    @Benchmark
+    public List<Integer> lookupScan() {
+        return manager.find("city", cities[next()]);
+    }
+
+    private static String email(int id) {
+        return "user" + id + "@example.com";
+    }
+
+    private static String city(int id) {
+        return "city" + (id % 100);
+    }
+
+    // 第一次使用时生成 同时建好 email 索引写入索引文件 之后的 trial 打开时不需要扫描
+    private static synchronized Path template(int rows) throws IOException {
+        Path directory = Paths.get(System.getProperty("bench.dir",
+                Paths.get(System.getProperty("java.io.tmpdir"), "microlib-bench").toString()));
+        Files.createDirectories(directory);
+        Path template = directory.resolve("table-" + rows + ".txt");
+        if (Files.exists(template)) {
+            return template;
+        }
+        Path partial = directory.resolve("table-" + rows + ".tmp");
+        String newline = System.lineSeparator();
+        SplittableRandom random = new SplittableRandom(~rows);
+        try (BufferedWriter out = Files.newBufferedWriter(partial, StandardCharsets.UTF_8)) {
+            out.write("id|name|email|city|score");
+            out.write(newline);
+            StringBuilder row = new StringBuilder(64);
+            for (int id = 1; id <= rows; id++) {
+                row.setLength(0);
+                row.append(id).append("|name").append(id).append('|').append(email(id)).append('|')
+                        .append(city(id)).append('|').append(random.nextInt(100000)).append(newline);
+                out.append(row);
+            }
+        }
+        Files.move(partial, template, StandardCopyOption.ATOMIC_MOVE);
+        LightweightDataManager manager = new LightweightDataManager(template.toString());
+        manager.createIndex("email", true);
+        manager.shutdown();
+        return template;
+    }
+}
@@ -0,0 +1,158 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import servelib.BuildRequest;
+import servelib.BuildResponse;
+
+// BuildResponse.output_File 到本机回环连接的吞吐 / output_File throughput over loopback
+// 同一个 keep-alive 连接上连续发送同一个文件 另一端的线程读取并丢弃
+// channel: 由 ServerSocketChannel 接受的 socket (小文件 mmap + writev 大文件 transferTo)
+// stream: 普通 ServerSocket 接受的 socket (getChannel() 为 null 走流式复制)
+// bytes 一栏是每秒发送的文件字节数
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileResponseBenchmark {
+
+    @Param({ "1024", "16384", "262144", "1048576", "16777216" })
+    public int size;
+
+    @Param({ "channel", "stream" })
+    public String transport;
+
+    private static final String CONTENT_TYPE = "Content-Type: application/octet-stream\r\n";
+
+    private Path directory;
+    private String file;
+    private BuildRequest request;
+    private Socket serverSide;
+    private Socket clientSide;
+    private ServerSocketChannel channelListener;
+    private ServerSocket streamListener;
+    private Thread drain;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Sent {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("microlib-bench-file");
+        Path path = directory.resolve("body.bin");
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        Files.write(path, content);
+        // output_File 拒绝含有 "./" 的路径
+        file = path.toAbsolutePath().normalize().toString();
+
+        // 没有条件请求和 Range 头 每次都发送完整文件
+        request = new BuildRequest(null, new ByteArrayInputStream(
+                "GET /body.bin HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        if ("channel".equals(transport)) {
+            channelListener = ServerSocketChannel.open();
+            channelListener.bind(new InetSocketAddress(loopback, 0));
+            SocketChannel client = SocketChannel.open(channelListener.getLocalAddress());
+            SocketChannel accepted = channelListener.accept();
+            clientSide = client.socket();
+            serverSide = accepted.socket();
+        } else if ("stream".equals(transport)) {
+            streamListener = new ServerSocket(0, 1, loopback);
+            clientSide = new Socket(loopback, streamListener.getLocalPort());
+            serverSide = streamListener.accept();
+        } else {
+            throw new IllegalArgumentException("Unknown transport: " + transport);
+        }
+        serverSide.setTcpNoDelay(true);
+
+        running.set(true);
+        drain = new Thread(this::drain, "drain");
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    // 读取并丢弃响应
+    private void drain() {
+        try {
+            SocketChannel channel = clientSide.getChannel();
+            if (channel != null) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+                while (running.get() && channel.read(buffer.clear()) >= 0) {
+                    // 丢弃
+                }
+            } else {
+                InputStream in = clientSide.getInputStream();
+                byte[] buffer = new byte[256 * 1024];
+                while (running.get() && in.read(buffer) >= 0) {
+                    // 丢弃
+                }
+            }
+        } catch (IOException e) {
+            if (running.get()) {
+                System.err.println("drain: " + e.getMessage());
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        running.set(false);
+        serverSide.close();
+        clientSide.close();
+        drain.join(5000);
+        if (channelListener != null) {
+            channelListener.close();
+        }
+        if (streamListener != null) {
+            streamListener.close();
+        }
+        Files.deleteIfExists(directory.resolve("body.bin"));
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public int outputFile(Sent sent) throws IOException {
+        BuildResponse response = new BuildResponse(serverSide, request, true);
+        response.output_File(CONTENT_TYPE, file);
+        sent.bytes += size;
+        return response.getStatus();
+    }
+}
@@ -0,0 +1,212 @@
+package bench;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+// 负载生成器的一个客户端连接 / one client connection of the load generator
+// 阻塞 socket 一次发送一个请求 读完整个响应 (Content-Length / chunked / 读到关闭)
+// 服务器关闭连接或响应带 Connection: close 时 下一次 send 重新连接 (并重新发送 PROXY 头)
+final class LoadConnection {
+
+    private static final int MAX_HEAD = 64 * 1024;
+
+    // 一次请求的结果
+    static final class Response {
+        int status;
+        long bytes; // 响应头加响应体
+        long body; // 响应体
+        boolean reconnected; // 这次请求新建了连接
+    }
+
+    private final InetSocketAddress target;
+    private final ProxyHeaders proxy; // 为 null 时不发送 PROXY 头
+    private final int timeoutMillis;
+    private final byte[] line = new byte[MAX_HEAD];
+    private final byte[] skip = new byte[64 * 1024];
+    private Socket socket;
+    private BufferedInputStream in;
+    private OutputStream out;
+
+    LoadConnection(InetSocketAddress target, ProxyHeaders proxy, int timeoutMillis) {
+        this.target = target;
+        this.proxy = proxy;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // 发送请求并读完响应 出错时关闭连接后抛出
+    void send(byte[] request, Response response) throws IOException {
+        response.reconnected = false;
+        if (socket == null) {
+            connect();
+            response.reconnected = true;
+        }
+        try {
+            out.write(request);
+            out.flush();
+            readResponse(response);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void connect() throws IOException {
+        Socket next = new Socket();
+        try {
+            next.setTcpNoDelay(true);
+            next.setSoTimeout(timeoutMillis);
+            next.connect(target, timeoutMillis);
+            in = new BufferedInputStream(next.getInputStream(), 64 * 1024);
+            out = next.getOutputStream();
+            if (proxy != null) {
+                out.write(proxy.next());
+            }
+        } catch (IOException e) {
+            next.close();
+            throw e;
+        }
+        socket = next;
+    }
+
+    void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 已经关闭
+            }
+            socket = null;
+        }
+    }
+
+    private void readResponse(Response response) throws IOException {
+        int length = readLine();
+        if (length < 12 || line[0] != 'H' || line[8] != ' ') {
+            throw new IOException("Malformed status line");
+        }
+        response.status = (line[9] - '0') * 100 + (line[10] - '0') * 10 + (line[11] - '0');
+        long bytes = length + 2;
+        long contentLength = -1;
+        boolean chunked = false;
+        boolean close = false;
+        while ((length = readLine()) > 0) {
+            bytes += length + 2;
+            int colon = indexOf(line, length, ':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = new String(line, 0, colon, StandardCharsets.US_ASCII).trim();
+            String value = new String(line, colon + 1, length - colon - 1,
+                    StandardCharsets.US_ASCII).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.toLowerCase().contains("chunked");
+            } else if (name.equalsIgnoreCase("Connection")) {
+                close = value.toLowerCase().contains("close");
+            }
+        }
+        bytes += 2;
+        long headBytes = bytes;
+        // 1xx (100 Continue) 之后还有真正的响应
+        if (response.status >= 100 && response.status < 200) {
+            readResponse(response);
+            response.bytes += bytes;
+            return;
+        }
+        if (response.status == 204 || response.status == 304) {
+            contentLength = 0;
+        }
+        if (chunked) {
+            bytes += readChunked();
+        } else if (contentLength >= 0) {
+            skipExactly(contentLength);
+            bytes += contentLength;
+        } else {
+            // 没有长度 读到连接关闭
+            bytes += drain();
+            close = true;
+        }
+        response.body = bytes - headBytes;
+        response.bytes = bytes;
+        if (close) {
+            close();
+        }
+    }
+
+    private long readChunked() throws IOException {
+        long bytes = 0;
+        while (true) {
+            int length = readLine();
+            bytes += length + 2;
+            int end = indexOf(line, length, ';');
+            long size = Long.parseLong(new String(line, 0, end < 0 ? length : end,
+                    StandardCharsets.US_ASCII).trim(), 16);
+            if (size == 0) {
+                // 尾部请求头直到空行
+                while ((length = readLine()) > 0) {
+                    bytes += length + 2;
+                }
+                return bytes + 2;
+            }
+            skipExactly(size);
+            if (readLine() != 0) {
+                throw new IOException("Malformed chunk");
+            }
+            bytes += size + 2;
+        }
+    }
+
+    // 读取一行到 line 不含 CRLF 返回长度
+    private int readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed by server");
+            }
+            if (b == '\n') {
+                return length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+            }
+            if (length == line.length) {
+                throw new IOException("Response header line too long");
+            }
+            line[length++] = (byte) b;
+        }
+    }
+
+    private void skipExactly(long count) throws IOException {
+        while (count > 0) {
+            int n = in.read(skip, 0, (int) Math.min(skip.length, count));
+            if (n < 0) {
+                throw new EOFException("Connection closed in response body");
+            }
+            count -= n;
+        }
+    }
+
+    private long drain() throws IOException {
+        InputStream stream = in;
+        long total = 0;
+        int n;
+        while ((n = stream.read(skip)) >= 0) {
+            total += n;
+        }
+        return total;
+    }
+
+    private static int indexOf(byte[] data, int length, char value) {
+        for (int i = 0; i < length; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
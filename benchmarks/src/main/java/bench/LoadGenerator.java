@@ -0,0 +1,544 @@
+package bench;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+// HTTP 负载生成器 / load generator and soak-test harness for ML_Server
+// java -cp benchmarks/target/benchmarks.jar bench.LoadGenerator loop=open rate=20000 duration=60 proxy=v2
+//
+// loop=closed: 每个连接收到响应后立即发送下一个请求 (connections 个并发)
+// loop=open: 按固定速率 rate 安排发送时间 与服务器的快慢无关 分给 connections 个连接
+// 延迟的协调遗漏 (coordinated omission) 修正:
+//   open: 从计划发送时间算起 服务器变慢时排队等待的时间也计入
+//   closed: 按预期间隔补上被推迟的请求 (HdrHistogram recordValueWithExpectedInterval)
+//           预期间隔为 expectedInterval 未指定时取预热阶段的平均延迟
+// 同时给出未修正的延迟 (从实际发送算起) 作对照
+// 每 report 秒输出一行本区间的吞吐和延迟 长时间运行 (duration=3600) 即为浸泡测试
+public final class LoadGenerator {
+
+    // 请求类型 / traffic kinds
+    enum Kind {
+        STATIC, RANGE, POST
+    }
+
+    static final class Options {
+        String server = "inprocess"; // inprocess | fork | none
+        String host = "127.0.0.1";
+        int port; // 0: inprocess / fork 时自动选择
+        List<String> serverArgs = new ArrayList<>(); // server.xxx=yyy 传给 ServerConfig / Main_Server
+        List<String> serverJvmArgs = new ArrayList<>(); // fork 时的 JVM 参数 空格分隔
+        boolean closedLoop = true;
+        int connections = 64;
+        double rate = 10_000; // open 时每秒请求数
+        double duration = 30; // 秒
+        double warmup = 5;
+        double report = 5; // 0 不输出区间
+        boolean keepAlive = true;
+        boolean proxy;
+        int[] mix = { 80, 15, 5 }; // 按 Kind 顺序的权重
+        int[] fileSizes = { 1024, 16 * 1024, 256 * 1024 };
+        List<String> paths = new ArrayList<>(); // server=none 时的文件路径
+        String postPath;
+        int postBytes = 1024;
+        boolean postFile; // multipart 中作为文件部分 (写入服务器的上传目录) 否则作为普通字段
+        int rangeBytes = 4096; // 每个 Range 请求的最大长度
+        int timeoutMillis = 10_000;
+        long expectedIntervalNanos; // closed 的修正间隔 0 表示取预热平均值
+
+        // 格式与 ServerConfig 相同: key=value
+        static Options fromArgs(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (eq <= 0) {
+                    throw new IllegalArgumentException("Expected key=value: " + arg);
+                }
+                String key = arg.substring(0, eq).trim();
+                String value = arg.substring(eq + 1).trim();
+                if (key.startsWith("server.")) {
+                    options.serverArgs.add(key.substring(7) + "=" + value);
+                    continue;
+                }
+                switch (key) {
+                    case "server":
+                        options.server = value.toLowerCase(Locale.ROOT);
+                        break;
+                    case "host":
+                        options.host = value;
+                        break;
+                    case "port":
+                        options.port = Integer.parseInt(value);
+                        break;
+                    case "serverJvm":
+                        options.serverJvmArgs = Arrays.asList(value.trim().split("\\s+"));
+                        break;
+                    case "loop":
+                        if (!value.equals("open") && !value.equals("closed")) {
+                            throw new IllegalArgumentException("loop must be open or closed");
+                        }
+                        options.closedLoop = value.equals("closed");
+                        break;
+                    case "connections":
+                        options.connections = Integer.parseInt(value);
+                        break;
+                    case "rate":
+                        options.rate = Double.parseDouble(value);
+                        break;
+                    case "duration":
+                        options.duration = Double.parseDouble(value);
+                        break;
+                    case "warmup":
+                        options.warmup = Double.parseDouble(value);
+                        break;
+                    case "report":
+                        options.report = Double.parseDouble(value);
+                        break;
+                    case "keepAlive":
+                        options.keepAlive = Boolean.parseBoolean(value);
+                        break;
+                    case "proxy":
+                        if (!value.equals("v2") && !value.equals("none")) {
+                            throw new IllegalArgumentException("proxy must be v2 or none");
+                        }
+                        options.proxy = value.equals("v2");
+                        break;
+                    case "mix":
+                        options.mix = parseMix(value);
+                        break;
+                    case "fileSizes":
+                        options.fileSizes = split(value).stream().mapToInt(Integer::parseInt).toArray();
+                        break;
+                    case "paths":
+                        options.paths = split(value);
+                        break;
+                    case "postPath":
+                        options.postPath = value;
+                        break;
+                    case "postBytes":
+                        options.postBytes = Integer.parseInt(value);
+                        break;
+                    case "postFile":
+                        options.postFile = Boolean.parseBoolean(value);
+                        break;
+                    case "rangeBytes":
+                        options.rangeBytes = Integer.parseInt(value);
+                        break;
+                    case "timeout":
+                        options.timeoutMillis = Integer.parseInt(value);
+                        break;
+                    case "expectedInterval":
+                        options.expectedIntervalNanos = (long) (Double.parseDouble(value) * 1_000_000);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + key);
+                }
+            }
+            if (options.connections <= 0 || options.rate <= 0 || options.duration <= 0 || options.warmup < 0) {
+                throw new IllegalArgumentException("connections, rate and duration must be > 0");
+            }
+            if (options.fileSizes.length == 0 && !options.server.equals("none")) {
+                throw new IllegalArgumentException("fileSizes must not be empty");
+            }
+            return options;
+        }
+
+        // "static:80,range:15,post:5"
+        private static int[] parseMix(String value) {
+            int[] weights = new int[Kind.values().length];
+            for (String part : split(value)) {
+                int colon = part.indexOf(':');
+                if (colon <= 0) {
+                    throw new IllegalArgumentException("Expected kind:weight in mix: " + part);
+                }
+                Kind kind = Kind.valueOf(part.substring(0, colon).trim().toUpperCase(Locale.ROOT));
+                weights[kind.ordinal()] = Integer.parseInt(part.substring(colon + 1).trim());
+            }
+            if (Arrays.stream(weights).sum() <= 0) {
+                throw new IllegalArgumentException("mix has no traffic");
+            }
+            return weights;
+        }
+
+        private static List<String> split(String value) {
+            List<String> parts = new ArrayList<>();
+            for (String part : value.split(",")) {
+                if (!part.trim().isEmpty()) {
+                    parts.add(part.trim());
+                }
+            }
+            return parts;
+        }
+
+        String describe() {
+            StringBuilder text = new StringBuilder();
+            text.append("server=").append(server).append(" loop=").append(closedLoop ? "closed" : "open");
+            if (!closedLoop) {
+                text.append(" rate=").append(number(rate));
+            }
+            text.append(" connections=").append(connections).append(" keepAlive=").append(keepAlive)
+                    .append(" proxy=").append(proxy ? "v2" : "none").append(" mix=");
+            for (Kind kind : Kind.values()) {
+                text.append(kind.ordinal() == 0 ? "" : ",").append(kind.name().toLowerCase(Locale.ROOT))
+                        .append(':').append(mix[kind.ordinal()]);
+            }
+            return text.append(" duration=").append(number(duration)).append("s warmup=").append(number(warmup))
+                    .append('s').toString();
+        }
+    }
+
+    private final Options options;
+    private final LoadServer server;
+    private final byte[][] staticRequests; // 每个路径一个
+    private final long[] sizes; // 每个路径的文件大小 Range 请求用
+    private final byte[] postRequest;
+    private final int[] mixTotals; // 累计权重
+    private final String hostHeader;
+
+    // 延迟 纳秒
+    private final Recorder corrected = new Recorder(3);
+    private final Recorder raw = new Recorder(3);
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder[] byKind = new LongAdder[Kind.values().length];
+    private final LongAdder[] byStatus = new LongAdder[6]; // 1xx ... 5xx 下标为百位数
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final LongAdder unsent = new LongAdder(); // open: 到结束时仍落后于计划的请求数
+    private final LongAdder warmupNanos = new LongAdder();
+    private final LongAdder warmupCount = new LongAdder();
+    private volatile long expectedIntervalNanos;
+
+    private long measureStart;
+    private long end;
+
+    private LoadGenerator(Options options, LoadServer server) throws IOException {
+        this.options = options;
+        this.server = server;
+        this.hostHeader = server.address.getHostString() + ":" + server.address.getPort();
+        for (int i = 0; i < byKind.length; i++) {
+            byKind[i] = new LongAdder();
+        }
+        for (int i = 0; i < byStatus.length; i++) {
+            byStatus[i] = new LongAdder();
+        }
+        staticRequests = new byte[server.paths.size()][];
+        for (int i = 0; i < staticRequests.length; i++) {
+            staticRequests[i] = ascii("GET " + server.paths.get(i) + " HTTP/1.1\r\n" + commonHeaders() + "\r\n");
+        }
+        sizes = probeSizes();
+        // multipart/form-data 一个部分 与浏览器表单提交相同
+        String boundary = "----LoadGenerator" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        byte[] partHead = ascii("--" + boundary + "\r\nContent-Disposition: form-data; name=\"data\""
+                + (options.postFile ? "; filename=\"load.bin\"\r\nContent-Type: application/octet-stream" : "")
+                + "\r\n\r\n");
+        byte[] partTail = ascii("\r\n--" + boundary + "--\r\n");
+        int bodyLength = partHead.length + options.postBytes + partTail.length;
+        byte[] head = ascii("POST " + server.postPath + " HTTP/1.1\r\n" + commonHeaders()
+                + "Content-Type: multipart/form-data; boundary=" + boundary + "\r\nContent-Length: " + bodyLength
+                + "\r\n\r\n");
+        postRequest = new byte[head.length + bodyLength];
+        System.arraycopy(head, 0, postRequest, 0, head.length);
+        System.arraycopy(partHead, 0, postRequest, head.length, partHead.length);
+        Arrays.fill(postRequest, head.length + partHead.length, postRequest.length - partTail.length, (byte) 'x');
+        System.arraycopy(partTail, 0, postRequest, postRequest.length - partTail.length, partTail.length);
+        mixTotals = new int[options.mix.length];
+        int total = 0;
+        for (int i = 0; i < options.mix.length; i++) {
+            total += options.mix[i];
+            mixTotals[i] = total;
+        }
+        expectedIntervalNanos = options.expectedIntervalNanos;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.fromArgs(args);
+        try (LoadServer server = LoadServer.start(options)) {
+            LoadGenerator generator = new LoadGenerator(options, server);
+            generator.run(System.out);
+        }
+        // 进程内服务器的非守护线程
+        System.exit(0);
+    }
+
+    private String commonHeaders() {
+        return "Host: " + hostHeader + "\r\nUser-Agent: microlib-load\r\n"
+                + (options.keepAlive ? "" : "Connection: close\r\n");
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // 先请求一次每个文件 得到 Range 请求可用的长度 同时确认服务器可用
+    private long[] probeSizes() throws IOException {
+        long[] result = new long[staticRequests.length];
+        LoadConnection connection = newConnection();
+        LoadConnection.Response response = new LoadConnection.Response();
+        try {
+            for (int i = 0; i < staticRequests.length; i++) {
+                connection.send(staticRequests[i], response);
+                if (response.status != 200) {
+                    throw new IOException("GET " + server.paths.get(i) + " returned " + response.status);
+                }
+                result[i] = response.body;
+            }
+        } finally {
+            connection.close();
+        }
+        return result;
+    }
+
+    private LoadConnection newConnection() {
+        return new LoadConnection(server.address,
+                options.proxy ? new ProxyHeaders(server.address.getPort()) : null, options.timeoutMillis);
+    }
+
+    private void run(PrintStream out) throws InterruptedException {
+        out.println(options.describe());
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        measureStart = start + seconds(options.warmup);
+        end = measureStart + seconds(options.duration);
+
+        Thread[] workers = new Thread[options.connections];
+        for (int i = 0; i < workers.length; i++) {
+            int worker = i;
+            workers[i] = new Thread(() -> work(worker, start), "load-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+
+        sleepUntil(measureStart);
+        if (options.closedLoop && expectedIntervalNanos == 0 && warmupCount.sum() > 0) {
+            expectedIntervalNanos = warmupNanos.sum() / warmupCount.sum();
+        }
+        // 丢弃预热阶段
+        corrected.getIntervalHistogram();
+        raw.getIntervalHistogram();
+
+        Histogram totalCorrected = new Histogram(3);
+        Histogram totalRaw = new Histogram(3);
+        long reportNanos = options.report > 0 ? seconds(options.report) : Long.MAX_VALUE;
+        long intervalStart = measureStart;
+        long lastRequests = 0;
+        long lastBytes = 0;
+        long lastErrors = 0;
+        while (intervalStart < end) {
+            long intervalEnd = end - intervalStart <= reportNanos ? end : intervalStart + reportNanos;
+            sleepUntil(intervalEnd);
+            Histogram interval = corrected.getIntervalHistogram();
+            totalCorrected.add(interval);
+            totalRaw.add(raw.getIntervalHistogram());
+            long nowRequests = requests.sum();
+            long nowBytes = bytes.sum();
+            long nowErrors = errorCount();
+            if (options.report > 0) {
+                double elapsed = (intervalEnd - intervalStart) / 1e9;
+                out.printf(Locale.ROOT, "[%6.1fs] %10.1f req/s %9.2f MB/s  p50 %8.3f  p99 %8.3f  max %8.3f ms"
+                        + "  errors %d%n", (intervalEnd - measureStart) / 1e9, (nowRequests - lastRequests) / elapsed,
+                        (nowBytes - lastBytes) / elapsed / 1e6, millis(interval.getValueAtPercentile(50)),
+                        millis(interval.getValueAtPercentile(99)), millis(interval.getMaxValue()),
+                        nowErrors - lastErrors);
+            }
+            lastRequests = nowRequests;
+            lastBytes = nowBytes;
+            lastErrors = nowErrors;
+            intervalStart = intervalEnd;
+        }
+
+        for (Thread worker : workers) {
+            worker.join(options.timeoutMillis + 1000L);
+        }
+        // 结束后才完成的请求不计入
+        report(out, totalCorrected, totalRaw);
+    }
+
+    // 一个连接 按计划 (open) 或收到响应后 (closed) 发送下一个请求
+    private void work(int worker, long start) {
+        LoadConnection connection = newConnection();
+        LoadConnection.Response response = new LoadConnection.Response();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // open: 每个连接负责第 worker, worker + connections, ... 个请求
+        double interval = 1e9 * options.connections / options.rate;
+        long slot = 0;
+        long offset = (long) (1e9 * worker / options.rate);
+        try {
+            while (true) {
+                long intended;
+                if (options.closedLoop) {
+                    intended = System.nanoTime();
+                    if (intended - end >= 0) {
+                        break;
+                    }
+                } else {
+                    intended = start + offset + (long) (slot * interval);
+                    slot++;
+                    if (intended - end >= 0) {
+                        break;
+                    }
+                    sleepUntil(intended);
+                    long now = System.nanoTime();
+                    if (now - end >= 0) {
+                        // 落后于计划 剩下的请求来不及发送
+                        unsent.add(1 + (long) ((end - intended) / interval));
+                        break;
+                    }
+                }
+                Kind kind = pick(random);
+                byte[] request = request(kind, random);
+                long sent = System.nanoTime();
+                try {
+                    connection.send(request, response);
+                } catch (IOException e) {
+                    long failed = System.nanoTime();
+                    if (failed - measureStart >= 0 && failed - end < 0) {
+                        errors.computeIfAbsent(e.getClass().getSimpleName(), name -> new LongAdder()).increment();
+                    }
+                    if (options.closedLoop) {
+                        // 服务器拒绝连接时不要空转
+                        LockSupport.parkNanos(1_000_000);
+                    }
+                    continue;
+                }
+                long done = System.nanoTime();
+                if (done - measureStart < 0) {
+                    warmupNanos.add(done - sent);
+                    warmupCount.increment();
+                    continue;
+                }
+                if (done - end >= 0) {
+                    continue;
+                }
+                raw.recordValue(done - sent);
+                if (!options.closedLoop) {
+                    corrected.recordValue(done - intended);
+                } else if (expectedIntervalNanos > 0) {
+                    corrected.recordValueWithExpectedInterval(done - sent, expectedIntervalNanos);
+                } else {
+                    corrected.recordValue(done - sent);
+                }
+                requests.increment();
+                bytes.add(response.bytes);
+                byKind[kind.ordinal()].increment();
+                byStatus[Math.min(5, Math.max(0, response.status / 100))].increment();
+                if (response.reconnected) {
+                    connects.increment();
+                }
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    private Kind pick(ThreadLocalRandom random) {
+        int value = random.nextInt(mixTotals[mixTotals.length - 1]);
+        for (int i = 0; i < mixTotals.length; i++) {
+            if (value < mixTotals[i]) {
+                return Kind.values()[i];
+            }
+        }
+        return Kind.STATIC;
+    }
+
+    private byte[] request(Kind kind, ThreadLocalRandom random) {
+        int file = random.nextInt(staticRequests.length);
+        switch (kind) {
+            case RANGE: {
+                long size = sizes[file];
+                long first = size <= 1 ? 0 : random.nextLong(size);
+                long last = Math.min(size - 1, first + random.nextInt(Math.max(1, options.rangeBytes)));
+                return ascii("GET " + server.paths.get(file) + " HTTP/1.1\r\n" + commonHeaders() + "Range: bytes="
+                        + first + "-" + last + "\r\n\r\n");
+            }
+            case POST:
+                return postRequest;
+            case STATIC:
+            default:
+                return staticRequests[file];
+        }
+    }
+
+    private long errorCount() {
+        long count = 0;
+        for (LongAdder adder : errors.values()) {
+            count += adder.sum();
+        }
+        return count;
+    }
+
+    private void report(PrintStream out, Histogram latency, Histogram rawLatency) {
+        double seconds = options.duration;
+        long total = requests.sum();
+        out.println();
+        out.printf(Locale.ROOT, "requests   %d (%.1f req/s)%n", total, total / seconds);
+        out.printf(Locale.ROOT, "bytes      %d (%.2f MB/s)%n", bytes.sum(), bytes.sum() / seconds / 1e6);
+        out.printf(Locale.ROOT, "connects   %d%n", connects.sum());
+        StringBuilder kinds = new StringBuilder();
+        for (Kind kind : Kind.values()) {
+            kinds.append(kind.name().toLowerCase(Locale.ROOT)).append(' ').append(byKind[kind.ordinal()].sum())
+                    .append("  ");
+        }
+        out.println("kinds      " + kinds.toString().trim());
+        StringBuilder statuses = new StringBuilder();
+        for (int i = 1; i < byStatus.length; i++) {
+            statuses.append(i).append("xx ").append(byStatus[i].sum()).append("  ");
+        }
+        out.println("status     " + statuses.toString().trim());
+        Map<String, LongAdder> sortedErrors = new TreeMap<>(errors);
+        StringBuilder errorText = new StringBuilder();
+        for (Map.Entry<String, LongAdder> entry : sortedErrors.entrySet()) {
+            errorText.append(entry.getKey()).append(' ').append(entry.getValue().sum()).append("  ");
+        }
+        out.println("errors     " + (errorText.length() == 0 ? "0" : errorText.toString().trim()));
+        if (!options.closedLoop) {
+            out.printf(Locale.ROOT, "target     %.1f req/s, %d requests not sent (generator or server behind)%n",
+                    options.rate, unsent.sum());
+        } else {
+            out.printf(Locale.ROOT, "correction expected interval %.3f ms%s%n", millis(expectedIntervalNanos),
+                    options.expectedIntervalNanos != 0 ? "" : " (warmup mean)");
+        }
+        out.println();
+        out.println("latency ms   corrected        raw");
+        for (double percentile : new double[] { 50, 75, 90, 99, 99.9, 99.99 }) {
+            out.printf(Locale.ROOT, "  p%-8s %10.3f %10.3f%n", number(percentile),
+                    millis(latency.getValueAtPercentile(percentile)),
+                    millis(rawLatency.getValueAtPercentile(percentile)));
+        }
+        out.printf(Locale.ROOT, "  max       %10.3f %10.3f%n", millis(latency.getMaxValue()),
+                millis(rawLatency.getMaxValue()));
+        out.printf(Locale.ROOT, "  mean      %10.3f %10.3f%n", latency.getMean() / 1e6, rawLatency.getMean() / 1e6);
+    }
+
+    private static long seconds(double seconds) {
+        return (long) (seconds * 1e9);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static String number(double value) {
+        return value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    private static void sleepUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import servelib.BuildResponse;
+import servelib.Metrics;
+import servelib.ServerConfig;
+import servelib.ServerCore;
+import servelib.log;
+import servelib.buildAPI.MainPOST;
+
+// 负载生成器的目标服务器 / the server under load
+// inprocess: 在同一个 JVM 中启动 ServerCore 文件目录注册为 /loadtest
+// fork: 子进程运行 Main_Server 工作目录为临时目录 文件在 data/File 下 输出直接显示 (默认只有 WARN 以上)
+// 两者的 POST 都发到 /loadtest-post (MainPOST.upload 上传的文件写入临时目录下的 uploads)
+// none: 已经在运行的服务器 由 host port paths postPath 指定
+// inprocess / fork 时生成 fileSizes 指定大小的文件 结束时删除
+final class LoadServer implements AutoCloseable {
+
+    static final String INPROCESS_PREFIX = "/loadtest";
+    static final String INPROCESS_POST = "/loadtest-post";
+    private static final long READY_TIMEOUT_MILLIS = 30_000;
+
+    final InetSocketAddress address;
+    final List<String> paths;
+    final String postPath;
+    private final ServerCore inprocess;
+    private final Process fork;
+    private final Path workDirectory;
+
+    private LoadServer(InetSocketAddress address, List<String> paths, String postPath, ServerCore inprocess,
+            Process fork, Path workDirectory) {
+        this.address = address;
+        this.paths = paths;
+        this.postPath = postPath;
+        this.inprocess = inprocess;
+        this.fork = fork;
+        this.workDirectory = workDirectory;
+    }
+
+    static LoadServer start(LoadGenerator.Options options) throws IOException {
+        if (options.server.equals("none")) {
+            if (options.port <= 0 || options.paths.isEmpty()) {
+                throw new IllegalArgumentException("server=none needs port and paths");
+            }
+            InetSocketAddress address = new InetSocketAddress(options.host, options.port);
+            return new LoadServer(address, options.paths,
+                    options.postPath != null ? options.postPath : options.paths.get(0), null, null, null);
+        }
+
+        Path work = Files.createTempDirectory("microlib-load");
+        Path files = Files.createDirectories(work.resolve("data").resolve("File"));
+        List<String> names = new ArrayList<>();
+        Random random = new Random(42);
+        for (int size : options.fileSizes) {
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            String name = "load-" + size + ".bin";
+            Files.write(files.resolve(name), content);
+            names.add(name);
+        }
+
+        int port = options.port > 0 ? options.port : freePort();
+        List<String> args = new ArrayList<>();
+        args.add("logLevel=WARN");
+        args.add("uploadPath=" + INPROCESS_POST);
+        args.add("uploadDirectory=" + work.resolve("uploads"));
+        if (options.proxy) {
+            // 与只暴露给 frp 的端口相同
+            args.add("proxyProtocol=REQUIRED");
+        }
+        args.addAll(options.serverArgs);
+        args.add("port=" + port);
+        InetSocketAddress address = new InetSocketAddress(options.host, port);
+
+        LoadServer started = null;
+        try {
+            if (options.server.equals("inprocess")) {
+                ServerConfig config = ServerConfig.fromArgs(args.toArray(new String[0]));
+                log.setLevel(config.getLogLevel());
+                BuildResponse.init();
+                BuildResponse.addRoute(INPROCESS_PREFIX, files.toAbsolutePath().toString(), null);
+                if (config.getUploadPath() != null) {
+                    BuildResponse.addRoute(config.getUploadPath(), MainPOST.upload(config.getUploadDirectory(),
+                            config.getMaxFieldBytes(), config.getMaxParts()));
+                }
+                ServerCore server = ServerCore.create(config);
+                if (config.getMetricsPath() != null) {
+                    BuildResponse.addRoute(config.getMetricsPath(), Metrics.handler());
+                }
+                server.start();
+                started = new LoadServer(address, prefixed(INPROCESS_PREFIX + "/", names),
+                        options.postPath != null ? options.postPath : INPROCESS_POST, server, null, work);
+                started.awaitReady();
+                return started;
+            }
+            if (options.server.equals("fork")) {
+                List<String> command = new ArrayList<>();
+                command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+                command.addAll(options.serverJvmArgs);
+                command.add("-cp");
+                command.add(absoluteClassPath());
+                command.add("Main_Server");
+                command.addAll(args);
+                Process process = new ProcessBuilder(command).directory(work.toFile()).inheritIO().start();
+                List<String> paths = prefixed("/data/File/", names);
+                started = new LoadServer(address, paths,
+                        options.postPath != null ? options.postPath : INPROCESS_POST, null, process, work);
+                started.awaitReady();
+                return started;
+            }
+        } catch (IOException | RuntimeException e) {
+            if (started != null) {
+                started.close();
+            } else {
+                deleteRecursively(work);
+            }
+            throw e;
+        }
+        deleteRecursively(work);
+        throw new IllegalArgumentException("Unknown server: " + options.server);
+    }
+
+    private static List<String> prefixed(String prefix, List<String> names) {
+        List<String> paths = new ArrayList<>();
+        for (String name : names) {
+            paths.add(prefix + name);
+        }
+        return paths;
+    }
+
+    // 子进程的工作目录是临时目录 相对路径需要先转换
+    private static String absoluteClassPath() {
+        List<String> entries = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            entries.add(Paths.get(entry).toAbsolutePath().toString());
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // 能连接上即可 (PROXY REQUIRED 时服务器会关闭这个没有 PROXY 头的连接)
+    private void awaitReady() throws IOException {
+        long deadline = System.currentTimeMillis() + READY_TIMEOUT_MILLIS;
+        while (true) {
+            if (fork != null && !fork.isAlive()) {
+                throw new IOException("Server exited with " + fork.exitValue());
+            }
+            try (Socket socket = new Socket()) {
+                socket.connect(address, 1000);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Server did not start listening on " + address, e);
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the server", interrupted);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (inprocess != null) {
+            inprocess.stop();
+        }
+        if (fork != null) {
+            fork.destroy();
+            try {
+                if (!fork.waitFor(10, TimeUnit.SECONDS)) {
+                    fork.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                fork.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (workDirectory != null) {
+            deleteRecursively(workDirectory);
+        }
+    }
+
+    private static void deleteRecursively(Path directory) {
+        try (Stream<Path> walk = Files.walk(directory)) {
+            walk.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            System.err.println("Failed to delete " + directory + ": " + e.getMessage());
+        }
+    }
+}
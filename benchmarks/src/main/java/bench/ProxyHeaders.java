@@ -0,0 +1,52 @@
+package bench;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ThreadLocalRandom;
+
+// PROXY protocol v2 头 / PROXY v2 header frames
+// 负载生成器每个新连接一个 源地址每次不同 (frp 等转发时每个连接来自不同的客户端)
+final class ProxyHeaders {
+
+    static final int TCP4 = 0x11;
+    static final int TCP6 = 0x21;
+    private static final byte[] SIGNATURE = { 0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54,
+            0x0A };
+
+    private final int port;
+
+    // port: 目标端口 写在目的地址中
+    ProxyHeaders(int port) {
+        this.port = port;
+    }
+
+    // 源地址为随机的 198.18.0.0/15 (基准测试保留地址) 随机源端口
+    byte[] next() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int source = 0xC6120000 | random.nextInt(1 << 17);
+        int sourcePort = 1024 + random.nextInt(64512);
+        byte[] addresses = { (byte) (source >>> 24), (byte) (source >>> 16), (byte) (source >>> 8), (byte) source,
+                127, 0, 0, 1, (byte) (sourcePort >>> 8), (byte) sourcePort, (byte) (port >>> 8), (byte) port };
+        return v2(TCP4, addresses, new byte[0]);
+    }
+
+    // 签名 版本 2 PROXY 命令 地址族/传输 长度 地址 TLV
+    static byte[] v2(int family, byte[] addresses, byte[] tlvs) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(SIGNATURE, 0, SIGNATURE.length);
+        out.write(0x21);
+        out.write(family);
+        int length = addresses.length + tlvs.length;
+        out.write(length >>> 8);
+        out.write(length & 0xFF);
+        out.write(addresses, 0, addresses.length);
+        out.write(tlvs, 0, tlvs.length);
+        return out.toByteArray();
+    }
+
+    static void tlv(ByteArrayOutputStream out, int type, byte[] value) {
+        out.write(type);
+        out.write(value.length >>> 8);
+        out.write(value.length & 0xFF);
+        out.write(value, 0, value.length);
+    }
+}
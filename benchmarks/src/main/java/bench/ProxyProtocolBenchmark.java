@@ -0,0 +1,107 @@
+package bench;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import servelib.BuildRequest;
+import servelib.ProxyProtocol;
+
+// 连接开头的 PROXY 头加第一个请求 / PROXY protocol header followed by the first request
+// 与 ConnectionHandler 相同: 先 ProxyProtocol.read 再在同一个 BufferedInputStream 上解析请求
+// none 是没有 PROXY 头时的对照 (read 只看第一个字节就返回)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyProtocolBenchmark {
+
+    // v2-tlv: 带 AUTHORITY UNIQUE_ID 和 SSL 的 TLV (负载均衡器终结 TLS 时的情况)
+    @Param({ "none", "v1", "v2", "v2-ipv6", "v2-tlv" })
+    public String proxy;
+
+    // 203.0.113.7:51234 -> 10.0.0.1:80
+    private static final byte[] TCP4_ADDRESSES = { (byte) 203, 0, 113, 7, 10, 0, 0, 1, (byte) 0xC8, 0x22, 0, 80 };
+
+    private byte[] connection;
+    private final BuildRequest.Buffer buffer = new BuildRequest.Buffer();
+
+    @Setup
+    public void setup() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] header = header(proxy);
+        out.write(header, 0, header.length);
+        byte[] request = RequestParserBenchmark.request("minimal").getBytes(StandardCharsets.US_ASCII);
+        out.write(request, 0, request.length);
+        connection = out.toByteArray();
+    }
+
+    static byte[] header(String kind) {
+        switch (kind) {
+            case "none":
+                return new byte[0];
+            case "v1":
+                return "PROXY TCP4 203.0.113.7 10.0.0.1 51234 80\r\n".getBytes(StandardCharsets.US_ASCII);
+            case "v2":
+                return ProxyHeaders.v2(ProxyHeaders.TCP4, TCP4_ADDRESSES, new byte[0]);
+            case "v2-ipv6": {
+                byte[] addresses = new byte[36];
+                addresses[0] = 0x20;
+                addresses[1] = 0x01;
+                addresses[2] = 0x0d;
+                addresses[3] = (byte) 0xb8;
+                addresses[15] = 7;
+                addresses[16] = (byte) 0xfd;
+                addresses[31] = 1;
+                addresses[32] = (byte) 0xC8;
+                addresses[33] = 0x22;
+                addresses[35] = 80;
+                return ProxyHeaders.v2(ProxyHeaders.TCP6, addresses, new byte[0]);
+            }
+            case "v2-tlv": {
+                ByteArrayOutputStream tlvs = new ByteArrayOutputStream();
+                ProxyHeaders.tlv(tlvs, ProxyProtocol.PP2_TYPE_AUTHORITY,
+                        "www.example.com".getBytes(StandardCharsets.US_ASCII));
+                ProxyHeaders.tlv(tlvs, ProxyProtocol.PP2_TYPE_UNIQUE_ID, "0f4e7c1a-5b2d-4c3e-9a8f-112233445566"
+                        .getBytes(StandardCharsets.US_ASCII));
+                // PP2_TYPE_SSL: client 标志 verify 然后是子 TLV (版本)
+                ByteArrayOutputStream ssl = new ByteArrayOutputStream();
+                ssl.write(0x01);
+                ssl.write(new byte[4], 0, 4);
+                ProxyHeaders.tlv(ssl, 0x21, "TLSv1.3".getBytes(StandardCharsets.US_ASCII));
+                ProxyHeaders.tlv(tlvs, ProxyProtocol.PP2_TYPE_SSL, ssl.toByteArray());
+                return ProxyHeaders.v2(ProxyHeaders.TCP4, TCP4_ADDRESSES, tlvs.toByteArray());
+            }
+            default:
+                throw new IllegalArgumentException("Unknown proxy header: " + kind);
+        }
+    }
+
+    @Benchmark
+    public void connection(Blackhole blackhole) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(connection));
+        ProxyProtocol.Header header = ProxyProtocol.read(in);
+        String clientIp = header == null ? "127.0.0.1" : header.getClientIp();
+        BuildRequest request = new BuildRequest(null, in, buffer, clientIp);
+        blackhole.consume(request.getClientIp());
+        blackhole.consume(request.getRequestParameter());
+    }
+}
@@ -0,0 +1,123 @@
+package bench;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import servelib.BuildRequest;
+
+// 请求行和请求头的解析 / BuildRequest parsing from memory
+// pipelined: 同一个连接上连续 PIPELINE 个请求 共享 BufferedInputStream 和 Buffer (keep-alive 时的情况)
+// connection: 每次一个新连接只发一个请求 包括 BufferedInputStream 和 Buffer 的创建
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParserBenchmark {
+
+    static final int PIPELINE = 256;
+
+    // minimal: curl 式的最短请求
+    // browser: 浏览器的典型请求头 带查询串和百分号编码
+    // large: 40 个请求头 带长 Cookie
+    @Param({ "minimal", "browser", "large" })
+    public String request;
+
+    private byte[] single;
+    private byte[] pipelined;
+    private final BuildRequest.Buffer buffer = new BuildRequest.Buffer();
+
+    @Setup
+    public void setup() {
+        single = request(request).getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(single.length * PIPELINE);
+        for (int i = 0; i < PIPELINE; i++) {
+            out.write(single, 0, single.length);
+        }
+        pipelined = out.toByteArray();
+    }
+
+    static String request(String kind) {
+        switch (kind) {
+            case "minimal":
+                return "GET / HTTP/1.1\r\nHost: localhost\r\nUser-Agent: curl/8.5.0\r\nAccept: */*\r\n\r\n";
+            case "browser":
+                return "GET /data/HTML/index%20page.html?lang=zh-CN&q=%E4%B8%AD%E6%96%87&page=2 HTTP/1.1\r\n"
+                        + "Host: www.example.com\r\n"
+                        + "Connection: keep-alive\r\n"
+                        + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) "
+                        + "Chrome/120.0.0.0 Safari/537.36\r\n"
+                        + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+                        + "Accept-Encoding: gzip, deflate, br\r\n"
+                        + "Accept-Language: zh-CN,zh;q=0.9,en;q=0.8\r\n"
+                        + "Cache-Control: max-age=0\r\n"
+                        + "If-None-Match: \"5f3a-18c2b7e4d10\"\r\n"
+                        + "If-Modified-Since: Tue, 12 Dec 2023 08:00:00 GMT\r\n"
+                        + "Sec-Fetch-Dest: document\r\n"
+                        + "Sec-Fetch-Mode: navigate\r\n"
+                        + "Sec-Fetch-Site: none\r\n"
+                        + "Upgrade-Insecure-Requests: 1\r\n\r\n";
+            case "large":
+                StringBuilder text = new StringBuilder("GET /data/File/report.pdf HTTP/1.1\r\nHost: www.example.com\r\n");
+                for (int i = 0; i < 38; i++) {
+                    text.append("X-Custom-Header-").append(i).append(": value-").append(i)
+                            .append("-abcdefghijklmnopqrstuvwxyz\r\n");
+                }
+                text.append("Cookie: ");
+                for (int i = 0; i < 40; i++) {
+                    text.append(i == 0 ? "" : "; ").append("session_").append(i).append('=')
+                            .append(Long.toHexString(0x9E3779B97F4A7C15L * (i + 1)));
+                }
+                return text.append("\r\n\r\n").toString();
+            default:
+                throw new IllegalArgumentException("Unknown request: " + kind);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE)
+    public void pipelined(Blackhole blackhole) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(pipelined));
+        for (int i = 0; i < PIPELINE; i++) {
+            BuildRequest parsed = new BuildRequest(null, in, buffer, "127.0.0.1");
+            blackhole.consume(parsed.getRequestType());
+            blackhole.consume(parsed.getRequestParameter());
+        }
+    }
+
+    // 常见的请求处理会读取的部分: 方法 路径 参数 和两个请求头
+    @Benchmark
+    public void accessors(Blackhole blackhole) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(single));
+        BuildRequest parsed = new BuildRequest(null, in, buffer, "127.0.0.1");
+        blackhole.consume(parsed.getRequestType());
+        blackhole.consume(parsed.getRequestParameter());
+        blackhole.consume(parsed.getParameters());
+        blackhole.consume(parsed.getHeader("Host"));
+        blackhole.consume(parsed.getHeader("If-None-Match"));
+    }
+
+    @Benchmark
+    public BuildRequest connection() throws IOException {
+        return new BuildRequest(null, new ByteArrayInputStream(single));
+    }
+}